@@ -0,0 +1,74 @@
+package networkcalc.bench;
+
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Throughput of the expression evaluator across expression sizes and shapes: evaluating from text,
+ * compiling to postfix opcodes, and re-executing an already compiled expression by interpreting its opcodes.
+ * The translated lambda tier only applies to DEF formulas, so it is measured on a formula of the same shape with
+ * variables, against interpreting that formula.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class EvaluatorBenchmark {
+    @Param({"flat", "nested", "division"})
+    public String shape;
+
+    @Param({"4", "32", "256"})
+    public int terms;
+
+    private String expression;
+    private Object compiled;
+    private Object formula;
+    private double[] values;
+
+    @Setup
+    public void setup() throws Throwable {
+        expression = Targets.expression(shape, terms, 42);
+        compiled = Targets.COMPILE.invoke(expression);
+        formula = Targets.COMPILE_FORMULA.invoke((CharSequence) Targets.formula(shape, terms, 42));
+        values = new Random(42).doubles(((String[]) Targets.VARIABLES.invokeExact(formula)).length, 1, 100).toArray();
+    }
+
+    @Benchmark
+    public double evaluate() throws Throwable {
+        return (double) Targets.EVALUATE.invokeExact((CharSequence) expression);
+    }
+
+    @Benchmark
+    public Object compile() throws Throwable {
+        return Targets.COMPILE.invoke((CharSequence) expression);
+    }
+
+    @Benchmark
+    public double executeCompiled() throws Throwable {
+        return (double) Targets.EXECUTE.invokeExact(compiled);
+    }
+
+    @Benchmark
+    public double executeFormula() throws Throwable {
+        return (double) Targets.EXECUTE_FORMULA.invokeExact(formula, values);
+    }
+
+    @Benchmark
+    public double executeTranslated() throws Throwable {
+        return (double) Targets.EVALUATE_FORMULA_TIERED.invokeExact(formula, 1, values);    // Translated on the first call
+    }
+}
@@ -0,0 +1,88 @@
+package networkcalc.bench;
+
+import java.math.MathContext;
+import java.util.Locale;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of exact decimal evaluation compared with double evaluation, both including the formatting of the result, over
+ * a rotating set of expressions of each shape. At the end of each run, the share of exact evaluations that stayed on
+ * the scaled-long fast path is printed.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class ExactBenchmark {
+    private static final int EXPRESSIONS = 256;     // Distinct expressions cycled through by each benchmark
+
+    @Param({"money", "flat", "division"})
+    public String shape;
+
+    @Param({"4", "32"})
+    public int terms;
+
+    private final String[] expressions = new String[EXPRESSIONS];
+    private int next;
+    private long fastPathBefore;
+    private long fallbacksBefore;
+
+    @Setup
+    public void setup() throws Throwable {
+        for (int i = 0; i < EXPRESSIONS; i++) {
+            expressions[i] = Targets.expression(shape, terms, i);
+        }
+        fastPathBefore = ((LongAdder) Targets.EXACT_FAST_PATH.invokeExact()).sum();
+        fallbacksBefore = ((LongAdder) Targets.EXACT_FALLBACKS.invokeExact()).sum();
+    }
+
+    @TearDown(Level.Trial)
+    public void reportHitRate() throws Throwable {
+        final long fast = ((LongAdder) Targets.EXACT_FAST_PATH.invokeExact()).sum() - fastPathBefore;
+        final long fallbacks = ((LongAdder) Targets.EXACT_FALLBACKS.invokeExact()).sum() - fallbacksBefore;
+        if (fast + fallbacks > 0) {
+            System.out.println(String.format(Locale.ROOT, "Exact fast path hit rate for %s/%d: %.1f%% of %d evaluations",
+                shape, terms, 100.0 * fast / (fast + fallbacks), fast + fallbacks));
+        }
+    }
+
+    private String nextExpression() {
+        next = (next + 1) & (EXPRESSIONS - 1);
+        return expressions[next];
+    }
+
+    @Benchmark
+    public String evaluateDouble() throws Throwable {
+        try {
+            return (String) Targets.FORMAT_RESULT.invokeExact((double) Targets.EVALUATE.invokeExact((CharSequence) nextExpression()));
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    @Benchmark
+    public String evaluateExact() throws Throwable {
+        try {
+            return (String) Targets.EVALUATE_EXACT.invokeExact((CharSequence) nextExpression(), MathContext.DECIMAL128);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();  // Division by zero, which double mode answers with infinity or NaN instead
+        }
+    }
+}
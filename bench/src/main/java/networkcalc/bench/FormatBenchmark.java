@@ -0,0 +1,47 @@
+package networkcalc.bench;
+
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of turning a result into the text sent in a RES message, for the kinds of values the server produces.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class FormatBenchmark {
+    @Param({"integer", "fraction", "large", "infinity"})
+    public String kind;
+
+    private double value;
+
+    @Setup
+    public void setup() {
+        value = switch (kind) {
+            case "integer" -> 1234567;
+            case "fraction" -> 5786.7962962962965;
+            case "large" -> 1.2345678901234567E200;
+            case "infinity" -> Double.POSITIVE_INFINITY;
+            default -> throw new IllegalArgumentException("Unknown value kind: " + kind);
+        };
+    }
+
+    @Benchmark
+    public String formatResult() throws Throwable {
+        return (String) Targets.FORMAT_RESULT.invokeExact(value);
+    }
+}
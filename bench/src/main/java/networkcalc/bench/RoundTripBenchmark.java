@@ -0,0 +1,76 @@
+package networkcalc.bench;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * End-to-end latency of a client session against an in-process MathServer over loopback: connect, JOIN,
+ * send N CALC requests at once, read the N RES replies, and LEAVE.
+ */
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+@State(Scope.Benchmark)
+public class RoundTripBenchmark {
+    @Param({"pool", "nio"})
+    public String engine;
+
+    @Param({"1", "16", "256"})
+    public int requests;
+
+    private int port;
+    private byte[] session;     // The JOIN and CALC lines of one session
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException, InterruptedException {
+        port = Targets.startServer(engine);
+        final StringBuilder sb = new StringBuilder("JOIN:bench\n");
+        for (int i = 0; i < requests; i++) {
+            sb.append("CALC:bench:").append(Targets.expression("flat", 8, i)).append('\n');
+        }
+        session = sb.toString().getBytes(StandardCharsets.UTF_8);
+    }
+
+    @Benchmark
+    public int session() throws IOException {
+        try (Socket socket = new Socket("localhost", port)) {
+            socket.setTcpNoDelay(true);
+            final OutputStream out = socket.getOutputStream();
+            final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+            out.write(session);
+            out.flush();
+
+            int replies = 0;
+            for (int i = 0; i <= requests; i++) {   // The ACK followed by one RES or ERR per request
+                if (in.readLine() == null) {
+                    throw new IOException("Server closed the connection early");
+                }
+                replies++;
+            }
+            out.write("LEAVE:bench\n".getBytes(StandardCharsets.UTF_8));
+            out.flush();
+            in.readLine();
+            return replies;
+        }
+    }
+}
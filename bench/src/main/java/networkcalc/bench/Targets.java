@@ -0,0 +1,179 @@
+package networkcalc.bench;
+
+import java.io.IOException;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.math.MathContext;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.util.Random;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Handles to the server code under test. NetworkCalc's classes live in the unnamed package, which Java code in a
+ * named package (as JMH requires) cannot refer to by name, so they are looked up reflectively once and called through
+ * {@code static final} method handles, which the JIT inlines like direct calls.
+ */
+final class Targets {
+    static final MethodHandle EVALUATE = find("Evaluator", "evaluate", MethodType.methodType(double.class, CharSequence.class));
+    static final MethodHandle COMPILE = find("Evaluator", "compile", MethodType.methodType(type("CompiledExpression"), CharSequence.class));
+    static final MethodHandle COMPILE_FORMULA = find("Evaluator", "compileFormula", MethodType.methodType(type("CompiledExpression"), CharSequence.class));
+    static final MethodHandle EXECUTE = virtual("CompiledExpression", "execute", MethodType.methodType(double.class));
+    static final MethodHandle EXECUTE_FORMULA = virtual("CompiledExpression", "execute", MethodType.methodType(double.class, double[].class));
+    static final MethodHandle EVALUATE_FORMULA_TIERED = virtual("CompiledExpression", "evaluate", MethodType.methodType(double.class, int.class, double[].class));
+    static final MethodHandle VARIABLES = virtual("CompiledExpression", "variables", MethodType.methodType(String[].class));
+    static final MethodHandle EVALUATE_EXACT = find("ExactEvaluator", "evaluate", MethodType.methodType(String.class, CharSequence.class, MathContext.class));
+    static final MethodHandle EXACT_FAST_PATH = counter("ExactEvaluator", "fastPath");
+    static final MethodHandle EXACT_FALLBACKS = counter("ExactEvaluator", "fallbacks");
+    static final MethodHandle FORMAT_RESULT = find("MathServer", "formatResult", MethodType.methodType(String.class, double.class));
+    static final MethodHandle MAIN = find("MathServer", "main", MethodType.methodType(void.class, String[].class));
+
+    private Targets() {}
+
+    private static Class<?> type(final String name) {
+        try {
+            return Class.forName(name);
+        } catch (ClassNotFoundException e) {
+            throw new IllegalStateException("NetworkCalc class " + name + " is not on the class path", e);
+        }
+    }
+
+    private static MethodHandles.Lookup lookupIn(final Class<?> type) throws IllegalAccessException {
+        return MethodHandles.privateLookupIn(type, MethodHandles.lookup());
+    }
+
+    private static MethodHandle find(final String className, final String method, final MethodType methodType) {
+        try {
+            final Class<?> type = type(className);
+            return lookupIn(type).findStatic(type, method, methodType);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access " + className + "." + method, e);
+        }
+    }
+
+    private static MethodHandle virtual(final String className, final String method, final MethodType methodType) {
+        try {
+            final Class<?> type = type(className);
+            return lookupIn(type).findVirtual(type, method, methodType).asType(methodType.insertParameterTypes(0, Object.class));
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access " + className + "." + method, e);
+        }
+    }
+
+    private static MethodHandle counter(final String className, final String field) {
+        try {
+            final Class<?> type = type(className);
+            return lookupIn(type).findStaticGetter(type, field, LongAdder.class);
+        } catch (ReflectiveOperationException e) {
+            throw new IllegalStateException("Cannot access " + className + "." + field, e);
+        }
+    }
+
+    /**
+     * Builds a deterministic expression of roughly {@code terms} operands
+     * @param shape {@code flat} for a plain chain of operators, {@code nested} for deeply parenthesized
+     *              sub-expressions, {@code division} for a chain of divisions and remainders with fractional operands,
+     *              or {@code money} for sums of amounts with two decimal places, scaled by the occasional rate or split
+     * @param terms The number of operands
+     * @param seed Seed for the operand and operator choices
+     * @return the expression
+     */
+    static String expression(final String shape, final int terms, final long seed) {
+        final Random rng = new Random(seed);
+        final StringBuilder sb = new StringBuilder();
+        switch (shape) {
+            case "flat" -> {
+                for (int i = 0; i < terms; i++) {
+                    if (i > 0) {
+                        sb.append("+-*/%".charAt(rng.nextInt(5)));
+                    }
+                    sb.append(rng.nextInt(100));
+                }
+            }
+            case "nested" -> {
+                for (int i = 0; i < terms - 1; i++) {
+                    sb.append('(').append(rng.nextInt(100) + 1).append("+-*".charAt(rng.nextInt(3)));
+                }
+                sb.append(rng.nextInt(100) + 1);
+                sb.append(")".repeat(terms - 1));
+            }
+            case "division" -> {
+                for (int i = 0; i < terms; i++) {
+                    if (i > 0) {
+                        sb.append(i % 3 == 0 ? '%' : '/');
+                    }
+                    sb.append(rng.nextInt(1000) + 1).append('.').append(rng.nextInt(1000));
+                }
+            }
+            case "money" -> {
+                for (int i = 0; i < terms; i++) {
+                    if (i > 0) {
+                        sb.append(rng.nextInt(4) == 0 ? '-' : '+');
+                    }
+                    sb.append(rng.nextInt(10_000)).append('.').append(rng.nextInt(10)).append(rng.nextInt(10));
+                    switch (rng.nextInt(8)) {
+                        case 0 -> sb.append("*1.0").append(rng.nextInt(10));   // A rate of up to 9%
+                        case 1 -> sb.append('/').append(1 << rng.nextInt(3));    // An even split, which terminates
+                        default -> { }
+                    }
+                }
+            }
+            default -> throw new IllegalArgumentException("Unknown expression shape: " + shape);
+        }
+        return sb.toString();
+    }
+
+    /**
+     * Builds a deterministic formula like the ones defined with DEF: an {@link #expression} in which every other operand
+     * is one of four variables, so that only part of it can be folded into constants
+     * @param shape The shape of the expression, as for {@link #expression}
+     * @param terms The number of operands
+     * @param seed Seed for the operand and operator choices
+     * @return the formula
+     */
+    static String formula(final String shape, final int terms, final long seed) {
+        final Matcher number = Pattern.compile("\\d+(\\.\\d+)?").matcher(expression(shape, terms, seed));
+        final StringBuilder sb = new StringBuilder();
+        int operand = 0;
+        while (number.find()) {
+            number.appendReplacement(sb, operand % 2 == 1 ? "x" + (operand / 2 % 4) : number.group());
+            operand++;
+        }
+        number.appendTail(sb);
+        return sb.toString();
+    }
+
+    /**
+     * Starts an in-process MathServer on a free local port and waits until it accepts connections
+     * @param engine The connection engine to use
+     * @return the port the server listens on
+     */
+    static int startServer(final String engine) throws IOException, InterruptedException {
+        final int port;
+        try (ServerSocket probe = new ServerSocket(0)) {
+            port = probe.getLocalPort();
+        }
+        final String[] args = {"--port=" + port, "--engine=" + engine, "--log-console=false", "--log-overflow=drop"};
+        final Thread server = new Thread(() -> {
+            try {
+                MAIN.invokeExact(args);
+            } catch (Throwable t) {
+                t.printStackTrace();
+            }
+        }, "MathServer");
+        server.setDaemon(true);
+        server.start();
+
+        for (int attempt = 0; attempt < 100; attempt++) {
+            try (Socket ignored = new Socket("localhost", port)) {
+                return port;
+            } catch (IOException e) {
+                Thread.sleep(50);
+            }
+        }
+        throw new IOException("MathServer did not start on port " + port);
+    }
+}
@@ -0,0 +1,53 @@
+package networkcalc.bench;
+
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Cost of splitting an expression into tokens. The server no longer has a separate tokenization pass, since the
+ * evaluator scans and evaluates in one go, so this compares the original regex tokenizer, kept here as the
+ * baseline, with a full single-pass evaluation of the same text.
+ */
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+@State(Scope.Thread)
+public class TokenizeBenchmark {
+    @Param({"flat", "nested", "division"})
+    public String shape;
+
+    @Param({"4", "32", "256"})
+    public int terms;
+
+    private String expression;
+
+    @Setup
+    public void setup() {
+        expression = Targets.expression(shape, terms, 42);
+    }
+
+    @Benchmark
+    public List<String> regexTokenize() {
+        final String spaced = expression.replaceAll("([()+\\-*/%])", " $1 ");
+        return List.of(spaced.trim().split("\\s+"));
+    }
+
+    @Benchmark
+    public double singlePassEvaluate() throws Throwable {
+        return (double) Targets.EVALUATE.invokeExact((CharSequence) expression);
+    }
+}
@@ -6,32 +6,67 @@ set JAVAC=javac
 set JAVA=java
 set SRC_DIR=src
 set BIN_DIR=bin
+set TEST_DIR=test
 
 :: Commands
 if "%1"=="compile" goto compile
 if "%1"=="run-server" goto runserver
 if "%1"=="run-client" goto runclient
+if "%1"=="run-bulk" goto runbulk
+if "%1"=="run-router" goto runrouter
+if "%1"=="run-journal" goto runjournal
+if "%1"=="run-replay" goto runreplay
+if "%1"=="test" goto test
 if "%1"=="clean" goto clean
 
 :default
-echo Usage: build.bat [compile|run-server|run-client|clean]
+echo Usage: build.bat [compile|run-server|run-client|run-bulk|run-router|run-journal|run-replay|test|clean]
 goto end
 
 :compile
 if not exist %BIN_DIR% mkdir %BIN_DIR%
 for %%f in (%SRC_DIR%\\*.java) do (
-    %JAVAC% -d %BIN_DIR% %%f
+    %JAVAC% -d %BIN_DIR% -sourcepath %SRC_DIR% %%f
 )
 goto end
 
 :runserver
 call %0 compile >nul
-%JAVA% -cp %BIN_DIR% MathServer
+%JAVA% -cp %BIN_DIR% MathServer %2 %3 %4 %5 %6 %7 %8 %9
 goto end
 
 :runclient
 call %0 compile >nul
-%JAVA% -cp %BIN_DIR% MathClient
+%JAVA% -cp %BIN_DIR% MathClient %2 %3 %4 %5 %6 %7 %8 %9
+goto end
+
+:runbulk
+call %0 compile >nul
+%JAVA% -cp %BIN_DIR% BulkEvaluator %2 %3 %4 %5 %6 %7 %8 %9
+goto end
+
+:runrouter
+call %0 compile >nul
+%JAVA% -cp %BIN_DIR% MathRouter %2 %3 %4 %5 %6 %7 %8 %9
+goto end
+
+:runjournal
+call %0 compile >nul
+%JAVA% -cp %BIN_DIR% JournalTool %2 %3 %4 %5 %6 %7 %8 %9
+goto end
+
+:runreplay
+call %0 compile >nul
+%JAVA% -cp %BIN_DIR% TrafficReplay %2 %3 %4 %5 %6 %7 %8 %9
+goto end
+
+:test
+call %0 compile >nul
+if not exist %BIN_DIR%\test mkdir %BIN_DIR%\test
+%JAVAC% -d %BIN_DIR%\test -cp %BIN_DIR% %TEST_DIR%\*.java
+for %%f in (%TEST_DIR%\*Test.java) do (
+    %JAVA% -cp %BIN_DIR%;%BIN_DIR%\test %%~nf || exit /b 1
+)
 goto end
 
 :clean
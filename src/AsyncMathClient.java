@@ -0,0 +1,480 @@
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.math.BigDecimal;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.Function;
+
+/**
+ * Client library for calling a {@link MathServer} from many threads at once. Every call returns a
+ * {@link CompletableFuture} right away and never blocks the caller; the requests are spread over a pool of connections,
+ * each of which joins the server once and keeps many requests in flight. Requests are queued on their connection and
+ * written by its own virtual thread, so a server that is slow to read holds up that thread rather than the caller.
+ *
+ * <p>Connections join with request IDs, so responses are matched to their requests by ID and can arrive in any order.
+ * Against a server that does not confirm request IDs in its ACK, the connection falls back to matching responses in the
+ * order the requests were sent.
+ *
+ * <p>A request fails with a {@link java.util.concurrent.TimeoutException} if it is not answered within the timeout,
+ * with a {@link RejectedExecutionException} if the maximum number of requests is already in flight, with an
+ * {@link IOException} if its connection is lost or none is connected, and with a {@link CalcException} if the server
+ * answers with an error. A lost connection is re-established in the background, waiting longer after each failed
+ * attempt, and the other connections carry the requests meanwhile.
+ *
+ * <p>Example:
+ * <pre>{@code
+ * try (AsyncMathClient client = new AsyncMathClient("localhost", 12345, "billing", 4, 1000, 5000)) {
+ *     client.open();
+ *     client.calculate("12+7*3").thenAccept(System.out::println);     // 33.0
+ *     BigDecimal total = client.calculateExact("0.1+0.2").join();     // 0.3
+ * }
+ * }</pre>
+ */
+public final class AsyncMathClient implements AutoCloseable {
+    private static final int CONNECT_TIMEOUT_MS = 5000;
+    private static final long MIN_RECONNECT_DELAY_MS = 100;
+    private static final long MAX_RECONNECT_DELAY_MS = 10_000;
+    private static final int WRITE_BUFFER_SIZE = 8192;
+    private static final byte[] END = new byte[0];      // Queued to stop a connection's writer thread
+
+    private final String host;
+    private final int port;
+    private final long timeoutMillis;
+    private final Semaphore inFlight;       // One permit per request that may be in flight across all connections
+    private final Connection[] connections;
+    private final AtomicInteger nextConnection = new AtomicInteger();  // Round-robin counter for spreading requests
+    private volatile boolean closed;
+
+    /**
+     * An error the server answered a request with
+     */
+    public static final class CalcException extends Exception {
+        private static final long serialVersionUID = 1L;
+
+        /**
+         * @param description The error description sent by the server, e.g. {@code Invalid Expression Format}
+         */
+        public CalcException(final String description) {
+            super(description);
+        }
+    }
+
+    /**
+     * Creates a client. No connection is made until {@link #open()}.
+     *
+     * @param host The server host
+     * @param port The server port
+     * @param clientName The name to join with; each connection joins as {@code <clientName>-<index>}
+     * @param connections The number of connections in the pool
+     * @param maxInFlight The most requests that may wait for an answer at once, across all connections
+     * @param timeoutMillis How long a request may wait for its answer before it fails
+     */
+    public AsyncMathClient(final String host, final int port, final String clientName, final int connections,
+                           final int maxInFlight, final long timeoutMillis) {
+        if (connections < 1 || maxInFlight < 1 || timeoutMillis < 1 || clientName.indexOf(':') >= 0) {
+            throw new IllegalArgumentException("Invalid client configuration");
+        }
+        this.host = host;
+        this.port = port;
+        this.timeoutMillis = timeoutMillis;
+        this.inFlight = new Semaphore(maxInFlight);
+        this.connections = new Connection[connections];
+        for (int i = 0; i < connections; i++) {
+            this.connections[i] = new Connection(clientName + "-" + i);
+        }
+    }
+
+    /**
+     * Connects and joins every connection of the pool. Connections that fail are retried in the background.
+     * @throws IOException if not a single connection could join the server
+     */
+    public void open() throws IOException {
+        IOException failure = null;
+        int joined = 0;
+        for (final Connection connection : connections) {
+            try {
+                connection.connect();
+                joined++;
+            } catch (IOException e) {
+                failure = e;
+                connection.scheduleReconnect();
+            }
+        }
+        if (joined == 0) {
+            close();
+            throw new IOException("Could not join " + host + ":" + port + ": " + failure.getMessage(), failure);
+        }
+    }
+
+    /**
+     * Evaluates an expression with floating-point arithmetic
+     * @param expression The arithmetic expression, e.g. {@code 12+7*3}
+     * @return the result, which may be infinite or NaN, as the server computes it
+     */
+    public CompletableFuture<Double> calculate(final String expression) {
+        return submit("CALC", expression, Double::valueOf);
+    }
+
+    /**
+     * Evaluates an expression with exact decimal arithmetic, see the server's {@code XCALC} request
+     * @param expression The arithmetic expression, e.g. {@code 0.1+0.2}
+     * @return the exact result, or the result rounded to the server's precision if it does not terminate
+     */
+    public CompletableFuture<BigDecimal> calculateExact(final String expression) {
+        return submit("XCALC", expression, BigDecimal::new);
+    }
+
+    /**
+     * @return the number of pool connections that are currently joined
+     */
+    public int connectedCount() {
+        int count = 0;
+        for (final Connection connection : connections) {
+            if (connection.isConnected()) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * Sends a request on the next joined connection, unless too many are already in flight
+     * @param command The request type, {@code CALC} or {@code XCALC}
+     * @param expression The expression
+     * @param parser Converts the result text of the response
+     * @return a future completed with the parsed result, or exceptionally as described for this class
+     */
+    private <T> CompletableFuture<T> submit(final String command, final String expression, final Function<String, T> parser) {
+        if (closed) {
+            return CompletableFuture.failedFuture(new IOException("Client is closed"));
+        }
+        if (expression.indexOf('\n') >= 0 || expression.indexOf('\r') >= 0) {
+            return CompletableFuture.failedFuture(new IllegalArgumentException("Expression contains a line break"));
+        }
+        if (!inFlight.tryAcquire()) {
+            return CompletableFuture.failedFuture(new RejectedExecutionException("Too many requests in flight"));
+        }
+
+        final CompletableFuture<String> response = new CompletableFuture<>();
+        response.whenComplete((result, error) -> inFlight.release());
+        final Connection connection = pick();
+        if (connection == null) {
+            response.completeExceptionally(new IOException("Not connected to " + host + ":" + port));
+        } else {
+            connection.send(command, expression, response);
+        }
+        return response.orTimeout(timeoutMillis, TimeUnit.MILLISECONDS).thenApply(parser);
+    }
+
+    /**
+     * @return the next joined connection in round-robin order, or {@code null} if none is joined
+     */
+    private Connection pick() {
+        final int start = nextConnection.getAndIncrement();
+        for (int i = 0; i < connections.length; i++) {
+            final Connection connection = connections[Math.floorMod(start + i, connections.length)];
+            if (connection.isConnected()) {
+                return connection;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Leaves the server on every connection and closes them, once the requests already sent are written or after
+     * {@value #CONNECT_TIMEOUT_MS} ms for a server that does not read them. Requests still waiting for an answer fail.
+     */
+    @Override
+    public void close() {
+        closed = true;
+        for (final Connection connection : connections) {
+            connection.leave();
+        }
+        final long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(CONNECT_TIMEOUT_MS);
+        for (final Connection connection : connections) {
+            connection.close(deadline);
+        }
+    }
+
+    /**
+     * One connection of the pool. Requests are registered and queued under the connection's lock, so that they are
+     * sent in the order they are registered in, and a writer virtual thread writes them out, batching whatever has
+     * queued up meanwhile. A reader virtual thread reads the responses and completes the matching futures without
+     * taking that lock. No socket I/O happens under the lock, so callers never wait for the server.
+     */
+    private final class Connection {
+        private final String name;
+        private final AtomicLong nextId = new AtomicLong();
+        private final Map<String, CompletableFuture<String>> pendingById = new ConcurrentHashMap<>();
+        private final ConcurrentLinkedQueue<CompletableFuture<String>> pendingInOrder = new ConcurrentLinkedQueue<>();
+        private final ReentrantLock lock = new ReentrantLock();
+        private volatile Socket socket;     // Written under lock; null while not joined
+        private BlockingQueue<byte[]> outbox;   // Messages waiting for the writer thread of the current socket, guarded by lock
+        private Thread writer;              // Guarded by lock
+        private volatile boolean requestIds;    // Whether the server confirmed request IDs at JOIN
+        private volatile String resultPrefix;   // "RES:<name>:" with the name the server acknowledged, for responses without IDs
+        private long reconnectDelay = MIN_RECONNECT_DELAY_MS;   // Only used by the reconnecting thread
+
+        Connection(final String name) {
+            this.name = name;
+        }
+
+        boolean isConnected() {
+            return socket != null;
+        }
+
+        /**
+         * Opens the socket, joins the server and starts reading responses
+         * @throws IOException if the server cannot be reached or does not acknowledge the JOIN
+         */
+        void connect() throws IOException {
+            final Socket s = new Socket();
+            try {
+                s.connect(new InetSocketAddress(host, port), CONNECT_TIMEOUT_MS);
+                s.setTcpNoDelay(true);
+                s.setSoTimeout(CONNECT_TIMEOUT_MS);     // Only while waiting for the ACK
+                final BufferedReader in = new BufferedReader(new InputStreamReader(s.getInputStream(), StandardCharsets.UTF_8));
+                s.getOutputStream().write(("JOIN:" + name + ":ids\n").getBytes(StandardCharsets.UTF_8));
+                final String ack = in.readLine();
+                if (ack == null || !ack.startsWith("ACK:")) {
+                    throw new IOException("No ACK received: " + ack);
+                }
+                s.setSoTimeout(0);
+                final OutputStream out = new BufferedOutputStream(s.getOutputStream(), WRITE_BUFFER_SIZE);
+                final BlockingQueue<byte[]> queue = new LinkedBlockingQueue<>();
+                lock.lock();
+                try {
+                    if (closed) {
+                        throw new IOException("Client is closed");
+                    }
+                    socket = s;
+                    outbox = queue;
+                    requestIds = ack.equals("ACK:" + name + ":Welcome:ids");
+                    resultPrefix = "RES:" + ack.substring(4, Math.max(ack.lastIndexOf(':'), 4)) + ":";  // A server without IDs takes ":ids" as part of the name
+                    writer = Thread.ofVirtual().name(name + "-writer").start(() -> writeRequests(s, out, queue));
+                } finally {
+                    lock.unlock();
+                }
+                Thread.ofVirtual().name(name + "-reader").start(() -> readResponses(s, in));
+            } catch (IOException e) {
+                s.close();
+                throw e;
+            }
+        }
+
+        /**
+         * Queues a request for the writer thread, registering its future so that the response can be matched to it
+         */
+        void send(final String command, final String expression, final CompletableFuture<String> response) {
+            lock.lock();
+            try {
+                if (socket == null) {
+                    response.completeExceptionally(new IOException("Connection " + name + " is not joined"));
+                    return;
+                }
+                final String message;
+                if (requestIds) {
+                    final String id = Long.toString(nextId.incrementAndGet());
+                    pendingById.put(id, response);
+                    response.whenComplete((result, error) -> pendingById.remove(id));     // Also after a timeout
+                    message = command + ":" + name + ":" + id + ":" + expression + "\n";
+                } else {
+                    pendingInOrder.add(response);   // Stays queued after a timeout, as its response still arrives in turn
+                    message = command + ":" + name + ":" + expression + "\n";
+                }
+                outbox.add(message.getBytes(StandardCharsets.UTF_8));
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Body of the writer thread: writes the queued messages in order, flushing once the queue is empty, until
+         * {@link #END} is taken or the connection fails
+         */
+        private void writeRequests(final Socket s, final OutputStream out, final BlockingQueue<byte[]> queue) {
+            try {
+                while (true) {
+                    final byte[] message = queue.take();
+                    if (message == END) {
+                        out.flush();
+                        return;
+                    }
+                    out.write(message);
+                    if (queue.isEmpty()) {
+                        out.flush();
+                    }
+                }
+            } catch (IOException e) {
+                lost(s, e);
+            } catch (InterruptedException e) {
+                lost(s, new IOException("Writer interrupted", e));
+            }
+        }
+
+        /**
+         * Body of the reader thread: completes the future of each response until the connection closes
+         */
+        private void readResponses(final Socket s, final BufferedReader in) {
+            try {
+                String line;
+                while ((line = in.readLine()) != null) {
+                    dispatch(line);
+                }
+                lost(s, new IOException("Connection " + name + " closed by the server"));
+            } catch (IOException e) {
+                lost(s, e);
+            }
+        }
+
+        /**
+         * Completes the future a response belongs to: the one with its ID, or else the oldest one waiting
+         */
+        private void dispatch(final String line) {
+            final boolean result = line.startsWith("RES:");
+            if (!result && !line.startsWith("ERR:")) {
+                return;     // Not a response to a calculation, e.g. the ACK to LEAVE
+            }
+            if (requestIds) {
+                // RES:<name>:<id>:<result> and ERR:<name>:<id>:<description>
+                final String[] parts = line.split(":", 4);
+                final CompletableFuture<String> response = parts.length == 4 ? pendingById.remove(parts[2]) : null;
+                if (response != null) {
+                    complete(response, result, parts[3]);
+                }
+                return;
+            }
+            // RES:<name>:<result> and ERR:<description>
+            final CompletableFuture<String> response = pendingInOrder.poll();
+            if (response != null) {
+                complete(response, result, result ? line.substring(Math.min(resultPrefix.length(), line.length())) : line.substring(4));
+            }
+        }
+
+        private void complete(final CompletableFuture<String> response, final boolean result, final String text) {
+            if (result) {
+                response.complete(text);
+            } else {
+                response.completeExceptionally(new CalcException(text));
+            }
+        }
+
+        /**
+         * Handles the loss of a connection: fails every request waiting on it and starts reconnecting, unless the
+         * socket has already been replaced or the client is closed
+         */
+        private void lost(final Socket s, final IOException cause) {
+            lock.lock();
+            try {
+                if (socket != s) {
+                    return;
+                }
+                socket = null;
+                outbox.add(END);
+                outbox = null;
+                writer = null;
+            } finally {
+                lock.unlock();
+            }
+            try {
+                s.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+            failPending(new IOException("Connection " + name + " lost: " + cause.getMessage(), cause));
+            if (!closed) {
+                scheduleReconnect();
+            }
+        }
+
+        private void failPending(final IOException error) {
+            for (final CompletableFuture<String> response : pendingById.values()) {
+                response.completeExceptionally(error);
+            }
+            CompletableFuture<String> response;
+            while ((response = pendingInOrder.poll()) != null) {
+                response.completeExceptionally(error);
+            }
+        }
+
+        /**
+         * Tries to join again on a virtual thread, doubling the delay after each failed attempt, until it succeeds or
+         * the client is closed
+         */
+        void scheduleReconnect() {
+            Thread.ofVirtual().name(name + "-reconnect").start(() -> {
+                while (!closed) {
+                    try {
+                        Thread.sleep(reconnectDelay);
+                        connect();
+                        reconnectDelay = MIN_RECONNECT_DELAY_MS;
+                        return;
+                    } catch (IOException e) {
+                        reconnectDelay = Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY_MS);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                }
+            });
+        }
+
+        /**
+         * Queues LEAVE after the requests already queued, as the last message the writer thread sends
+         */
+        void leave() {
+            lock.lock();
+            try {
+                if (socket != null) {
+                    outbox.add(("LEAVE:" + name + "\n").getBytes(StandardCharsets.UTF_8));
+                    outbox.add(END);
+                }
+            } finally {
+                lock.unlock();
+            }
+        }
+
+        /**
+         * Closes the socket once the writer thread has sent LEAVE, or at the deadline if it is still writing
+         * @param deadline When to stop waiting, from {@link System#nanoTime}
+         */
+        void close(final long deadline) {
+            final Socket s;
+            final Thread w;
+            lock.lock();
+            try {
+                s = socket;
+                w = writer;
+            } finally {
+                lock.unlock();
+            }
+            if (s != null) {
+                try {
+                    final long remaining = deadline - System.nanoTime();
+                    if (remaining > 0) {
+                        w.join(Duration.ofNanos(remaining));
+                    }
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                }
+                lost(s, new IOException("Client is closed"));
+            }
+        }
+    }
+}
@@ -0,0 +1,141 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Compact binary framing that a client can negotiate at JOIN as an alternative to the text protocol.
+ * After the text {@code ACK:<ClientName>:Welcome:binary} reply, both sides exchange frames of the form
+ * <pre>
+ *   int32  length      number of bytes that follow this field
+ *   byte   opcode      one of the constants below
+ *   int32  requestId   chosen by the client and echoed back in the reply
+ *   byte[] payload     length - 5 bytes
+ * </pre>
+ * All integers are big-endian. A {@link #RES} payload is the raw IEEE-754 bits of the result as a big-endian
+ * {@code double}; every other payload is UTF-8 text.
+ */
+final class BinaryProtocol {
+    static final byte CALC = 1;     // Client to server: payload is the arithmetic expression
+    static final byte RES = 2;      // Server to client: payload is the 8-byte result
+    static final byte ERR = 3;      // Server to client: payload is the error description
+    static final byte LEAVE = 4;    // Client to server: empty payload
+    static final byte ACK = 5;      // Server to client: payload is the server message, e.g. "Goodbye"
+    static final byte STATS = 6;    // Client to server: empty payload. Server to client: payload is the metrics, as in a text STATS reply
+    static final byte PING = 7;     // Client to server: empty payload, answered with PONG to keep an otherwise idle session open
+    static final byte PONG = 8;     // Server to client: empty payload
+
+    static final int HEADER_LENGTH = 5;             // Opcode and request id, which are included in the length field
+    static final int MAX_FRAME_LENGTH = 1 << 24;    // Largest length field accepted, to bound the memory used per frame
+
+    private BinaryProtocol() {}
+
+    /**
+     * Encodes a frame carrying a {@code double} result
+     * @param opcode The frame opcode
+     * @param requestId The request id the frame answers
+     * @param value The result
+     * @return the encoded frame, including its length field
+     */
+    static byte[] encode(final byte opcode, final int requestId, final double value) {
+        return ByteBuffer.allocate(4 + HEADER_LENGTH + 8)
+            .putInt(HEADER_LENGTH + 8).put(opcode).putInt(requestId).putDouble(value)
+            .array();
+    }
+
+    /**
+     * Encodes a frame carrying a {@code double} result straight into a connection's output
+     * @param out The output to append the frame to
+     * @param opcode The frame opcode
+     * @param requestId The request id the frame answers
+     * @param value The result
+     */
+    static void encode(final ResponseBuffer out, final byte opcode, final int requestId, final double value) {
+        out.appendInt(HEADER_LENGTH + 8).append(opcode).appendInt(requestId).appendDouble(value);
+    }
+
+    /**
+     * Encodes a frame carrying text
+     * @param opcode The frame opcode
+     * @param requestId The request id of the frame
+     * @param text The payload, which is encoded as UTF-8
+     * @return the encoded frame, including its length field
+     */
+    static byte[] encode(final byte opcode, final int requestId, final String text) {
+        final byte[] payload = text.getBytes(StandardCharsets.UTF_8);
+        return ByteBuffer.allocate(4 + HEADER_LENGTH + payload.length)
+            .putInt(HEADER_LENGTH + payload.length).put(opcode).putInt(requestId).put(payload)
+            .array();
+    }
+
+    /**
+     * Encodes a frame as it was read, e.g. to forward it unchanged
+     * @param frame The frame
+     * @return the encoded frame, including its length field
+     */
+    static byte[] encode(final Frame frame) {
+        return ByteBuffer.allocate(4 + HEADER_LENGTH + frame.payload.length)
+            .putInt(HEADER_LENGTH + frame.payload.length).put(frame.opcode).putInt(frame.requestId).put(frame.payload)
+            .array();
+    }
+
+    /**
+     * Validates the length field of an incoming frame
+     * @param length The value of the length field
+     * @throws IOException if the length cannot belong to a valid frame
+     */
+    static void checkLength(final int length) throws IOException {
+        if (length < HEADER_LENGTH || length > MAX_FRAME_LENGTH) {
+            throw new IOException("Invalid frame length " + length);
+        }
+    }
+
+    /**
+     * A frame read from a blocking stream
+     */
+    static final class Frame {
+        final byte opcode;
+        final int requestId;
+        final byte[] payload;
+
+        Frame(final byte opcode, final int requestId, final byte[] payload) {
+            this.opcode = opcode;
+            this.requestId = requestId;
+            this.payload = payload;
+        }
+
+        /**
+         * @return the payload decoded as UTF-8 text
+         */
+        String text() {
+            return new String(payload, StandardCharsets.UTF_8);
+        }
+
+        /**
+         * @return the payload decoded as a {@code double}
+         */
+        double value() {
+            return ByteBuffer.wrap(payload).getDouble();
+        }
+    }
+
+    /**
+     * Reads the next frame from a blocking stream
+     * @param in The stream to read from
+     * @return the frame, or {@code null} if the stream ended cleanly between two frames
+     * @throws IOException if reading fails, the stream ends in the middle of a frame, or the frame is too large
+     */
+    static Frame read(final DataInputStream in) throws IOException {
+        final int first = in.read();
+        if (first < 0) {
+            return null;
+        }
+        final int length = (first << 24) | (in.readUnsignedByte() << 16) | (in.readUnsignedByte() << 8) | in.readUnsignedByte();
+        checkLength(length);
+        final byte opcode = in.readByte();
+        final int requestId = in.readInt();
+        final byte[] payload = new byte[length - HEADER_LENGTH];
+        in.readFully(payload);
+        return new Frame(opcode, requestId, payload);
+    }
+}
@@ -0,0 +1,290 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveTask;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Offline batch mode: evaluates a file of expressions, one per line, and writes one result per line, in the same
+ * order, to an output file. Lines may end with {@code \n} or {@code \r\n}. Results are formatted exactly as in a
+ * {@code RES} message, and a malformed expression produces {@code ERR:<ErrorDescription>} on its line.
+ *
+ * <p>The input is memory-mapped one window at a time. Each window is cut at a line boundary and evaluated in parallel
+ * on a fork/join pool, which splits it into chunks of whole lines that are evaluated straight from the mapped bytes.
+ * The next window is evaluated while the results of the previous one are written, and at most two windows are in
+ * flight, so memory use does not grow with the size of the input.
+ */
+public class BulkEvaluator {
+    private static final int WINDOW_MB = 64;       // Default size of each mapped window of the input
+    private static final int CHUNK_KB = 256;       // Default amount of input below which a window is no longer split
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.US_ASCII);
+
+    private final ForkJoinPool pool;
+    private final long windowSize;
+    private final int chunkSize;
+    private final LongAdder linesDone = new LongAdder();
+    private final LongAdder bytesDone = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+
+    /**
+     * Creates a bulk evaluator
+     *
+     * @param parallelism The number of threads evaluating expressions
+     * @param windowSize The number of input bytes mapped and evaluated at a time
+     * @param chunkSize The number of input bytes below which a task evaluates its lines instead of splitting further
+     */
+    BulkEvaluator(final int parallelism, final long windowSize, final int chunkSize) {
+        this.pool = new ForkJoinPool(parallelism);
+        this.windowSize = windowSize;
+        this.chunkSize = chunkSize;
+    }
+
+    /**
+     * Entry point of the batch mode
+     *
+     * @param args The input file, the output file, and optionally {@code --parallelism=<N>}, {@code --window-mb=<N>}
+     *             and {@code --chunk-kb=<N>}
+     */
+    public static void main(String[] args) {
+        final List<String> files = new ArrayList<>();
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 0) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else {
+                files.add(arg);
+            }
+        }
+        if (files.size() != 2) {
+            System.err.println("Usage: BulkEvaluator <input file> <output file> [--parallelism=<N>] [--window-mb=<N>] [--chunk-kb=<N>]");
+            System.exit(2);
+        }
+
+        final BulkEvaluator evaluator = new BulkEvaluator(
+            Integer.parseInt(options.getOrDefault("parallelism", Integer.toString(Runtime.getRuntime().availableProcessors()))),
+            Math.min(Long.parseLong(options.getOrDefault("window-mb", Integer.toString(WINDOW_MB))), 1024) << 20,
+            Integer.parseInt(options.getOrDefault("chunk-kb", Integer.toString(CHUNK_KB))) << 10
+        );
+        try {
+            evaluator.run(Paths.get(files.get(0)), Paths.get(files.get(1)));
+        } catch (IOException e) {
+            System.err.println("Bulk evaluation failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Evaluates every line of the input file and writes the results to the output file, reporting progress every second
+     * @param input The file of expressions
+     * @param output The file to write the results to, which is replaced if it exists
+     * @throws IOException if either file cannot be read or written
+     */
+    void run(final Path input, final Path output) throws IOException {
+        final long start = System.nanoTime();
+        try (FileChannel in = FileChannel.open(input, StandardOpenOption.READ);
+             FileChannel out = FileChannel.open(output, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING)) {
+            final long size = in.size();
+            final Thread progress = new Thread(() -> reportProgress(size, start), "BulkProgress");
+            progress.setDaemon(true);
+            progress.start();
+
+            ForkJoinTask<List<byte[]>> pending = null;  // Results of the previous window, still being evaluated
+            long position = 0;
+            while (position < size) {
+                final MappedByteBuffer window = mapWindow(in, position, size);
+                position += window.limit();
+                final ForkJoinTask<List<byte[]>> next = pool.submit(new ChunkTask(window, 0, window.limit()));
+                if (pending != null) {
+                    write(out, pending.join());
+                }
+                pending = next;
+            }
+            if (pending != null) {
+                write(out, pending.join());
+            }
+            progress.interrupt();
+        } finally {
+            pool.shutdown();
+        }
+
+        final double seconds = (System.nanoTime() - start) / 1e9;
+        System.out.println(String.format(Locale.ROOT, "Evaluated %d expressions (%d errors) from %.1f MB in %.2f s: %.0f expressions/s, %.1f MB/s",
+            linesDone.sum(), errors.sum(), bytesDone.sum() / 1e6, seconds, linesDone.sum() / seconds, bytesDone.sum() / 1e6 / seconds));
+    }
+
+    /**
+     * Maps the next window of the input, ending just after the last line terminator in it, or at the end of the file.
+     * A window is grown until it holds at least one whole line.
+     */
+    private MappedByteBuffer mapWindow(final FileChannel in, final long position, final long size) throws IOException {
+        long length = Math.min(windowSize, size - position);
+        while (true) {
+            final MappedByteBuffer window = in.map(FileChannel.MapMode.READ_ONLY, position, length);
+            if (position + length == size) {
+                return window;
+            }
+            for (int i = (int) length - 1; i >= 0; i--) {
+                if (window.get(i) == '\n') {
+                    return window.limit(i + 1);
+                }
+            }
+            length = Math.min(Math.min(length * 2, size - position), Integer.MAX_VALUE);   // A single line longer than the window
+        }
+    }
+
+    private static void write(final FileChannel out, final List<byte[]> chunks) throws IOException {
+        for (final byte[] chunk : chunks) {
+            final ByteBuffer buffer = ByteBuffer.wrap(chunk);
+            while (buffer.hasRemaining()) {
+                out.write(buffer);
+            }
+        }
+    }
+
+    /**
+     * Body of the progress thread: prints how far the evaluation has got once per second until interrupted
+     */
+    private void reportProgress(final long size, final long start) {
+        try {
+            while (true) {
+                Thread.sleep(1000);
+                final double seconds = (System.nanoTime() - start) / 1e9;
+                System.out.println(String.format(Locale.ROOT, "%5.1f%%  %d expressions  %.0f expressions/s",
+                    size == 0 ? 100.0 : 100.0 * bytesDone.sum() / size, linesDone.sum(), linesDone.sum() / seconds));
+            }
+        } catch (InterruptedException ignored) {
+            // Evaluation finished
+        }
+    }
+
+    /**
+     * Evaluates the lines in a range of a mapped window, splitting it in half at a line boundary while it is larger than
+     * the chunk size. The result is the output for the range, as a list of byte arrays in input order.
+     */
+    @SuppressWarnings("serial")     // Forked within one run, never serialized
+    private final class ChunkTask extends RecursiveTask<List<byte[]>> {
+        private final ByteBuffer window;
+        private final int from;
+        private final int to;
+
+        ChunkTask(final ByteBuffer window, final int from, final int to) {
+            this.window = window;
+            this.from = from;
+            this.to = to;
+        }
+
+        @Override
+        protected List<byte[]> compute() {
+            if (to - from > chunkSize) {
+                int middle = from + (to - from) / 2;
+                while (middle < to && window.get(middle - 1) != '\n') {
+                    middle++;
+                }
+                if (middle < to) {
+                    final ChunkTask left = new ChunkTask(window, from, middle);
+                    final ChunkTask right = new ChunkTask(window, middle, to);
+                    left.fork();
+                    final List<byte[]> results = new ArrayList<>(right.compute());
+                    results.addAll(0, left.join());
+                    return results;
+                }
+            }
+            return List.of(evaluateLines());
+        }
+
+        private byte[] evaluateLines() {
+            final ByteSlice line = new ByteSlice(window);
+            byte[] output = new byte[Math.max(16, (to - from) * 2)];
+            int length = 0;
+            int lines = 0;
+            int start = from;
+            while (start < to) {
+                int end = start;
+                while (end < to && window.get(end) != '\n') {
+                    end++;
+                }
+                final int next = end + 1;
+                if (end > start && window.get(end - 1) == '\r') {
+                    end--;
+                }
+
+                String result;
+                try {
+                    result = MathServer.formatResult(Evaluator.evaluate(line.set(start, end)));
+                } catch (IllegalArgumentException e) {
+                    result = "ERR:" + e.getMessage();
+                    errors.increment();
+                }
+                if (length + result.length() + LINE_SEPARATOR.length > output.length) {
+                    output = Arrays.copyOf(output, Math.max(output.length * 2, length + result.length() + LINE_SEPARATOR.length));
+                }
+                for (int i = 0; i < result.length(); i++) {
+                    output[length++] = (byte) result.charAt(i);     // Results and error messages are plain ASCII
+                }
+                System.arraycopy(LINE_SEPARATOR, 0, output, length, LINE_SEPARATOR.length);
+                length += LINE_SEPARATOR.length;
+                start = next;
+                lines++;
+            }
+            linesDone.add(lines);
+            bytesDone.add(to - from);
+            return Arrays.copyOf(output, length);
+        }
+    }
+
+    /**
+     * A view of a range of ASCII bytes as a {@link CharSequence}, so expressions can be evaluated without copying them
+     * out of the mapped input. The range is moved from line to line with {@link #set}.
+     */
+    private static final class ByteSlice implements CharSequence {
+        private final ByteBuffer bytes;
+        private int offset;
+        private int length;
+
+        ByteSlice(final ByteBuffer bytes) {
+            this.bytes = bytes;
+        }
+
+        ByteSlice set(final int from, final int to) {
+            this.offset = from;
+            this.length = to - from;
+            return this;
+        }
+
+        @Override
+        public int length() {
+            return length;
+        }
+
+        @Override
+        public char charAt(final int index) {
+            return (char) (bytes.get(offset + index) & 0xFF);
+        }
+
+        @Override
+        public CharSequence subSequence(final int start, final int end) {
+            return new ByteSlice(bytes).set(offset + start, offset + end);
+        }
+
+        @Override
+        public String toString() {
+            final byte[] copy = new byte[length];
+            bytes.get(offset, copy);
+            return new String(copy, StandardCharsets.ISO_8859_1);
+        }
+    }
+}
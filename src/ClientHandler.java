@@ -0,0 +1,584 @@
+import java.nio.charset.Charset;
+import java.time.Duration;
+import java.time.Instant;
+import java.util.Arrays;
+import java.util.Set;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Handles the JOIN/CALC/LEAVE protocol for an individual client connection. How bytes are read from and
+ * written to the connection is left to the connection engine, which feeds every received line to
+ * {@link #handleLine} (or, once the client has negotiated the {@link BinaryProtocol}, every received frame to
+ * {@link #handleFrame}) and implements {@link #write} and {@link #close}.
+ *
+ * <p>Responses are encoded into a per-connection {@link ResponseBuffer} and written from there, at once or, when sent
+ * by a request processor, when its {@link WriteCoalescer} says so.
+ */
+abstract class ClientHandler {
+    private static final Set<String> FEATURES = Set.of("ids", "binary", "exact");   // Protocol extensions a client can ask for at JOIN
+    private static final String DEADLINE_FEATURE = "deadline=";     // Followed by the milliseconds the client's requests may wait
+    static final String RATE_LIMIT_EXCEEDED = "Rate Limit Exceeded";
+    private static final int OUTPUT_BUFFER_SIZE = 256;
+    static final int STREAM_THRESHOLD = 65_536;     // Default length of a CALC line at which its expression is evaluated as it arrives
+    private static final byte[] CALC_PREFIX = {'C', 'A', 'L', 'C', ':'};
+
+    protected final String clientAddr;
+    final ServerMetrics.Client metrics = new ServerMetrics.Client();   // Request counts and latencies of this connection
+    private final RequestQueue queue = MathServer.assignQueue();    // The processor queue that all of this client's ordered requests go to
+    private final TokenBucket rateLimiter;  // Limits how many expressions per second the client may send, or null if unlimited
+    private MathServer.CalcRequest stalled; // A request that did not fit in its full queue, while reading from the client is paused
+    private RequestQueue stalledQueue;
+    private SessionVariables variables;     // Created by the client's processor on the first SET or DEF
+    protected String clientName;
+    private boolean requestIds;     // Whether the client opted into CALC request ids at JOIN
+    private volatile boolean binary;    // Whether the client negotiated binary frames at JOIN
+    private boolean exact;      // Whether the client asked at JOIN for all of its calculations to use exact decimal arithmetic
+    private long deadlineNanos = MathServer.intOption("request-deadline", 0) * 1_000_000L;    // How long a request may wait for a processor, or 0 for no limit
+    private final ResponseBuffer output = new ResponseBuffer(OUTPUT_BUFFER_SIZE);  // Responses not yet written, guarded by itself
+    private final SessionReaper reaper = MathServer.sessionReaper;    // Closes the session once it goes quiet, or null if it may stay forever
+    volatile long lastActive;   // The reaper's tick when the last complete message was received
+    volatile long messageStarted = SessionReaper.NOT_READING;  // The reaper's tick when the message being received started
+    private final AtomicBoolean cleanedUp = new AtomicBoolean();
+    private final int streamThreshold = MathServer.intOption("stream-threshold", STREAM_THRESHOLD);
+    private StreamingEvaluator streaming;   // Evaluates long CALC expressions as they arrive, created for the first one
+    private boolean streamingLine;  // Whether the rest of the line being received is the expression of a streamed CALC
+    private String streamedId;      // The request id of the streamed CALC, or null if the client does not use request ids
+    private String discardedCommand;    // The command of an overlong line whose rest is being skipped, or null
+
+    /**
+     * Creates a new client handler for a connection from the given address
+     *
+     * @param clientAddr The remote address of the client, used for logging
+     */
+    ClientHandler(final String clientAddr) {
+        this.clientAddr = clientAddr;
+        final double rateLimit = Double.parseDouble(MathServer.option("rate-limit", "0"));
+        this.rateLimiter = rateLimit > 0
+            ? new TokenBucket(rateLimit, Double.parseDouble(MathServer.option("rate-burst", Double.toString(Math.max(rateLimit, 1)))))
+            : null;
+        ServerMetrics.connections.increment();
+    }
+
+    /**
+     * Parses a single message received from the client and handles it according to the protocol.
+     * @param line The message, without its line terminator
+     * @return {@code false} if the client asked to leave and the connection should be closed, {@code true} otherwise
+     */
+    boolean handleLine(final String line) {
+        received();
+        final String[] parts = line.split(":", 2);    // Parse the input from client
+
+        if (parts.length != 2) {
+            sendMessage("ERR:Invalid Expression Format");
+            MathServer.log("ERR", "UNKNOWN", "Malformed command");
+            return true;
+        }
+
+        final String cmd = parts[0];
+        switch (cmd) {  // Process the request from client
+            case "JOIN" -> handleJoin(parts[1]);
+            case "CALC" -> handleCalc(parts[1], false, exact);
+            case "CALCBATCH" -> handleCalc(parts[1], true, exact);
+            case "XCALC" -> handleCalc(parts[1], false, true);
+            case "XCALCBATCH" -> handleCalc(parts[1], true, true);
+            case "SET" -> handleAssign(parts[1], false);
+            case "DEF" -> handleAssign(parts[1], true);
+            case "STATS" -> sendMessage("STATS:" + parts[1] + ":" + ServerMetrics.describe() + "," + metrics.describe());
+            case "PING" -> sendMessage("PONG:" + parts[1]);
+            case "LEAVE" -> {
+                sendMessage("ACK:" + clientName + ":Goodbye");
+                return false;
+            }
+            default -> {
+                sendMessage("ERR:Invalid Expression Format");
+                MathServer.log("ERR", "UNKNOWN", "Unknown command: " + cmd);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Offers to take over the line being received, so that it need not be held whole. Called by the connection engine
+     * after adding each byte to the line. Once the line reaches {@code --stream-threshold} bytes, a plain {@code CALC}
+     * line is evaluated from then on as it arrives, by a {@link StreamingEvaluator}; any other line, as well as a
+     * {@code CALC} that cannot be streamed (an exact one, or one whose name or id does not fit in the threshold), is
+     * buffered until it is longer than {@code --max-expression-length} bytes, and then skipped and refused.
+     * @param bytes The bytes of the line received so far
+     * @param length The number of bytes received so far
+     * @return whether the engine should hand every further byte of the line to {@link #divertedByte} and call
+     *         {@link #endDivertedLine} at its end, instead of buffering it for {@link #handleLine}
+     */
+    boolean divertLine(final byte[] bytes, final int length) {
+        if (length == streamThreshold && startStreaming(bytes, length)) {
+            return true;
+        }
+        if (length > Evaluator.maxExpressionLength) {
+            int end = 0;
+            while (end < length && end < 16 && bytes[end] != ':') {     // Enough for any command, but not for all of a junk line
+                end++;
+            }
+            discardedCommand = new String(bytes, 0, end, Charset.defaultCharset());
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * Starts evaluating the expression of a {@code CALC} line as it arrives, if it is one that can be
+     * @return whether the line is now being streamed
+     */
+    private boolean startStreaming(final byte[] bytes, final int length) {
+        if (binary || exact || length < CALC_PREFIX.length || !Arrays.equals(bytes, 0, CALC_PREFIX.length, CALC_PREFIX, 0, CALC_PREFIX.length)) {
+            return false;
+        }
+        int start = indexOf(bytes, CALC_PREFIX.length, length, ':') + 1;   // Skip the client name
+        final int idStart = start;
+        if (start > 0 && requestIds) {
+            start = indexOf(bytes, start, length, ':') + 1;
+        }
+        if (start <= 0) {
+            return false;
+        }
+        streamedId = requestIds ? new String(bytes, idStart, start - 1 - idStart, Charset.defaultCharset()) : null;
+        if (streaming == null) {
+            streaming = new StreamingEvaluator(Evaluator.maxExpressionLength);
+        }
+        streaming.reset();
+        for (int i = start; i < length; i++) {
+            streaming.accept(bytes[i]);
+        }
+        streamingLine = true;
+        return true;
+    }
+
+    private static int indexOf(final byte[] bytes, final int from, final int to, final char c) {
+        for (int i = from; i < to; i++) {
+            if (bytes[i] == c) {
+                return i;
+            }
+        }
+        return -1;
+    }
+
+    /**
+     * Handles the next byte of a line taken over by {@link #divertLine}
+     * @param b The byte, which is never a line terminator
+     */
+    void divertedByte(final byte b) {
+        if (streamingLine) {
+            streaming.accept(b);
+        }
+    }
+
+    /**
+     * Handles the end of a line taken over by {@link #divertLine}: the result of a streamed {@code CALC} is queued to be
+     * sent in order with the client's other responses, while an overlong line is answered with
+     * {@code ERR:Expression Too Long}
+     */
+    void endDivertedLine() {
+        received();
+        if (!streamingLine) {
+            sendMessage("ERR:" + Evaluator.EXPRESSION_TOO_LONG);
+            MathServer.log("ERR", clientName != null ? clientName : "UNKNOWN", discardedCommand + " longer than " + Evaluator.maxExpressionLength + " bytes");
+            discardedCommand = null;
+            return;
+        }
+        streamingLine = false;
+        double value = Double.NaN;
+        String error = null;
+        try {
+            value = streaming.finish();
+        } catch (IllegalArgumentException e) {
+            error = e.getMessage();
+        }
+        final MathServer.CalcRequest req = new MathServer.CalcRequest(clientName, streamedId, streaming.summary(), this, value, error);
+        submit(requestIds ? MathServer.assignQueue() : queue, req);
+    }
+
+    /**
+     * Describes what the handler should do when handling a newly connected client
+     * @param payload The name of the client that joined, optionally followed by {@code :<Features>}, a comma-separated
+     *                list of protocol extensions the client wants to use
+     */
+    private void handleJoin(final String payload) {
+        final int sep = payload.lastIndexOf(':');
+        final String features = sep >= 0 ? payload.substring(sep + 1) : "";
+        String accepted = "";
+        if (sep >= 0 && isFeatureList(features)) {
+            clientName = payload.substring(0, sep);
+            for (final String feature : features.split(",")) {
+                switch (feature) {
+                    case "ids" -> requestIds = true;
+                    case "binary" -> binary = true;
+                    case "exact" -> exact = true;
+                    default -> deadlineNanos = Long.parseLong(feature.substring(DEADLINE_FEATURE.length())) * 1_000_000L;
+                }
+            }
+            accepted = ":" + features;
+        } else {
+            clientName = payload;   // Not a list of features, so the colon is part of the name
+        }
+
+        // Record both the assigned handler object and the join time for each client
+        MathServer.clients.put(clientName, this);
+        MathServer.connectTimes.put(clientName, Instant.now());
+        MathServer.log("CONNECT", clientName, "Connected from " + clientAddr);
+        sendMessage("ACK:" + clientName + ":Welcome" + accepted);     // Always a text line, even when switching to binary frames
+    }
+
+    /**
+     * @param features The text after the last colon of a JOIN payload
+     * @return whether {@code features} only lists protocol extensions that this server supports
+     */
+    static boolean isFeatureList(final String features) {
+        for (final String feature : features.split(",")) {
+            if (!FEATURES.contains(feature) && !isDeadline(feature)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private static boolean isDeadline(final String feature) {
+        if (!feature.startsWith(DEADLINE_FEATURE) || feature.length() == DEADLINE_FEATURE.length()
+            || feature.length() > DEADLINE_FEATURE.length() + 9) {
+            return false;
+        }
+        for (int i = DEADLINE_FEATURE.length(); i < feature.length(); i++) {
+            if (feature.charAt(i) < '0' || feature.charAt(i) > '9') {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return how long this client's calculation requests may wait for a processor before they are answered with
+     *         {@code ERR:Deadline Exceeded} instead of being evaluated, or 0 for no limit
+     */
+    long deadlineNanos() {
+        return deadlineNanos;
+    }
+
+    /**
+     * Describes what the handler should do to process a calculation request from a client
+     * @param payload An input string in the format {@code <ClientName>:<ArithmeticExpression>},
+     *                or {@code <ClientName>:<RequestId>:<ArithmeticExpression>} if the client uses request ids.
+     *                For a batch, the expression part holds several expressions separated by {@code ;}.
+     * @param batch Whether this is a CALCBATCH rather than a CALC request
+     * @param exact Whether to evaluate with exact decimal arithmetic rather than doubles
+     */
+    private void handleCalc(final String payload, final boolean batch, final boolean exact) {
+        final String[] parts = payload.split(":", requestIds ? 3 : 2);
+        if (parts.length != (requestIds ? 3 : 2)) {
+            sendMessage("ERR:Invalid Expression Format");
+            MathServer.log("ERR", clientName, "CALC missing expression");
+            return;
+        }
+        final MathServer.CalcRequest req = requestIds
+            ? new MathServer.CalcRequest(clientName, parts[1], parts[2], this, batch, exact)
+            : new MathServer.CalcRequest(clientName, null, parts[1], this, batch, exact);
+        // Tagged requests can be answered in any order, so they may be evaluated by any processor
+        submit(requestIds ? MathServer.assignQueue() : queue, req);
+    }
+
+    /**
+     * Describes what the handler should do to process a request assigning a session variable
+     * @param payload An input string in the format {@code <ClientName>:<Variable>=<Expression>}
+     * @param formula Whether this is a DEF request, which keeps the variable up to date, rather than a SET
+     */
+    private void handleAssign(final String payload, final boolean formula) {
+        final String[] parts = payload.split(":", 2);
+        final int eq = parts.length == 2 ? parts[1].indexOf('=') : -1;
+        if (eq < 0) {
+            sendMessage("ERR:Invalid Expression Format");
+            MathServer.log("ERR", clientName, (formula ? "DEF" : "SET") + " missing assignment");
+            return;
+        }
+        // Always the client's own queue, so that its session is only touched by one processor
+        submit(queue, new MathServer.CalcRequest(clientName, this, parts[1].substring(0, eq).trim(), parts[1].substring(eq + 1), formula));
+    }
+
+    /**
+     * @return the client's session variables. Only called by the processor of the client's own queue.
+     */
+    SessionVariables variables() {
+        if (variables == null) {
+            variables = new SessionVariables(this, MathServer.intOption("compile-threshold", MathServer.COMPILE_THRESHOLD));
+        }
+        return variables;
+    }
+
+    /**
+     * Queues a calculation request for evaluation, unless the client is over its rate limit or the queue is full and
+     * its overload policy refuses the request, in which case the client is sent an error instead
+     * @param target The processor queue to add the request to
+     * @param req The request
+     */
+    private void submit(final RequestQueue target, final MathServer.CalcRequest req) {
+        ServerMetrics.requestReceived(metrics);
+        if (rateLimiter != null && !rateLimiter.tryAcquire(req.batch ? expressionCount(req.expression) : 1)) {
+            sendError(req, RATE_LIMIT_EXCEEDED);
+            ServerMetrics.requestRefused(metrics, ServerMetrics.rateLimited);
+            return;
+        }
+        if (target.offer(req, readerMayBlock())) {
+            return;
+        }
+        if (target.policy() == RequestQueue.OverloadPolicy.BLOCK) {
+            stalled = req;      // The connection engine stops reading until retryStalled succeeds
+            stalledQueue = target;
+            ServerMetrics.blocked.increment();
+            return;
+        }
+        sendError(req, RequestQueue.SERVER_BUSY);
+        ServerMetrics.requestRefused(metrics, ServerMetrics.rejected);
+    }
+
+    private static int expressionCount(final String expressions) {
+        int count = 1;
+        for (int i = 0; i < expressions.length(); i++) {
+            if (expressions.charAt(i) == MathServer.BATCH_SEPARATOR) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    /**
+     * @return whether a request did not fit in its full queue, so that no further input should be handled until
+     *         {@link #retryStalled} succeeds. Only happens under the {@code block} overload policy when
+     *         {@link #readerMayBlock} is {@code false}.
+     */
+    boolean isStalled() {
+        return stalled != null;
+    }
+
+    /**
+     * Offers the stalled request to its queue again
+     * @return whether the request has now been queued, so that input can be handled again
+     */
+    boolean retryStalled() {
+        if (stalled == null || stalledQueue.offer(stalled, false)) {
+            stalled = null;
+            stalledQueue = null;
+            return true;
+        }
+        return false;
+    }
+
+    /**
+     * @return whether the thread handling this client's input may wait for room in a full queue. Engines that serve
+     *         many connections from one thread return {@code false}, and stop reading from the client while
+     *         {@link #isStalled} instead.
+     */
+    boolean readerMayBlock() {
+        return true;
+    }
+
+    /**
+     * Handles a single frame received from a client that negotiated the binary protocol
+     * @param frame The frame
+     * @return {@code false} if the client asked to leave and the connection should be closed, {@code true} otherwise
+     */
+    boolean handleFrame(final BinaryProtocol.Frame frame) {
+        received();
+        switch (frame.opcode) {
+            case BinaryProtocol.CALC ->
+                submit(MathServer.assignQueue(), new MathServer.CalcRequest(clientName, frame.requestId, frame.text(), this));
+            case BinaryProtocol.STATS ->
+                sendBytes(BinaryProtocol.encode(BinaryProtocol.STATS, frame.requestId, ServerMetrics.describe() + "," + metrics.describe()));
+            case BinaryProtocol.PING ->
+                sendBytes(BinaryProtocol.encode(BinaryProtocol.PONG, frame.requestId, ""));
+            case BinaryProtocol.LEAVE -> {
+                sendBytes(BinaryProtocol.encode(BinaryProtocol.ACK, frame.requestId, "Goodbye"));
+                return false;
+            }
+            default -> {
+                sendBytes(BinaryProtocol.encode(BinaryProtocol.ERR, frame.requestId, "Invalid Expression Format"));
+                MathServer.log("ERR", clientName, "Unknown frame opcode: " + frame.opcode);
+            }
+        }
+        return true;
+    }
+
+    /**
+     * @return whether the connection should now exchange binary frames instead of text lines
+     */
+    boolean isBinary() {
+        return binary;
+    }
+
+    /**
+     * Sends the result of a calculation request back to the client
+     * @param req The request that was evaluated
+     * @param value The result
+     * @param result The result, formatted for the text protocol
+     */
+    void sendResult(final MathServer.CalcRequest req, final double value, final String result) {
+        synchronized (output) {
+            if (binary) {
+                BinaryProtocol.encode(output, BinaryProtocol.RES, req.frameId, value);
+            } else {
+                output.append("RES:").append(req.clientName).append((byte) ':');
+                if (req.id != null) {
+                    output.append(req.id).append((byte) ':');
+                }
+                output.append(result).appendLineSeparator();
+            }
+            release();
+        }
+    }
+
+    /**
+     * Sends the results of a CALCBATCH request back to the client in one message
+     * @param req The batch request that was evaluated
+     * @param results The formatted result, or {@code ERR=<ErrorDescription>}, of each expression, separated by {@code ;}
+     */
+    void sendBatchResult(final MathServer.CalcRequest req, final CharSequence results) {
+        synchronized (output) {
+            output.append("RESBATCH:").append(req.clientName).append((byte) ':');
+            if (req.id != null) {
+                output.append(req.id).append((byte) ':');
+            }
+            output.append(results).appendLineSeparator();
+            release();
+        }
+    }
+
+    /**
+     * Tells the client that a calculation request failed
+     * @param req The request that failed
+     * @param error A description of the error
+     */
+    void sendError(final MathServer.CalcRequest req, final String error) {
+        if (binary) {
+            sendBytes(BinaryProtocol.encode(BinaryProtocol.ERR, req.frameId, error));
+            return;
+        }
+        synchronized (output) {
+            output.append("ERR:");
+            if (req.id != null) {
+                output.append(req.clientName).append((byte) ':').append(req.id).append((byte) ':');
+            }
+            output.append(error).appendLineSeparator();
+            release();
+        }
+    }
+
+    /**
+     * Starts closing the session if it goes quiet for longer than the configured timeouts. Called by the connection
+     * engine once the connection is set up.
+     */
+    void watchTimeouts() {
+        if (reaper != null) {
+            lastActive = reaper.now();
+            reaper.watch(this);
+        }
+    }
+
+    /**
+     * Records that a complete message was received
+     */
+    private void received() {
+        if (reaper != null) {
+            lastActive = reaper.now();
+            messageStarted = SessionReaper.NOT_READING;
+        }
+    }
+
+    /**
+     * Records that the first bytes of a message have been received, which starts its read timeout unless it has already
+     * started. Called by the connection engine.
+     */
+    void messageStarting() {
+        if (reaper != null && messageStarted == SessionReaper.NOT_READING) {
+            messageStarted = reaper.now();
+        }
+    }
+
+    /**
+     * Describes what the handler should do when a client disconnects from the server. May be called from any thread;
+     * only the first call has an effect.
+     */
+    void cleanup() {
+        if (!cleanedUp.compareAndSet(false, true)) {
+            return;
+        }
+        if (clientName != null) {
+            MathServer.clients.remove(clientName);
+            final Instant start = MathServer.connectTimes.remove(clientName);
+            final long secs = start != null ? Duration.between(start, Instant.now()).getSeconds() : 0;  // The number of seconds the client was connected to the server
+            MathServer.log("DISCONNECT", clientName, "Client disconnected after " + secs + " seconds");
+        }
+        close();
+    }
+
+    /**
+     * @return whether the session has ended, e.g. because the {@link SessionReaper} closed it
+     */
+    boolean isCleanedUp() {
+        return cleanedUp.get();
+    }
+
+    /**
+     * Utility function for sending text messages from the server to clients. May be called from any thread.
+     * @param msg The message to be sent to the connected client, without a line terminator
+     */
+    void sendMessage(final String msg) {
+        synchronized (output) {
+            output.append(msg).appendLineSeparator();
+            release();
+        }
+    }
+
+    /**
+     * Sends already encoded bytes to the client. May be called from any thread; each call is written as a whole.
+     * @param bytes The bytes to send
+     */
+    void sendBytes(final byte[] bytes) {
+        synchronized (output) {
+            output.append(bytes);
+            release();
+        }
+    }
+
+    /**
+     * Writes the output now, unless the calling thread's {@link WriteCoalescer} holds it back. Called with the output
+     * locked, after adding a whole response to it.
+     */
+    private void release() {
+        final WriteCoalescer coalescer = WriteCoalescer.current();
+        if (coalescer == null || !coalescer.hold(this, output.length())) {
+            writeOutput();
+        }
+    }
+
+    /**
+     * Writes any output that a {@link WriteCoalescer} held back
+     */
+    void flushOutput() {
+        synchronized (output) {
+            writeOutput();
+        }
+    }
+
+    private void writeOutput() {
+        if (output.length() > 0) {
+            write(output.array(), output.length());
+            output.reset();
+        }
+    }
+
+    /**
+     * Writes encoded responses to the client. Only called by one thread at a time, with the output locked.
+     * @param bytes The array holding the bytes to write, which is reused once this returns
+     * @param length The number of bytes to write, from the start of the array
+     */
+    abstract void write(byte[] bytes, int length);
+
+    /**
+     * Closes the underlying connection, ignoring any errors
+     */
+    abstract void close();
+}
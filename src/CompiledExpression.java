@@ -0,0 +1,239 @@
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.ToDoubleFunction;
+
+/**
+ * An arithmetic expression that has already been parsed by {@link Evaluator#compile}. It holds the postfix
+ * form of the expression as opcodes, so it can be evaluated again without scanning the original text, as well as
+ * the value that was computed while compiling it.
+ *
+ * <p>A formula compiled by {@link Evaluator#compileFormula} may also refer to variables. It is evaluated with the
+ * current value of each of its {@link #variables()}, in order, and has no value of its own.
+ *
+ * <p>Re-evaluation is tiered: {@link #evaluate(int)} interprets the opcodes until the expression has been evaluated a
+ * given number of times, then translates them once into a tree of lambdas specialized for each operator, which the
+ * JIT can inline, and uses that from then on. Constant sub-expressions are folded while translating. Folding and the
+ * lambdas perform exactly the same IEEE-754 operations in the same order as the interpreter, so the results are
+ * bit-identical. Only formulas are re-evaluated this way, by {@link SessionVariables} each time one of their inputs
+ * changes; an expression without variables would fold to a constant, so its value is simply reused instead.
+ */
+final class CompiledExpression {
+    static final byte PUSH = 0;     // Push the next constant; every other opcode is the operator character itself
+    static final byte LOAD = 1;     // Push the value of the variable whose index is the next constant
+    private static final int MAX_TRANSLATED_LENGTH = 4096;  // Longer expressions stay interpreted, as the lambda tree would nest too deeply
+    private static final String[] NO_VARIABLES = {};
+
+    static final LongAdder translations = new LongAdder();      // Expressions translated into lambdas
+    static final LongAdder translationNanos = new LongAdder();  // Total time spent translating
+
+    // Operand stack reused by every interpretation on the same thread
+    private static final ThreadLocal<double[]> STACK = ThreadLocal.withInitial(() -> new double[16]);
+
+    private final byte[] code;
+    private final double[] constants;
+    private final int maxDepth;
+    private final double value;
+    private final String[] variables;
+    private int evaluations;    // Interpreted evaluations so far; racy updates only make translation happen slightly later
+    private volatile ToDoubleFunction<double[]> translated;     // The lambda form, once the expression is hot
+
+    /**
+     * Creates a compiled expression. Only {@link Evaluator#compile} should call this, as the code is not validated.
+     *
+     * @param code The postfix opcodes
+     * @param constants The operands pushed by the {@link #PUSH} opcodes, in order
+     * @param maxDepth The largest number of operands on the stack at any point
+     * @param value The value of the expression
+     */
+    CompiledExpression(final byte[] code, final double[] constants, final int maxDepth, final double value) {
+        this(code, constants, maxDepth, value, NO_VARIABLES);
+    }
+
+    /**
+     * Creates a compiled formula. Only {@link Evaluator#compileFormula} should call this, as the code is not validated.
+     *
+     * @param code The postfix opcodes
+     * @param constants The operands pushed by the {@link #PUSH} opcodes and the variable indexes of the {@link #LOAD} opcodes, in order
+     * @param maxDepth The largest number of operands on the stack at any point
+     * @param value The value of the expression, which is meaningless if it has variables
+     * @param variables The names of the variables the formula refers to, in the order their values are passed to {@link #execute(double[])}
+     */
+    CompiledExpression(final byte[] code, final double[] constants, final int maxDepth, final double value, final String[] variables) {
+        this.code = code;
+        this.constants = constants;
+        this.maxDepth = maxDepth;
+        this.value = value;
+        this.variables = variables;
+    }
+
+    /**
+     * @return the value computed when the expression was compiled
+     */
+    double value() {
+        return value;
+    }
+
+    /**
+     * @return the names of the variables the formula refers to, each listed once; empty for a constant expression
+     */
+    String[] variables() {
+        return variables;
+    }
+
+    /**
+     * Evaluates the expression again, interpreting it while it is cold and running its translated form once it is hot
+     * @param threshold The number of interpreted evaluations after which the expression is translated, or 0 to always interpret
+     * @return the value of the expression, identical to {@link #value()}
+     */
+    double evaluate(final int threshold) {
+        return evaluate(threshold, null);
+    }
+
+    /**
+     * Evaluates the formula with the given variable values, interpreting it while it is cold and running its
+     * translated form once it is hot
+     * @param threshold The number of interpreted evaluations after which the formula is translated, or 0 to always interpret
+     * @param values The value of each of the {@link #variables()}, in the same order
+     * @return the value of the formula
+     */
+    double evaluate(final int threshold, final double[] values) {
+        final ToDoubleFunction<double[]> hot = translated;
+        if (hot != null) {
+            return hot.applyAsDouble(values);
+        }
+        if (threshold > 0 && ++evaluations >= threshold && code.length <= MAX_TRANSLATED_LENGTH) {
+            final long start = System.nanoTime();
+            final ToDoubleFunction<double[]> lambda = translate();
+            translationNanos.add(System.nanoTime() - start);
+            translations.increment();
+            translated = lambda;
+            return lambda.applyAsDouble(values);
+        }
+        return execute(values);
+    }
+
+    /**
+     * Evaluates the expression again by interpreting its postfix opcodes
+     * @return the value of the expression, identical to {@link #value()}
+     */
+    double execute() {
+        return execute(null);
+    }
+
+    /**
+     * Evaluates the formula by interpreting its postfix opcodes
+     * @param values The value of each of the {@link #variables()}, in the same order
+     * @return the value of the formula
+     */
+    double execute(final double[] values) {
+        double[] stack = STACK.get();
+        if (stack.length < maxDepth) {
+            stack = new double[maxDepth];
+            STACK.set(stack);
+        }
+
+        int top = 0;
+        int next = 0;   // Index of the next constant
+        for (final byte op : code) {
+            if (op == PUSH) {
+                stack[top++] = constants[next++];
+                continue;
+            }
+            if (op == LOAD) {
+                stack[top++] = values[(int) constants[next++]];
+                continue;
+            }
+            final double b = stack[--top];
+            final double a = stack[top - 1];
+            stack[top - 1] = switch (op) {
+                case '+' -> a + b;
+                case '-' -> a - b;
+                case '*' -> a * b;
+                case '/' -> a / b;
+                default -> a % b;
+            };
+        }
+        return stack[0];
+    }
+
+    /**
+     * Translates the postfix opcodes into a tree of lambdas, one per operator, folding every operator whose operands
+     * are both constants into a constant
+     * @return the root of the tree, which takes the variable values
+     */
+    private ToDoubleFunction<double[]> translate() {
+        final ToDoubleFunction<double[]>[] nodes = newNodes(maxDepth);
+        final double[] folded = new double[maxDepth];       // The value of each constant node
+        final boolean[] isConstant = new boolean[maxDepth];
+        int top = 0;
+        int next = 0;
+        for (final byte op : code) {
+            if (op == PUSH) {
+                folded[top] = constants[next++];
+                isConstant[top] = true;
+                nodes[top++] = null;
+                continue;
+            }
+            if (op == LOAD) {
+                final int index = (int) constants[next++];
+                isConstant[top] = false;
+                nodes[top++] = values -> values[index];
+                continue;
+            }
+            top--;
+            final int left = top - 1;
+            if (isConstant[left] && isConstant[top]) {
+                folded[left] = apply(op, folded[left], folded[top]);
+                continue;
+            }
+            nodes[left] = isConstant[top]
+                ? withConstantRight(op, node(nodes, folded, isConstant, left), folded[top])
+                : combine(op, node(nodes, folded, isConstant, left), nodes[top]);
+            isConstant[left] = false;
+        }
+        return node(nodes, folded, isConstant, 0);
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static ToDoubleFunction<double[]>[] newNodes(final int size) {
+        return new ToDoubleFunction[size];
+    }
+
+    private static ToDoubleFunction<double[]> node(final ToDoubleFunction<double[]>[] nodes, final double[] folded,
+                                                   final boolean[] isConstant, final int i) {
+        if (!isConstant[i]) {
+            return nodes[i];
+        }
+        final double constant = folded[i];
+        return values -> constant;
+    }
+
+    private static double apply(final byte op, final double a, final double b) {
+        return switch (op) {
+            case '+' -> a + b;
+            case '-' -> a - b;
+            case '*' -> a * b;
+            case '/' -> a / b;
+            default -> a % b;
+        };
+    }
+
+    private static ToDoubleFunction<double[]> combine(final byte op, final ToDoubleFunction<double[]> a, final ToDoubleFunction<double[]> b) {
+        return switch (op) {
+            case '+' -> values -> a.applyAsDouble(values) + b.applyAsDouble(values);
+            case '-' -> values -> a.applyAsDouble(values) - b.applyAsDouble(values);
+            case '*' -> values -> a.applyAsDouble(values) * b.applyAsDouble(values);
+            case '/' -> values -> a.applyAsDouble(values) / b.applyAsDouble(values);
+            default -> values -> a.applyAsDouble(values) % b.applyAsDouble(values);
+        };
+    }
+
+    private static ToDoubleFunction<double[]> withConstantRight(final byte op, final ToDoubleFunction<double[]> a, final double b) {
+        return switch (op) {
+            case '+' -> values -> a.applyAsDouble(values) + b;
+            case '-' -> values -> a.applyAsDouble(values) - b;
+            case '*' -> values -> a.applyAsDouble(values) * b;
+            case '/' -> values -> a.applyAsDouble(values) / b;
+            default -> values -> a.applyAsDouble(values) % b;
+        };
+    }
+}
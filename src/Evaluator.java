@@ -0,0 +1,454 @@
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Single-pass arithmetic evaluator used by {@link MathServer}.
+ * The expression is scanned one {@code char} at a time, numbers are parsed in place, and the
+ * Shunting Yard Algorithm is applied directly against primitive operand and operator stacks,
+ * so evaluating an expression does not allocate anything per token.
+ * <p>
+ * Results and accepted inputs are identical to the original regex/token-list pipeline: tokens
+ * are separated by whitespace and by the characters {@code ( ) + - * / %}, every other token must
+ * look like {@code \d+(\.\d+)?}, and any malformed input fails with "Invalid Expression Format".
+ * <p>
+ * The same pass can also {@linkplain #compile compile} an expression into postfix opcodes, so that callers that see
+ * the same expression repeatedly only have to parse it once. A {@linkplain #compileFormula formula} is compiled the
+ * same way, but may also refer to variables by name.
+ * <p>
+ * The scan itself does not depend on the kind of numbers: it hands every number token and every operator to an
+ * {@link Operands} stack, so that {@link ExactEvaluator} accepts exactly the same expressions with decimal arithmetic.
+ */
+final class Evaluator {
+    static final String INVALID_FORMAT = "Invalid Expression Format";
+    static final String NESTING_TOO_DEEP = "Nesting Too Deep";
+    static final String EXPRESSION_TOO_LONG = "Expression Too Long";
+    static final int MAX_NESTING_DEPTH = 1000;     // Default number of parentheses that may be open at once
+    static final int MAX_EXPRESSION_LENGTH = 16 << 20;  // Default length of the longest expression accepted
+
+    /**
+     * Number of parentheses that may be open at once in an expression. Set from {@code --max-nesting-depth} before the
+     * server starts.
+     */
+    static int maxNestingDepth = MAX_NESTING_DEPTH;
+
+    /**
+     * Length of the longest expression accepted, which also bounds the operand and operator stacks, as every entry
+     * takes at least one character, so that hostile input cannot grow them without end. Set from
+     * {@code --max-expression-length} before the server starts.
+     */
+    static int maxExpressionLength = MAX_EXPRESSION_LENGTH;
+
+    private static final long MAX_EXACT_MANTISSA = 1L << 53;  // Largest integer a double holds exactly
+    static final int MAX_MANTISSA_DIGITS = 18;      // Significant digits of a number gathered into a long while scanning it
+    private static final double[] POW10 = {
+        1e0, 1e1, 1e2, 1e3, 1e4, 1e5, 1e6, 1e7, 1e8, 1e9, 1e10, 1e11,
+        1e12, 1e13, 1e14, 1e15, 1e16, 1e17, 1e18, 1e19, 1e20, 1e21, 1e22
+    };
+
+    // Each thread keeps its own stacks so that they are reused across calls instead of reallocated
+    private static final ThreadLocal<Evaluator> LOCAL = ThreadLocal.withInitial(Evaluator::new);
+
+    private double[] values = new double[16];
+    private int valueCount;
+    private final Operands doubles = new DoubleOperands();
+    private char[] ops = new char[16];
+    private int opCount;
+
+    // Postfix output, only recorded while compiling
+    private boolean compiling;
+    private byte[] code = new byte[32];
+    private int codeLength;
+    private double[] constants = new double[16];
+    private int constantCount;
+    private int maxDepth;
+    private boolean variablesAllowed;   // Whether identifiers are accepted, as references to variables
+    private final List<String> variableNames = new ArrayList<>();
+
+    private Evaluator() {}
+
+    /**
+     * The operand stack of an evaluation, which {@link #scan} pushes the numbers it reads onto and applies the
+     * operators to, in postfix order
+     */
+    abstract static class Operands {
+        /**
+         * Empties the stack for a new expression
+         */
+        abstract void clear();
+
+        /**
+         * Pushes the value of a number token of the form {@code digits[.digits]}
+         * @param expr The expression
+         * @param start The index of the first character of the token
+         * @param end The index just past the token
+         * @param mantissa The first {@value Evaluator#MAX_MANTISSA_DIGITS} significant digits of the token, without the '.'
+         * @param digits The number of significant digits, i.e. without the leading zeros of the integer part; if
+         *               more than {@value Evaluator#MAX_MANTISSA_DIGITS}, {@code mantissa} is incomplete
+         * @param fractionDigits The number of digits after the '.'
+         */
+        abstract void pushNumber(CharSequence expr, int start, int end, long mantissa, int digits, int fractionDigits);
+
+        /**
+         * Pops the two topmost operands, applies {@code op} to them and pushes the result
+         * @throws IllegalArgumentException if there are fewer than two operands available, or the operation fails
+         */
+        abstract void apply(char op);
+
+        /**
+         * @return the number of operands on the stack
+         */
+        abstract int size();
+    }
+
+    /**
+     * The {@code double} operands, which also records the postfix form while compiling
+     */
+    private final class DoubleOperands extends Operands {
+        @Override
+        void clear() {
+            valueCount = 0;
+        }
+
+        @Override
+        void pushNumber(final CharSequence expr, final int start, final int end, final long mantissa, final int digits, final int fractionDigits) {
+            pushValue(numberValue(mantissa, digits, fractionDigits, expr.subSequence(start, end)));
+        }
+
+        @Override
+        void apply(final char op) {
+            Evaluator.this.apply(op);
+        }
+
+        @Override
+        int size() {
+            return valueCount;
+        }
+    }
+
+    /**
+     * Calculates the arithmetical value of the provided expression
+     * @param expression The arithmetic expression to evaluate
+     * @return the computed value of the expression
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    static double evaluate(final CharSequence expression) {
+        final Evaluator evaluator = LOCAL.get();
+        evaluator.compiling = false;
+        evaluator.variablesAllowed = false;
+        return evaluator.run(expression);
+    }
+
+    /**
+     * Parses the provided expression into its postfix form, computing its value at the same time
+     * @param expression The arithmetic expression to compile
+     * @return the compiled expression
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    static CompiledExpression compile(final CharSequence expression) {
+        final Evaluator evaluator = LOCAL.get();
+        evaluator.startCompiling(false);
+        final double value = evaluator.run(expression);
+        return new CompiledExpression(
+            Arrays.copyOf(evaluator.code, evaluator.codeLength),
+            Arrays.copyOf(evaluator.constants, evaluator.constantCount),
+            evaluator.maxDepth,
+            value
+        );
+    }
+
+    /**
+     * Parses the provided formula into its postfix form. Besides numbers, the formula may contain variable names
+     * made of letters, digits and underscores, not starting with a digit.
+     * @param formula The formula to compile
+     * @return the compiled formula, whose {@link CompiledExpression#variables()} lists every variable it refers to
+     * @throws IllegalArgumentException if the formula is malformed
+     */
+    static CompiledExpression compileFormula(final CharSequence formula) {
+        final Evaluator evaluator = LOCAL.get();
+        evaluator.startCompiling(true);
+        final double value = evaluator.run(formula);   // Only meaningful without variables, as they read as NaN here
+        return new CompiledExpression(
+            Arrays.copyOf(evaluator.code, evaluator.codeLength),
+            Arrays.copyOf(evaluator.constants, evaluator.constantCount),
+            evaluator.maxDepth,
+            value,
+            evaluator.variableNames.toArray(new String[0])
+        );
+    }
+
+    /**
+     * Runs the same scan as {@link #evaluate(CharSequence)} over an expression, with other arithmetic
+     * @param expression The arithmetic expression to evaluate
+     * @param operands The operand stack, which holds the value of the expression afterwards
+     * @throws IllegalArgumentException if the expression is malformed, or an operation of {@code operands} fails
+     */
+    static void scan(final CharSequence expression, final Operands operands) {
+        LOCAL.get().scan(expression, operands, false);
+    }
+
+    private void startCompiling(final boolean withVariables) {
+        compiling = true;
+        variablesAllowed = withVariables;
+        variableNames.clear();
+        codeLength = 0;
+        constantCount = 0;
+        maxDepth = 0;
+    }
+
+    private double run(final CharSequence expr) {
+        scan(expr, doubles, variablesAllowed);
+        return values[0];
+    }
+
+    /**
+     * Runs the Shunting Yard Algorithm over {@code expr}, applying each operator to {@code operands} as soon as it
+     * would have been written to the postfix output. This performs exactly the same operations, in the same order,
+     * as building the postfix list first and evaluating it afterwards.
+     * @param withVariables Whether identifiers are accepted, as references to variables, which only the
+     *                      {@code double} operands support
+     */
+    private void scan(final CharSequence expr, final Operands operands, final boolean withVariables) {
+        operands.clear();
+        opCount = 0;
+        int depth = 0;
+
+        // Leading and trailing control characters are ignored, just like String.trim()
+        int pos = 0;
+        int end = expr.length();
+        while (pos < end && expr.charAt(pos) <= ' ') {
+            pos++;
+        }
+        while (end > pos && expr.charAt(end - 1) <= ' ') {
+            end--;
+        }
+
+        while (pos < end) {
+            final char c = expr.charAt(pos);
+            if (isWhitespace(c)) {
+                pos++;
+            } else if (isOperator(c)) {
+                while (opCount > 0 && ops[opCount - 1] != '(' && precedence(ops[opCount - 1]) >= precedence(c)) {
+                    operands.apply(ops[--opCount]);
+                }
+                pushOp(c);
+                pos++;
+            } else if (c == '(') {
+                if (++depth > maxNestingDepth) {
+                    throw new IllegalArgumentException(NESTING_TOO_DEEP);
+                }
+                pushOp(c);
+                pos++;
+            } else if (c == ')') {
+                while (opCount > 0 && ops[opCount - 1] != '(') {
+                    operands.apply(ops[--opCount]);
+                }
+                if (opCount == 0) {
+                    throw new IllegalArgumentException(INVALID_FORMAT);
+                }
+                opCount--;  // Discard the matching '('
+                depth--;
+                pos++;
+            } else if (withVariables && isIdentifierStart(c)) {
+                pos = scanVariable(expr, pos, end);
+            } else {
+                pos = scanNumber(expr, pos, end, operands);
+            }
+        }
+        while (opCount > 0) {
+            final char op = ops[--opCount];
+            if (op == '(') {
+                throw new IllegalArgumentException(INVALID_FORMAT);
+            }
+            operands.apply(op);
+        }
+
+        if (operands.size() != 1) {
+            throw new IllegalArgumentException(INVALID_FORMAT);
+        }
+    }
+
+    /**
+     * Reads the number token starting at {@code start} and pushes its value onto the operand stack
+     * @return the index just past the end of the token
+     * @throws IllegalArgumentException if the token is not of the form {@code digits[.digits]}
+     */
+    private static int scanNumber(final CharSequence expr, final int start, final int end, final Operands operands) {
+        long mantissa = 0;
+        int digits = 0;     // Significant digits: leading zeros of the integer part do not count
+        int fractionDigits = 0;
+        int dot = -1;
+        int pos = start;
+        for (; pos < end; pos++) {
+            final char c = expr.charAt(pos);
+            if (c >= '0' && c <= '9') {
+                if (digits < MAX_MANTISSA_DIGITS) {
+                    mantissa = mantissa * 10 + (c - '0');
+                }
+                if (mantissa != 0 || dot >= 0) {
+                    digits++;
+                }
+                if (dot >= 0) {
+                    fractionDigits++;
+                }
+            } else if (c == '.' && dot < 0) {
+                if (pos == start) {
+                    throw new IllegalArgumentException(INVALID_FORMAT);
+                }
+                dot = pos;
+            } else if (isWhitespace(c) || isOperator(c) || c == '(' || c == ')') {
+                break;
+            } else {
+                throw new IllegalArgumentException(INVALID_FORMAT);
+            }
+        }
+        if (dot == pos - 1) {
+            throw new IllegalArgumentException(INVALID_FORMAT);   // A '.' must be followed by at least one digit
+        }
+        operands.pushNumber(expr, start, pos, mantissa, digits, fractionDigits);
+        return pos;
+    }
+
+    /**
+     * Computes the value of a number token from its digits, gathered while scanning it
+     * @param mantissa The first {@value #MAX_MANTISSA_DIGITS} significant digits of the token, without the '.'
+     * @param digits The number of significant digits
+     * @param fractionDigits The number of digits after the '.'
+     * @param token The token, only read if the value cannot be computed from {@code mantissa}
+     * @return the value, exactly as {@link Double#parseDouble} gives it
+     */
+    static double numberValue(final long mantissa, final int digits, final int fractionDigits, final CharSequence token) {
+        if (digits <= MAX_MANTISSA_DIGITS && mantissa <= MAX_EXACT_MANTISSA && fractionDigits < POW10.length) {
+            // Both operands are exact doubles, so the division is correctly rounded just like Double.parseDouble
+            return fractionDigits == 0 ? mantissa : mantissa / POW10[fractionDigits];
+        }
+        return Double.parseDouble(token.toString());
+    }
+
+    /**
+     * @return {@code (a op b)}, for one of the operators {@code + - * / %}
+     */
+    static double operate(final char op, final double a, final double b) {
+        return switch (op) {
+            case '+' -> a + b;
+            case '-' -> a - b;
+            case '*' -> a * b;
+            case '/' -> a / b;
+            default -> a % b;
+        };
+    }
+
+    /**
+     * @return the new size of a stack of {@code size} entries grown to make room for one more, which never exceeds
+     *         {@link #maxExpressionLength}
+     * @throws IllegalArgumentException if the stack already holds as many entries as the longest expression could
+     */
+    static int grownStackSize(final int size) {
+        if (size >= maxExpressionLength) {
+            throw new IllegalArgumentException(EXPRESSION_TOO_LONG);
+        }
+        return (int) Math.min(size * 2L, maxExpressionLength);
+    }
+
+    /**
+     * Reads the variable name starting at {@code start} and emits a load of it, pushing a placeholder operand
+     * @return the index just past the end of the name
+     * @throws IllegalArgumentException if the name runs into a character that cannot end a token
+     */
+    private int scanVariable(final CharSequence expr, final int start, final int end) {
+        int pos = start + 1;
+        while (pos < end && isIdentifierPart(expr.charAt(pos))) {
+            pos++;
+        }
+        if (pos < end && !isWhitespace(expr.charAt(pos)) && !isOperator(expr.charAt(pos))
+            && expr.charAt(pos) != '(' && expr.charAt(pos) != ')') {
+            throw new IllegalArgumentException(INVALID_FORMAT);
+        }
+
+        final String name = expr.subSequence(start, pos).toString();
+        int index = variableNames.indexOf(name);
+        if (index < 0) {
+            index = variableNames.size();
+            variableNames.add(name);
+        }
+        addConstant(index);
+        emit(CompiledExpression.LOAD);
+        maxDepth = Math.max(maxDepth, valueCount + 1);
+        if (valueCount == values.length) {
+            values = Arrays.copyOf(values, grownStackSize(valueCount));
+        }
+        values[valueCount++] = Double.NaN;
+        return pos;
+    }
+
+    /**
+     * Pops the two topmost operands, applies {@code op} to them and pushes the result
+     * @throws IllegalArgumentException if there are fewer than two operands available
+     */
+    private void apply(final char op) {
+        if (valueCount < 2) {
+            throw new IllegalArgumentException(INVALID_FORMAT);
+        }
+        if (compiling) {
+            emit((byte) op);
+        }
+        final double b = values[--valueCount];
+        values[valueCount - 1] = operate(op, values[valueCount - 1], b);
+    }
+
+    private void pushValue(final double value) {
+        if (compiling) {
+            addConstant(value);
+            emit(CompiledExpression.PUSH);
+            maxDepth = Math.max(maxDepth, valueCount + 1);
+        }
+        if (valueCount == values.length) {
+            values = Arrays.copyOf(values, grownStackSize(valueCount));
+        }
+        values[valueCount++] = value;
+    }
+
+    private void addConstant(final double value) {
+        if (constantCount == constants.length) {
+            constants = Arrays.copyOf(constants, constantCount * 2);
+        }
+        constants[constantCount++] = value;
+    }
+
+    private void emit(final byte opcode) {
+        if (codeLength == code.length) {
+            code = Arrays.copyOf(code, codeLength * 2);
+        }
+        code[codeLength++] = opcode;
+    }
+
+    private void pushOp(final char op) {
+        if (opCount == ops.length) {
+            ops = Arrays.copyOf(ops, grownStackSize(opCount));
+        }
+        ops[opCount++] = op;
+    }
+
+    static boolean isOperator(final char c) {
+        return c == '+' || c == '-' || c == '*' || c == '/' || c == '%';
+    }
+
+    static int precedence(final char op) {
+        return op == '+' || op == '-' ? 1 : 2;
+    }
+
+    static boolean isIdentifierStart(final char c) {
+        return (c >= 'a' && c <= 'z') || (c >= 'A' && c <= 'Z') || c == '_';
+    }
+
+    static boolean isIdentifierPart(final char c) {
+        return isIdentifierStart(c) || (c >= '0' && c <= '9');
+    }
+
+    /**
+     * Matches the characters of the regex class {@code \s}, which is what the original tokenizer split on
+     */
+    static boolean isWhitespace(final char c) {
+        return c == ' ' || c == '\t' || c == '\n' || c == '\u000B' || c == '\f' || c == '\r';
+    }
+}
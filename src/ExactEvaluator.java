@@ -0,0 +1,314 @@
+import java.math.BigDecimal;
+import java.math.BigInteger;
+import java.math.MathContext;
+import java.util.Arrays;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decimal arithmetic evaluator for clients that need exact results, such as {@code 0.1+0.2 = 0.3}. It accepts exactly
+ * the same expressions as {@link Evaluator}, as it is the operand stack of Evaluator's own single-pass Shunting Yard
+ * {@linkplain Evaluator#scan scan}, but every number is kept as a decimal instead of a {@code double}.
+ *
+ * <p>Values are held as a scaled {@code long} (an unscaled integer and a number of decimal places) for as long as the
+ * operands and intermediate results fit, which is exact and nearly as cheap as floating point. A value only falls back
+ * to {@link BigDecimal}, rounded to the configured {@link MathContext}, when an operation overflows 64 bits or a
+ * division does not terminate, and returns to the fast representation as soon as it fits again. Dividing by zero is an
+ * error rather than infinity.
+ */
+final class ExactEvaluator extends Evaluator.Operands {
+    static final String DIVISION_BY_ZERO = "Division By Zero";
+    static final String INEXACT_RESULT = "Inexact Result";
+
+    private static final int MAX_FAST_DIGITS = 18;  // Any number with this many digits fits in a long
+    private static final long[] POW10 = new long[MAX_FAST_DIGITS + 1];
+    private static final BigInteger MAX_FAST_UNSCALED = BigInteger.valueOf(Long.MAX_VALUE);
+
+    static final LongAdder fastPath = new LongAdder();  // Expressions evaluated entirely with scaled longs
+    static final LongAdder fallbacks = new LongAdder(); // Expressions that needed BigDecimal for at least one value
+
+    static {
+        POW10[0] = 1;
+        for (int i = 1; i < POW10.length; i++) {
+            POW10[i] = POW10[i - 1] * 10;
+        }
+    }
+
+    // Each thread keeps its own stack so that they are reused across calls instead of reallocated
+    private static final ThreadLocal<ExactEvaluator> LOCAL = ThreadLocal.withInitial(ExactEvaluator::new);
+
+    // The operand stack: each value is either unscaled / 10^scale, or big when that is not null
+    private long[] unscaled = new long[16];
+    private int[] scales = new int[16];
+    private BigDecimal[] big = new BigDecimal[16];
+    private int valueCount;
+    private MathContext context;
+    private boolean fellBack;   // Whether any value of the current expression needed BigDecimal
+
+    private ExactEvaluator() {}
+
+    /**
+     * Calculates the exact decimal value of the provided expression
+     * @param expression The arithmetic expression to evaluate
+     * @param context The precision and rounding mode used when a result does not fit in a scaled {@code long}
+     * @return the value, formatted without an exponent or trailing zeros, e.g. {@code 0.3} or {@code 33}
+     * @throws IllegalArgumentException if the expression is malformed, divides by zero, or has a result that
+     *         {@code context} cannot hold, e.g. {@code 1/3} with unlimited precision or rounding {@code UNNECESSARY}
+     */
+    static String evaluate(final CharSequence expression, final MathContext context) {
+        final ExactEvaluator evaluator = LOCAL.get();
+        evaluator.context = context;
+        evaluator.fellBack = false;
+        final String result;
+        try {
+            Evaluator.scan(expression, evaluator);
+            result = evaluator.big[0] != null ? format(evaluator.big[0]) : format(evaluator.unscaled[0], evaluator.scales[0]);
+        } finally {
+            Arrays.fill(evaluator.big, 0, evaluator.big.length, null);  // Do not keep large values reachable between calls
+        }
+        (evaluator.fellBack ? fallbacks : fastPath).increment();
+        return result;
+    }
+
+    @Override
+    void clear() {
+        valueCount = 0;
+    }
+
+    @Override
+    int size() {
+        return valueCount;
+    }
+
+    /**
+     * Pushes the exact value of a number token, as a scaled long if its digits fit in one
+     */
+    @Override
+    void pushNumber(final CharSequence expr, final int start, final int end, final long mantissa, final int digits, final int fractionDigits) {
+        if (digits <= Evaluator.MAX_MANTISSA_DIGITS) {
+            pushValue(mantissa, fractionDigits);
+        } else {
+            pushBig(new BigDecimal(expr.subSequence(start, end).toString()));
+        }
+    }
+
+    /**
+     * Pops the two topmost operands, applies {@code op} to them and pushes the result, using scaled longs when the
+     * result fits and BigDecimal otherwise
+     * @throws IllegalArgumentException if there are fewer than two operands available, on division by zero, or if
+     *         the result cannot be rounded with the context
+     */
+    @Override
+    void apply(final char op) {
+        if (valueCount < 2) {
+            throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);
+        }
+        final int b = --valueCount;
+        final int a = valueCount - 1;
+        if (big[a] == null && big[b] == null && applyFast(op, a, b)) {
+            return;
+        }
+        final BigDecimal x = decimal(a);
+        final BigDecimal y = decimal(b);
+        valueCount--;
+        if ((op == '/' || op == '%') && y.signum() == 0) {
+            throw new IllegalArgumentException(DIVISION_BY_ZERO);
+        }
+        final BigDecimal result;
+        try {
+            result = switch (op) {
+                case '+' -> x.add(y, context);
+                case '-' -> x.subtract(y, context);
+                case '*' -> x.multiply(y, context);
+                case '/' -> x.divide(y, context);
+                default -> x.remainder(y).round(context);
+            };
+        } catch (ArithmeticException e) {
+            throw new IllegalArgumentException(INEXACT_RESULT);     // The result needs rounding that the context forbids
+        }
+        pushBig(result);
+    }
+
+    /**
+     * Applies {@code op} to two scaled longs, replacing the first operand with the result
+     * @return {@code false}, leaving both operands untouched, if the result does not fit in a scaled long
+     */
+    private boolean applyFast(final char op, final int a, final int b) {
+        long x = unscaled[a];
+        long y = unscaled[b];
+        switch (op) {
+            case '*' -> {
+                if (!productFits(x, y)) {
+                    return false;
+                }
+                unscaled[a] = x * y;
+                scales[a] += scales[b];
+                return true;
+            }
+            case '/' -> {
+                if (y == 0) {
+                    throw new IllegalArgumentException(DIVISION_BY_ZERO);
+                }
+                return divideFast(a, x, y, scales[a] - scales[b]);
+            }
+            default -> {
+                if (op == '%' && y == 0) {
+                    throw new IllegalArgumentException(DIVISION_BY_ZERO);
+                }
+                final int scale = Math.max(scales[a], scales[b]);
+                final int shiftX = scale - scales[a];
+                final int shiftY = scale - scales[b];
+                if (shiftX > MAX_FAST_DIGITS || shiftY > MAX_FAST_DIGITS
+                    || !productFits(x, POW10[shiftX]) || !productFits(y, POW10[shiftY])) {
+                    return false;
+                }
+                x *= POW10[shiftX];     // Align both operands to the same scale
+                y *= POW10[shiftY];
+                final long result;
+                switch (op) {
+                    case '+' -> {
+                        result = x + y;
+                        if (((x ^ result) & (y ^ result)) < 0) {
+                            return false;
+                        }
+                    }
+                    case '-' -> {
+                        result = x - y;
+                        if (((x ^ y) & (x ^ result)) < 0) {
+                            return false;
+                        }
+                    }
+                    default -> result = x % y;
+                }
+                unscaled[a] = result;
+                scales[a] = scale;
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Divides two scaled longs if the quotient terminates within the digits a long can hold
+     * @param scale The scale of the quotient of the unscaled values
+     */
+    private boolean divideFast(final int a, final long x, final long y, final int scale) {
+        if (!terminates(x, y)) {
+            return false;
+        }
+        for (int extra = 0; extra <= MAX_FAST_DIGITS && productFits(x, POW10[extra]); extra++) {
+            final long dividend = x * POW10[extra];
+            if (dividend % y == 0) {
+                if (dividend == Long.MIN_VALUE && y == -1) {
+                    return false;
+                }
+                long quotient = dividend / y;
+                int resultScale = scale + extra;
+                if (resultScale < 0) {
+                    if (-resultScale > MAX_FAST_DIGITS || !productFits(quotient, POW10[-resultScale])) {
+                        return false;
+                    }
+                    quotient *= POW10[-resultScale];
+                    resultScale = 0;
+                }
+                unscaled[a] = quotient;
+                scales[a] = resultScale;
+                return true;
+            }
+        }
+        return false;   // Needs more digits than fit
+    }
+
+    /**
+     * @return whether {@code x / y} has a finite decimal expansion, i.e. whether {@code y} divided by the greatest
+     *         common divisor of both has no prime factors other than 2 and 5
+     */
+    private static boolean terminates(final long x, final long y) {
+        long gcd = x;
+        long rest = y;
+        while (rest != 0) {
+            final long r = gcd % rest;
+            gcd = rest;
+            rest = r;
+        }
+        long d = y / gcd;
+        d >>= Long.numberOfTrailingZeros(d);
+        d = Math.abs(d);
+        while (d % 5 == 0) {
+            d /= 5;
+        }
+        return d == 1;
+    }
+
+    /**
+     * Overflow check that, unlike {@link Math#multiplyExact}, does not throw, as falling back must stay cheap
+     * @return whether {@code x * y} fits in a long
+     */
+    private static boolean productFits(final long x, final long y) {
+        return Math.multiplyHigh(x, y) == (x * y) >> 63;
+    }
+
+    private BigDecimal decimal(final int i) {
+        return big[i] != null ? big[i] : BigDecimal.valueOf(unscaled[i], scales[i]);
+    }
+
+    /**
+     * Pushes a BigDecimal result, turning it back into a scaled long if it fits
+     */
+    private void pushBig(final BigDecimal value) {
+        fellBack = true;
+        final BigDecimal stripped = value.signum() == 0 ? BigDecimal.ZERO : value.stripTrailingZeros();
+        if (stripped.scale() >= 0 && stripped.unscaledValue().abs().compareTo(MAX_FAST_UNSCALED) <= 0) {
+            pushValue(stripped.unscaledValue().longValue(), stripped.scale());
+        } else {
+            ensureCapacity();
+            big[valueCount++] = stripped;
+        }
+    }
+
+    private void pushValue(final long value, final int scale) {
+        ensureCapacity();
+        unscaled[valueCount] = value;
+        scales[valueCount] = scale;
+        big[valueCount++] = null;
+    }
+
+    private void ensureCapacity() {
+        if (valueCount == unscaled.length) {
+            final int size = Evaluator.grownStackSize(valueCount);
+            unscaled = Arrays.copyOf(unscaled, size);
+            scales = Arrays.copyOf(scales, size);
+            big = Arrays.copyOf(big, size);
+        }
+    }
+
+    /**
+     * Formats a scaled long as a plain decimal without trailing zeros
+     */
+    static String format(long value, int scale) {
+        while (scale > 0 && value % 10 == 0) {
+            value /= 10;
+            scale--;
+        }
+        final String digits = Long.toString(value);
+        if (scale == 0) {
+            return digits;
+        }
+        final boolean negative = value < 0;
+        final String magnitude = negative ? digits.substring(1) : digits;
+        final StringBuilder sb = new StringBuilder(magnitude.length() + scale + 3);
+        if (negative) {
+            sb.append('-');
+        }
+        if (magnitude.length() <= scale) {
+            sb.append("0.");
+            sb.append("0".repeat(scale - magnitude.length()));
+            sb.append(magnitude);
+        } else {
+            sb.append(magnitude, 0, magnitude.length() - scale).append('.').append(magnitude, magnitude.length() - scale, magnitude.length());
+        }
+        return sb.toString();
+    }
+
+    private static String format(final BigDecimal value) {
+        return value.stripTrailingZeros().toPlainString();
+    }
+}
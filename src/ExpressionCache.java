@@ -0,0 +1,165 @@
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Bounded cache of compiled expressions, keyed by the expression text, that lets the request processors skip
+ * parsing expressions they have already seen. Expressions that failed to parse are remembered in a separate,
+ * smaller negative cache, so that repeated malformed input is rejected without parsing it again and cannot push
+ * valid expressions out of the main cache.
+ * <p>
+ * Both caches are split into independently locked segments with least-recently-used eviction, so the processors
+ * rarely contend with each other. Each cache is bounded both by its number of entries and by the total length of the
+ * expressions it holds, which the size of their compiled forms grows with, so that a client sending many distinct long
+ * expressions cannot fill the heap with them.
+ */
+final class ExpressionCache {
+    private static final int SEGMENTS = 16;
+
+    private final Segment<CompiledExpression>[] compiled;
+    private final Segment<String>[] invalid;     // The error of each malformed expression
+    private final boolean cacheResults;
+
+    final LongAdder hits = new LongAdder();
+    final LongAdder misses = new LongAdder();
+    final LongAdder evictions = new LongAdder();
+    final LongAdder negativeHits = new LongAdder();
+    final LongAdder negativeEvictions = new LongAdder();
+
+    /**
+     * Creates an empty cache
+     *
+     * @param capacity The maximum number of compiled expressions kept; {@code 0} disables the cache
+     * @param negativeCapacity The maximum number of malformed expressions remembered; {@code 0} disables the negative cache
+     * @param maxChars The maximum total length of the expressions kept by each of the two caches. An expression too long
+     *                 to fit in its share of a cache is not cached at all.
+     * @param cacheResults Whether cached expressions return the value computed when they were compiled,
+     *                     rather than interpreting their compiled form on every request
+     */
+    ExpressionCache(final int capacity, final int negativeCapacity, final long maxChars, final boolean cacheResults) {
+        this.compiled = segments(capacity, maxChars, evictions);
+        this.invalid = segments(negativeCapacity, maxChars, negativeEvictions);
+        this.cacheResults = cacheResults;
+    }
+
+    /**
+     * Calculates the value of an expression, reusing its compiled form if it has been seen recently
+     * @param expression The arithmetic expression to evaluate
+     * @return the computed value of the expression
+     * @throws IllegalArgumentException if the expression is malformed
+     */
+    double evaluate(final String expression) {
+        if (compiled == null) {
+            return Evaluator.evaluate(expression);
+        }
+
+        final int hash = spread(expression.hashCode());
+        final Segment<CompiledExpression> segment = compiled[hash & (SEGMENTS - 1)];
+        final CompiledExpression cached = segment.get(expression);
+        if (cached != null) {
+            hits.increment();
+            return cacheResults ? cached.value() : cached.execute();
+        }
+
+        final Segment<String> invalidSegment = invalid != null ? invalid[hash & (SEGMENTS - 1)] : null;
+        final String error = invalidSegment != null ? invalidSegment.get(expression) : null;
+        if (error != null) {
+            negativeHits.increment();
+            throw new IllegalArgumentException(error);     // The same error it failed with the first time
+        }
+
+        misses.increment();
+        final CompiledExpression expr;
+        try {
+            expr = Evaluator.compile(expression);
+        } catch (IllegalArgumentException e) {
+            if (invalidSegment != null) {
+                invalidSegment.put(expression, e.getMessage());
+            }
+            throw e;
+        }
+        segment.put(expression, expr);
+        return expr.value();
+    }
+
+    /**
+     * @return a one-line summary of the cache counters
+     */
+    String stats() {
+        return String.format("hits=%d misses=%d evictions=%d size=%d negativeHits=%d negativeEvictions=%d negativeSize=%d compiled=%d compileTime=%dus",
+            hits.sum(), misses.sum(), evictions.sum(), size(compiled), negativeHits.sum(), negativeEvictions.sum(), size(invalid),
+            CompiledExpression.translations.sum(), CompiledExpression.translationNanos.sum() / 1_000);
+    }
+
+    private static int size(final Segment<?>[] segments) {
+        int size = 0;
+        if (segments != null) {
+            for (final Segment<?> segment : segments) {
+                size += segment.size();
+            }
+        }
+        return size;
+    }
+
+    private static int spread(final int hash) {
+        return hash ^ (hash >>> 16);    // Mix the high bits into the low bits that pick the segment
+    }
+
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    private static <V> Segment<V>[] segments(final int capacity, final long maxChars, final LongAdder evictions) {
+        if (capacity <= 0 || maxChars <= 0) {
+            return null;
+        }
+        final Segment<V>[] segments = new Segment[SEGMENTS];
+        final int perSegment = Math.max(1, (capacity + SEGMENTS - 1) / SEGMENTS);
+        final long charsPerSegment = Math.max(1, (maxChars + SEGMENTS - 1) / SEGMENTS);
+        for (int i = 0; i < SEGMENTS; i++) {
+            segments[i] = new Segment<>(perSegment, charsPerSegment, evictions);
+        }
+        return segments;
+    }
+
+    /**
+     * One independently locked part of a cache, evicting its least recently used entries while it holds too many, or
+     * too long, expressions
+     */
+    private static final class Segment<V> {
+        private final LinkedHashMap<String, V> entries;
+        private final int capacity;
+        private final long maxChars;
+        private final LongAdder evictions;
+        private long chars;     // Total length of the keys
+
+        Segment(final int capacity, final long maxChars, final LongAdder evictions) {
+            // Access order, so that the eldest entry is always the least recently used one
+            this.entries = new LinkedHashMap<>(capacity * 2, 0.75f, true);
+            this.capacity = capacity;
+            this.maxChars = maxChars;
+            this.evictions = evictions;
+        }
+
+        synchronized V get(final String key) {
+            return entries.get(key);
+        }
+
+        synchronized void put(final String key, final V value) {
+            if (key.length() > maxChars) {
+                return;     // It would push out everything else and still not fit
+            }
+            if (entries.put(key, value) == null) {
+                chars += key.length();
+            }
+            final Iterator<Map.Entry<String, V>> eldest = entries.entrySet().iterator();
+            while (entries.size() > capacity || chars > maxChars) {
+                chars -= eldest.next().getKey().length();
+                eldest.remove();
+                evictions.increment();
+            }
+        }
+
+        synchronized int size() {
+            return entries.size();
+        }
+    }
+}
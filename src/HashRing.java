@@ -0,0 +1,82 @@
+import java.nio.charset.StandardCharsets;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.function.Predicate;
+
+/**
+ * Consistent hash ring that maps keys to nodes. Each node is placed on the ring at several pseudo-random points (its
+ * virtual nodes), and a key belongs to the first node clockwise from the key's own hash. Adding or removing a node
+ * therefore only moves the keys of the ring segments it owns, and the virtual nodes spread those keys evenly over the
+ * remaining nodes. Lookups can skip nodes that are currently unavailable, in which case their keys go to the next
+ * available node along the ring, and return to it once it is available again.
+ *
+ * <p>Not thread-safe for updates: the nodes are all added at startup, before the ring is shared.
+ *
+ * @param <N> The type of the nodes
+ */
+final class HashRing<N> {
+    private final TreeMap<Long, N> ring = new TreeMap<>();
+    private final int virtualNodes;
+
+    /**
+     * Creates an empty ring
+     *
+     * @param virtualNodes The number of points each node is placed at on the ring
+     */
+    HashRing(final int virtualNodes) {
+        this.virtualNodes = virtualNodes;
+    }
+
+    /**
+     * Places a node on the ring
+     * @param node The node
+     * @param id A name that identifies the node, such as its address, which decides where it is placed
+     */
+    void add(final N node, final String id) {
+        for (int i = 0; i < virtualNodes; i++) {
+            ring.put(hash(id + "#" + i), node);
+        }
+    }
+
+    /**
+     * Finds the node a key belongs to, skipping unavailable nodes
+     * @param key The key, e.g. a client name
+     * @param available Whether a node may currently be chosen
+     * @return the first available node clockwise from the key, or {@code null} if no node is available
+     */
+    N lookup(final String key, final Predicate<N> available) {
+        if (ring.isEmpty()) {
+            return null;
+        }
+        final long hash = hash(key);
+        for (Map.Entry<Long, N> entry : ring.tailMap(hash, true).entrySet()) {
+            if (available.test(entry.getValue())) {
+                return entry.getValue();
+            }
+        }
+        for (Map.Entry<Long, N> entry : ring.headMap(hash, false).entrySet()) {     // Wrap around
+            if (available.test(entry.getValue())) {
+                return entry.getValue();
+            }
+        }
+        return null;
+    }
+
+    /**
+     * 64-bit FNV-1a over the UTF-8 bytes, followed by a final avalanche step so that similar strings, like the
+     * virtual node names of one node, land far apart on the ring
+     */
+    static long hash(final String s) {
+        long h = 0xcbf29ce484222325L;
+        for (final byte b : s.getBytes(StandardCharsets.UTF_8)) {
+            h ^= b & 0xFF;
+            h *= 0x100000001b3L;
+        }
+        h ^= h >>> 33;
+        h *= 0xff51afd7ed558ccdL;
+        h ^= h >>> 33;
+        h *= 0xc4ceb9fe1a85ec53L;
+        h ^= h >>> 33;
+        return h;
+    }
+}
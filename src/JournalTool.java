@@ -0,0 +1,310 @@
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.PriorityQueue;
+
+/**
+ * Answers questions about the requests recorded in a {@link RequestJournal} by scanning its segments directly, e.g. the
+ * slowest requests, the totals of each client, or which errors occurred how often. The segments are memory-mapped and
+ * only the fields a query needs are decoded, so scanning takes a fraction of a second per million requests. The journal
+ * of a running server can be queried as well; the scan covers the requests answered up to that point.
+ */
+public class JournalTool {
+    private static final int LIMIT = 10;   // Default number of rows of a report
+    private static final DateTimeFormatter TIME_FORMAT = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss.SSS").withZone(ZoneId.systemDefault());
+
+    private final String client;    // Only requests from this client are counted, or all if null
+    private final long since;       // Only requests answered at or after this time, in milliseconds since the epoch, are counted
+    private final long until;       // Only requests answered before this time are counted
+    private final int limit;
+    private long scannedRecords;
+    private long scannedBytes;
+
+    /**
+     * Creates a tool that reports on the matching requests only
+     *
+     * @param client The client whose requests are counted, or {@code null} for every client
+     * @param since The earliest answer time counted, in milliseconds since the epoch
+     * @param until The answer time from which requests are no longer counted, in milliseconds since the epoch
+     * @param limit The number of rows of a report
+     */
+    JournalTool(final String client, final long since, final long until, final int limit) {
+        this.client = client;
+        this.since = since;
+        this.until = until;
+        this.limit = limit;
+    }
+
+    /**
+     * Entry point of the query tool
+     *
+     * @param args The journal directory, the query ({@code summary}, {@code slowest}, {@code clients} or {@code errors}),
+     *             and optionally {@code --client=<name>}, {@code --since=<time>}, {@code --until=<time>} and {@code --limit=<N>}
+     */
+    public static void main(String[] args) {
+        final List<String> positional = new ArrayList<>();
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 0) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        if (positional.size() != 2 || !List.of("summary", "slowest", "clients", "errors").contains(positional.get(1))) {
+            System.err.println("Usage: JournalTool <journal directory> <summary|slowest|clients|errors> [--client=<name>]"
+                + " [--since=<time>] [--until=<time>] [--limit=<N>]");
+            System.err.println("Times are ISO-8601, e.g. 2025-04-15T14:30:00 in local time or 2025-04-15T12:30:00Z");
+            System.exit(2);
+        }
+
+        final JournalTool tool = new JournalTool(
+            options.get("client"),
+            options.containsKey("since") ? parseTime(options.get("since")) : Long.MIN_VALUE,
+            options.containsKey("until") ? parseTime(options.get("until")) : Long.MAX_VALUE,
+            Integer.parseInt(options.getOrDefault("limit", Integer.toString(LIMIT)))
+        );
+        final Path directory = Paths.get(positional.get(0));
+        try {
+            if (!Files.isDirectory(directory)) {
+                throw new IOException("No journal directory " + directory);
+            }
+            final long start = System.nanoTime();
+            switch (positional.get(1)) {
+                case "summary" -> tool.summary(directory);
+                case "slowest" -> tool.slowest(directory);
+                case "clients" -> tool.clients(directory);
+                default -> tool.errors(directory);
+            }
+            final double seconds = (System.nanoTime() - start) / 1e9;
+            System.out.println(String.format(Locale.ROOT, "Scanned %d requests (%.1f MB) in %.3f s",
+                tool.scannedRecords, tool.scannedBytes / 1e6, seconds));
+        } catch (IOException e) {
+            System.err.println("Query failed: " + e.getMessage());
+            System.exit(1);
+        }
+    }
+
+    private static long parseTime(final String text) {
+        try {
+            return Instant.parse(text).toEpochMilli();
+        } catch (DateTimeParseException e) {
+            return LocalDateTime.parse(text).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+        }
+    }
+
+    /**
+     * @return the segment files of the journal, oldest first
+     * @throws IOException if the directory cannot be listed or holds no segments
+     */
+    private List<Path> segments(final Path directory) throws IOException {
+        final List<Path> segments = RequestJournal.segments(directory);
+        if (segments.isEmpty()) {
+            throw new IOException("No journal segments in " + directory);
+        }
+        return segments;
+    }
+
+    /**
+     * Moves a cursor to the next request that matches the filters
+     * @return whether there was one
+     */
+    private boolean next(final RequestJournal.Cursor cursor) {
+        while (cursor.next()) {
+            scannedRecords++;
+            if (cursor.timestamp < since || cursor.timestamp >= until) {
+                continue;
+            }
+            if (client != null && !client.equals(cursor.client())) {
+                continue;
+            }
+            return true;
+        }
+        scannedBytes += cursor.position();
+        return false;
+    }
+
+    /**
+     * Prints the number of matching requests, their time range, outcomes and average and longest timings
+     */
+    void summary(final Path directory) throws IOException {
+        final List<Path> segments = segments(directory);
+        long requests = 0;
+        long errors = 0;
+        long exact = 0;
+        long batches = 0;
+        long first = Long.MAX_VALUE;
+        long last = Long.MIN_VALUE;
+        long queueTotal = 0;
+        long queueMax = 0;
+        long evalTotal = 0;
+        long evalMax = 0;
+        for (final Path segment : segments) {
+            final RequestJournal.Cursor cursor = new RequestJournal.Cursor(segment);
+            while (next(cursor)) {
+                requests++;
+                if ((cursor.flags & RequestJournal.ERROR) != 0) {
+                    errors++;
+                }
+                if ((cursor.flags & RequestJournal.EXACT) != 0) {
+                    exact++;
+                }
+                if ((cursor.flags & RequestJournal.BATCH) != 0) {
+                    batches++;
+                }
+                first = Math.min(first, cursor.timestamp);
+                last = Math.max(last, cursor.timestamp);
+                queueTotal += cursor.queueNanos;
+                queueMax = Math.max(queueMax, cursor.queueNanos);
+                evalTotal += cursor.evalNanos;
+                evalMax = Math.max(evalMax, cursor.evalNanos);
+            }
+        }
+        System.out.println("Segments: " + segments.size() + ", requests: " + requests);
+        if (requests == 0) {
+            return;
+        }
+        System.out.println("From " + TIME_FORMAT.format(Instant.ofEpochMilli(first)) + " to " + TIME_FORMAT.format(Instant.ofEpochMilli(last))
+            + (last > first ? String.format(Locale.ROOT, " (%.1f requests/s)", requests * 1e3 / (last - first)) : ""));
+        System.out.println(String.format(Locale.ROOT, "Errors: %d (%.2f%%), exact: %d, batches: %d",
+            errors, 100.0 * errors / requests, exact, batches));
+        System.out.println(String.format(Locale.ROOT, "Queue wait (us): mean=%.1f max=%.1f", queueTotal / 1e3 / requests, queueMax / 1e3));
+        System.out.println(String.format(Locale.ROOT, "Evaluation (us): mean=%.1f max=%.1f", evalTotal / 1e3 / requests, evalMax / 1e3));
+    }
+
+    /**
+     * A request kept for a report, with its texts decoded
+     */
+    private record Entry(long timestamp, long queueNanos, long evalNanos, String client, String expression, String outcome, byte flags) {
+        long totalNanos() {
+            return queueNanos + evalNanos;
+        }
+    }
+
+    /**
+     * Prints the matching requests that spent the longest time in the server, queue wait and evaluation together,
+     * longest first. Only the candidates for the report are decoded, keeping the current ones in a bounded heap.
+     */
+    void slowest(final Path directory) throws IOException {
+        final PriorityQueue<Entry> heap = new PriorityQueue<>(Comparator.comparingLong(Entry::totalNanos));
+        for (final Path segment : segments(directory)) {
+            final RequestJournal.Cursor cursor = new RequestJournal.Cursor(segment);
+            while (next(cursor)) {
+                final long total = cursor.queueNanos + cursor.evalNanos;
+                if (heap.size() == limit && (limit == 0 || total <= heap.peek().totalNanos())) {
+                    continue;
+                }
+                heap.add(new Entry(cursor.timestamp, cursor.queueNanos, cursor.evalNanos, cursor.client(), cursor.expression(), cursor.outcome(), cursor.flags));
+                if (heap.size() > limit) {
+                    heap.poll();
+                }
+            }
+        }
+        final List<Entry> entries = new ArrayList<>(heap);
+        entries.sort(Comparator.comparingLong(Entry::totalNanos).reversed());
+        for (final Entry entry : entries) {
+            final boolean error = (entry.flags() & RequestJournal.ERROR) != 0;
+            System.out.println(String.format(Locale.ROOT, "%s  %s  total=%.1fus queue=%.1fus eval=%.1fus  %s %s %s",
+                TIME_FORMAT.format(Instant.ofEpochMilli(entry.timestamp())), entry.client(), entry.totalNanos() / 1e3,
+                entry.queueNanos() / 1e3, entry.evalNanos() / 1e3, abbreviate(entry.expression()), error ? "->" : "=",
+                error ? "ERR:" + entry.outcome() : abbreviate(entry.outcome())));
+        }
+    }
+
+    /**
+     * Totals of one client's requests
+     */
+    private static final class ClientTotals {
+        final String name;
+        long requests;
+        long errors;
+        long evalTotal;
+        long evalMax;
+        long queueTotal;
+
+        ClientTotals(final String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Prints the number of requests, errors and average and longest timings of the clients with the most requests
+     */
+    void clients(final Path directory) throws IOException {
+        final Map<String, ClientTotals> totals = new HashMap<>();
+        for (final Path segment : segments(directory)) {
+            final RequestJournal.Cursor cursor = new RequestJournal.Cursor(segment);
+            while (next(cursor)) {
+                final ClientTotals client = totals.computeIfAbsent(cursor.client(), ClientTotals::new);
+                client.requests++;
+                if ((cursor.flags & RequestJournal.ERROR) != 0) {
+                    client.errors++;
+                }
+                client.evalTotal += cursor.evalNanos;
+                client.evalMax = Math.max(client.evalMax, cursor.evalNanos);
+                client.queueTotal += cursor.queueNanos;
+            }
+        }
+        final List<ClientTotals> sorted = new ArrayList<>(totals.values());
+        sorted.sort(Comparator.comparingLong((ClientTotals c) -> c.requests).reversed());
+        System.out.println(String.format(Locale.ROOT, "%-20s %12s %10s %14s %14s %16s", "Client", "Requests", "Errors",
+            "Mean eval us", "Max eval us", "Mean queue us"));
+        for (final ClientTotals client : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            System.out.println(String.format(Locale.ROOT, "%-20s %12d %10d %14.1f %14.1f %16.1f", client.name, client.requests,
+                client.errors, client.evalTotal / 1e3 / client.requests, client.evalMax / 1e3, client.queueTotal / 1e3 / client.requests));
+        }
+        if (sorted.size() > limit) {
+            System.out.println("... and " + (sorted.size() - limit) + " more clients");
+        }
+    }
+
+    /**
+     * Prints how often each error description occurred, most frequent first, with the first expression that caused it
+     */
+    void errors(final Path directory) throws IOException {
+        final Map<String, long[]> counts = new HashMap<>();
+        final Map<String, String> examples = new HashMap<>();
+        long total = 0;
+        for (final Path segment : segments(directory)) {
+            final RequestJournal.Cursor cursor = new RequestJournal.Cursor(segment);
+            while (next(cursor)) {
+                if ((cursor.flags & RequestJournal.ERROR) == 0) {
+                    continue;
+                }
+                final String error = cursor.outcome();
+                final long[] count = counts.get(error);
+                if (count == null) {
+                    counts.put(error, new long[] {1});
+                    examples.put(error, cursor.expression());
+                } else {
+                    count[0]++;
+                }
+                total++;
+            }
+        }
+        final List<Map.Entry<String, long[]>> sorted = new ArrayList<>(counts.entrySet());
+        sorted.sort(Comparator.comparingLong((Map.Entry<String, long[]> e) -> e.getValue()[0]).reversed());
+        System.out.println("Errors: " + total);
+        for (final Map.Entry<String, long[]> entry : sorted.subList(0, Math.min(limit, sorted.size()))) {
+            System.out.println(String.format(Locale.ROOT, "%12d  %-30s e.g. %s", entry.getValue()[0], entry.getKey(),
+                abbreviate(examples.get(entry.getKey()))));
+        }
+    }
+
+    private static String abbreviate(final String text) {
+        return text.length() <= 60 ? text : text.substring(0, 57) + "...";
+    }
+}
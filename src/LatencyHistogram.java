@@ -0,0 +1,103 @@
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * A lock-free histogram of latencies in nanoseconds with a relative precision of about 0.1% across the whole range.
+ * Values below 2048 ns are counted exactly; above that, each power-of-two range is split into 1024 equal buckets,
+ * so the error of a reported percentile is at most one part in 1024 of the value. Any number of threads may record
+ * concurrently while another reads percentiles.
+ */
+final class LatencyHistogram {
+    private static final int SUB_BUCKET_BITS = 10;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;    // Buckets per power of two above the exact range
+    private static final int EXACT_LIMIT = SUB_BUCKETS << 1;        // Values below this each have their own bucket
+    private static final int MAX_BIT = 40;                          // Values of 2^40 ns (about 18 minutes) or more are clamped
+    private static final long MAX_VALUE = (1L << MAX_BIT) - 1;
+
+    private final AtomicLongArray counts = new AtomicLongArray(EXACT_LIMIT + (MAX_BIT - SUB_BUCKET_BITS - 1) * SUB_BUCKETS);
+    private final LongAdder total = new LongAdder();
+    private final LongAdder sum = new LongAdder();
+    private final AtomicLong max = new AtomicLong();
+
+    /**
+     * Records one latency
+     * @param nanos The latency in nanoseconds; negative values are recorded as 0
+     */
+    void record(final long nanos) {
+        final long value = Math.min(Math.max(nanos, 0), MAX_VALUE);
+        counts.incrementAndGet(indexOf(value));
+        total.increment();
+        sum.add(value);
+        max.accumulateAndGet(value, Math::max);
+    }
+
+    /**
+     * @return the number of latencies recorded
+     */
+    long count() {
+        return total.sum();
+    }
+
+    /**
+     * @return the largest latency recorded in nanoseconds, or 0 if none was
+     */
+    long max() {
+        return max.get();
+    }
+
+    /**
+     * @return the mean latency in nanoseconds, or 0 if none was recorded
+     */
+    double mean() {
+        final long n = total.sum();
+        return n == 0 ? 0 : (double) sum.sum() / n;
+    }
+
+    /**
+     * Finds the latency that the given percentage of recorded latencies do not exceed
+     * @param percentile The percentile, from 0 to 100
+     * @return the latency in nanoseconds, rounded up to the top of its bucket but never above the maximum recorded, or 0 if none was recorded
+     */
+    long percentile(final double percentile) {
+        final long n = total.sum();
+        if (n == 0) {
+            return 0;
+        }
+        final long rank = Math.max(1, (long) Math.ceil(percentile / 100 * n));
+        long seen = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            seen += counts.get(i);
+            if (seen >= rank) {
+                return Math.min(highestValueAt(i), max.get());
+            }
+        }
+        return max.get();
+    }
+
+    /**
+     * Maps a value to its bucket
+     * @param value The value, between 0 and {@link #MAX_VALUE}
+     * @return the bucket index
+     */
+    private static int indexOf(final long value) {
+        if (value < EXACT_LIMIT) {
+            return (int) value;
+        }
+        final int shift = 63 - Long.numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        return EXACT_LIMIT + (shift - 1) * SUB_BUCKETS + (int) (value >>> shift) - SUB_BUCKETS;
+    }
+
+    /**
+     * @param index A bucket index
+     * @return the largest value that maps to the bucket
+     */
+    private static long highestValueAt(final int index) {
+        if (index < EXACT_LIMIT) {
+            return index;
+        }
+        final int shift = (index - EXACT_LIMIT) / SUB_BUCKETS + 1;
+        final long subBucket = (index - EXACT_LIMIT) % SUB_BUCKETS + SUB_BUCKETS;
+        return ((subBucket + 1) << shift) - 1;
+    }
+}
@@ -0,0 +1,293 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Headless load generator for MathServer. Runs many concurrent client sessions from one JVM, each on its own
+ * virtual threads, sends random expressions for a fixed duration, and reports throughput, error rate and latency
+ * percentiles at the end.
+ *
+ * <p>In closed-loop mode each session keeps a fixed number of requests outstanding and sends the next one as soon as a
+ * result arrives, so the offered load adapts to the server. In open-loop mode requests are sent on a fixed schedule
+ * regardless of how fast results come back, and latency is measured from when a request was due rather than when it
+ * was actually sent, so a stalled server shows up in the percentiles instead of silently lowering the load.
+ */
+final class LoadGenerator {
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(5);  // How long to wait for outstanding results after the run
+
+    private final String host;
+    private final int port;
+    private final boolean binary;
+    private final int connections;
+    private final double rate;              // Total requests per second across all sessions, or 0 for a closed loop
+    private final int outstanding;          // Most requests a session has in flight at once
+    private final long durationNanos;
+    private final long warmupNanos;         // Results received this long after the start are not recorded
+    private final int minTerms;
+    private final int maxTerms;
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder completed = new LongAdder();
+    private final LongAdder errors = new LongAdder();
+    private final LongAdder failedSessions = new LongAdder();
+    private final LongAdder measuredRequests = new LongAdder();   // Results received after the warmup, successful or not
+
+    private long startNanos;
+
+    /**
+     * Creates a load generator
+     * @param host The server host
+     * @param port The server port
+     * @param binary Whether sessions use the binary protocol rather than text messages
+     * @param connections The number of concurrent sessions
+     * @param rate Total requests per second to send across all sessions (open loop), or 0 to send each request as soon as
+     *             a session has fewer than {@code outstanding} in flight (closed loop)
+     * @param outstanding The most requests a session has in flight at once
+     * @param durationSeconds How long to send requests for
+     * @param warmupSeconds How long after the start to wait before recording results
+     * @param minTerms The fewest operands in a generated expression
+     * @param maxTerms The most operands in a generated expression
+     */
+    LoadGenerator(final String host, final int port, final boolean binary, final int connections, final double rate,
+                  final int outstanding, final int durationSeconds, final int warmupSeconds, final int minTerms, final int maxTerms) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+        this.connections = connections;
+        this.rate = rate;
+        this.outstanding = outstanding;
+        this.durationNanos = TimeUnit.SECONDS.toNanos(durationSeconds);
+        this.warmupNanos = TimeUnit.SECONDS.toNanos(warmupSeconds);
+        this.minTerms = minTerms;
+        this.maxTerms = maxTerms;
+    }
+
+    /**
+     * Runs all sessions to completion and prints the report
+     * @throws InterruptedException If interrupted while waiting for the sessions
+     */
+    void run() throws InterruptedException {
+        System.out.println("Load test: " + connections + " connections, "
+            + (rate > 0 ? "open loop at " + rate + " requests/s" : "closed loop") + ", "
+            + outstanding + " outstanding per connection, " + TimeUnit.NANOSECONDS.toSeconds(durationNanos) + " s"
+            + (warmupNanos > 0 ? " after " + TimeUnit.NANOSECONDS.toSeconds(warmupNanos) + " s warmup" : "")
+            + ", " + (binary ? "binary" : "text") + " protocol");
+
+        startNanos = System.nanoTime();
+        final Thread[] sessions = new Thread[connections];
+        for (int i = 0; i < connections; i++) {
+            final Session session = new Session(i);
+            sessions[i] = Thread.ofVirtual().name("LoadSession-" + i).start(session::run);
+        }
+        for (Thread session : sessions) {
+            session.join();
+        }
+        report();
+    }
+
+    /**
+     * Prints the totals, throughput over the measured period, and latency percentiles
+     */
+    private void report() {
+        final long total = sent.sum();
+        final long done = completed.sum();
+        final long failed = errors.sum();
+        final double seconds = (durationNanos - Math.min(warmupNanos, durationNanos)) / 1e9;
+        System.out.println("Requests: " + total + " sent, " + done + " completed, " + failed + " errors ("
+            + String.format(Locale.ROOT, "%.2f", total == 0 ? 0.0 : 100.0 * failed / total) + "%), "
+            + (total - done - failed) + " unanswered"
+            + (failedSessions.sum() > 0 ? ", " + failedSessions.sum() + " connections failed" : ""));
+        System.out.println("Throughput: " + String.format(Locale.ROOT, "%.1f", seconds > 0 ? measuredRequests.sum() / seconds : 0.0) + " requests/s");
+        System.out.println("Latency (us): p50=" + micros(latencies.percentile(50)) + " p99=" + micros(latencies.percentile(99))
+            + " p99.9=" + micros(latencies.percentile(99.9)) + " max=" + micros(latencies.max())
+            + " mean=" + String.format(Locale.ROOT, "%.1f", latencies.mean() / 1000));
+    }
+
+    private static String micros(final long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    /**
+     * One client connection. The session's own thread sends requests while a second virtual thread reads results.
+     * Each request in flight holds a slot, whose index is the request id of its binary frame and whose entry in
+     * {@link #startTimes} is the time its latency is measured from. Text results come back in the order the requests
+     * were sent, so the reader matches them to slots in that order; binary results carry the slot in their id.
+     */
+    private final class Session {
+        private final String name;
+        private final Random rng;
+        private final AtomicLongArray startTimes = new AtomicLongArray(outstanding);
+        private final BlockingQueue<Integer> freeSlots = new ArrayBlockingQueue<>(outstanding);
+        private final BlockingQueue<Integer> sentSlots = new ArrayBlockingQueue<>(outstanding);    // Slots in send order, for text results
+        private Socket socket;
+        private OutputStream out;
+        private volatile boolean readerDone;
+
+        Session(final int index) {
+            this.name = "load-" + index;
+            this.rng = new Random(index);
+            for (int i = 0; i < outstanding; i++) {
+                freeSlots.add(i);
+            }
+        }
+
+        void run() {
+            Thread reader = null;
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                final DataInputStream in = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+                write("JOIN:" + name + (binary ? ":binary" : "") + "\n");
+                final String ack = readLine(in);
+                if (ack == null || !ack.startsWith("ACK:" + name + ":")) {
+                    throw new IOException("No ACK received: " + ack);
+                }
+                reader = Thread.ofVirtual().name(name + "-reader").start(() -> readResults(in));
+
+                sendRequests();
+                awaitDrained();
+                if (binary) {
+                    out.write(BinaryProtocol.encode(BinaryProtocol.LEAVE, 0, ""));
+                } else {
+                    write("LEAVE:" + name + "\n");
+                }
+                reader.join(TimeUnit.NANOSECONDS.toMillis(DRAIN_TIMEOUT_NANOS));
+            } catch (IOException e) {
+                failedSessions.increment();
+                System.err.println(name + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (reader != null) {
+                    reader.interrupt();
+                }
+            }
+        }
+
+        /**
+         * Sends requests until the run's duration has passed, either as fast as free slots allow (closed loop) or
+         * on this session's share of the target rate (open loop)
+         */
+        private void sendRequests() throws IOException, InterruptedException {
+            final long end = startNanos + durationNanos;
+            final long interval = rate > 0 ? (long) (1e9 * connections / rate) : 0;
+            long due = startNanos + (interval > 0 ? (long) (rng.nextDouble() * interval) : 0);   // Stagger sessions over the first interval
+            while (true) {
+                if (interval > 0) {
+                    long wait;
+                    while ((wait = due - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                }
+                if (due >= end || System.nanoTime() >= end) {
+                    return;
+                }
+                final Integer slot = freeSlots.poll(Math.max(end - System.nanoTime(), 0), TimeUnit.NANOSECONDS);
+                if (slot == null) {
+                    return;
+                }
+                startTimes.set(slot, interval > 0 ? due : System.nanoTime());
+                final String expr = MathClient.buildRandomExpression(rng, minTerms + rng.nextInt(maxTerms - minTerms + 1));
+                if (binary) {
+                    out.write(BinaryProtocol.encode(BinaryProtocol.CALC, slot, expr));
+                } else {
+                    sentSlots.add(slot);
+                    write("CALC:" + name + ":" + expr + "\n");
+                }
+                sent.increment();
+                due += interval;
+            }
+        }
+
+        /**
+         * Waits until every request in flight has been answered, or the drain timeout passes
+         */
+        private void awaitDrained() throws InterruptedException {
+            final long deadline = System.nanoTime() + DRAIN_TIMEOUT_NANOS;
+            while (freeSlots.size() < outstanding && System.nanoTime() < deadline && !readerDone) {
+                Thread.sleep(1);
+            }
+        }
+
+        /**
+         * Reads results until the server acknowledges LEAVE or closes the connection, recording each one's latency
+         */
+        private void readResults(final DataInputStream in) {
+            try {
+                if (binary) {
+                    BinaryProtocol.Frame frame;
+                    while ((frame = BinaryProtocol.read(in)) != null && frame.opcode != BinaryProtocol.ACK) {
+                        complete(frame.requestId, frame.opcode == BinaryProtocol.RES);
+                    }
+                } else {
+                    final BufferedReader lines = new BufferedReader(new InputStreamReader(in, StandardCharsets.UTF_8));
+                    String line;
+                    while ((line = lines.readLine()) != null && !line.startsWith("ACK:")) {
+                        final Integer slot = sentSlots.poll();
+                        if (slot != null) {
+                            complete(slot, line.startsWith("RES:"));
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.err.println(name + ": " + e.getMessage());
+                }
+            } finally {
+                readerDone = true;
+            }
+        }
+
+        private void complete(final int slot, final boolean success) {
+            if (slot < 0 || slot >= outstanding) {
+                return;
+            }
+            final long now = System.nanoTime();
+            if (success) {
+                completed.increment();
+            } else {
+                errors.increment();
+            }
+            if (now - startNanos >= warmupNanos) {
+                measuredRequests.increment();
+                if (success) {
+                    latencies.record(now - startTimes.get(slot));
+                }
+            }
+            freeSlots.add(slot);
+        }
+
+        private void write(final String message) throws IOException {
+            out.write(message.getBytes(StandardCharsets.UTF_8));
+        }
+
+        /**
+         * Reads one text line without reading ahead, so binary frames after the ACK stay in the stream
+         */
+        private String readLine(final DataInputStream in) throws IOException {
+            final StringBuilder line = new StringBuilder();
+            int b;
+            while ((b = in.read()) >= 0 && b != '\n') {
+                if (b != '\r') {
+                    line.append((char) b);
+                }
+            }
+            return b < 0 && line.length() == 0 ? null : line.toString();
+        }
+    }
+}
@@ -1,11 +1,18 @@
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.io.OutputStream;
 import java.io.PrintWriter;
 import java.net.Socket;
 import java.time.LocalDateTime;
 import java.time.format.DateTimeFormatter;
+import java.util.HashMap;
+import java.util.Map;
 import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
 import java.util.concurrent.ScheduledExecutorService;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
@@ -30,20 +37,81 @@ public class MathClient {
     // Runs a background thread to read and process server responses asynchronously
     private final ExecutorService readerExecutor = Executors.newSingleThreadExecutor();
 
+    private final String host;
+    private final int port;
+    private final boolean binary;   // Whether to negotiate the binary protocol at JOIN instead of using text messages
+    private final AtomicInteger nextRequestId = new AtomicInteger();    // Request ids for binary CALC frames
+
     private Socket socket;
     private BufferedReader in;
+    private DataInputStream frameIn;    // Replaces in when using the binary protocol
     private PrintWriter out;
+    private OutputStream frameOut;
     private String clientName;
     private volatile boolean running = true;
 
+    /**
+     * Creates a new client
+     *
+     * @param host The server host
+     * @param port The server port
+     * @param binary Whether to use the binary protocol rather than the text protocol
+     */
+    public MathClient(final String host, final int port, final boolean binary) {
+        this.host = host;
+        this.port = port;
+        this.binary = binary;
+    }
+
     /**
      * Main entry point for the client application. Creates a client instance,
-     * starts it, and ensures proper shutdown.
+     * starts it, and ensures proper shutdown. With {@code --load}, runs the headless
+     * load generator instead of the interactive client.
      * 
-     * @param args Command-line arguments (not used)
+     * @param args Options of the form {@code --name=value}: {@code --protocol=text|binary}, {@code --host}, {@code --port},
+     *             and for load mode {@code --load}, {@code --connections}, {@code --rate}, {@code --outstanding},
+     *             {@code --duration}, {@code --warmup} and {@code --terms}
      */
     public static void main(String[] args) {
-        MathClient client = new MathClient();
+        final Map<String, String> options = parseOptions(args);
+        final String protocol = options.getOrDefault("protocol", "text");
+        final String terms = options.getOrDefault("terms", "3-10");
+        final int dash = terms.indexOf('-');
+        final int minTerms, maxTerms, connections, outstanding, duration, warmup, port;
+        final double rate;
+        try {
+            minTerms = Integer.parseInt(dash < 0 ? terms : terms.substring(0, dash));
+            maxTerms = Integer.parseInt(dash < 0 ? terms : terms.substring(dash + 1));
+            connections = Integer.parseInt(options.getOrDefault("connections", "10"));
+            rate = Double.parseDouble(options.getOrDefault("rate", "0"));
+            outstanding = Integer.parseInt(options.getOrDefault("outstanding", rate > 0 ? "1000" : "1"));
+            duration = Integer.parseInt(options.getOrDefault("duration", "10"));
+            warmup = Integer.parseInt(options.getOrDefault("warmup", "0"));
+            port = Integer.parseInt(options.getOrDefault("port", Integer.toString(PORT)));
+        } catch (NumberFormatException e) {
+            System.err.println("Invalid option value: " + e.getMessage());
+            return;
+        }
+        if (!"text".equals(protocol) && !"binary".equals(protocol) || minTerms < 1 || maxTerms < minTerms
+                || connections < 1 || outstanding < 1 || duration < 1 || warmup < 0 || rate < 0) {
+            System.err.println("Usage: MathClient [--protocol=text|binary] [--host=<host>] [--port=<N>]");
+            System.err.println("       MathClient --load [--connections=<N>] [--rate=<requests/s>] [--outstanding=<N>]");
+            System.err.println("                  [--duration=<s>] [--warmup=<s>] [--terms=<min>-<max>] [--protocol=text|binary]");
+            return;
+        }
+        final String host = options.getOrDefault("host", HOST);
+        final boolean binary = "binary".equals(protocol);
+
+        if (Boolean.parseBoolean(options.getOrDefault("load", "false"))) {
+            try {
+                new LoadGenerator(host, port, binary, connections, rate, outstanding, duration, warmup, minTerms, maxTerms).run();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            return;
+        }
+
+        MathClient client = new MathClient(host, port, binary);
         try {
             client.start();
         } catch (IOException | InterruptedException e) {
@@ -53,6 +121,31 @@ public class MathClient {
         }
     }
 
+    /**
+     * Parses command-line options of the form {@code --name=value} or {@code --name value}; an option
+     * given without a value, such as {@code --load}, is {@code true}
+     *
+     * @param args The command-line arguments
+     * @return the options by name
+     */
+    private static Map<String, String> parseOptions(final String[] args) {
+        final Map<String, String> options = new HashMap<>();
+        for (int i = 0; i < args.length; i++) {
+            if (!args[i].startsWith("--")) {
+                continue;
+            }
+            final int eq = args[i].indexOf('=');
+            if (eq >= 0) {
+                options.put(args[i].substring(2, eq), args[i].substring(eq + 1));
+            } else if (i + 1 < args.length && !args[i + 1].startsWith("--")) {
+                options.put(args[i].substring(2), args[++i]);
+            } else {
+                options.put(args[i].substring(2), "true");
+            }
+        }
+        return options;
+    }
+
     /**
      * Starts the client, connecting to the server, performing the JOIN handshake,
      * scheduling random expression sends, and waiting until all operations complete.
@@ -93,15 +186,20 @@ public class MathClient {
      * @throws IOException If there's an error with network communication or user input
      */
     private void connect() throws IOException {
-        socket = new Socket(HOST, PORT);
-        in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        socket = new Socket(host, port);
+        if (binary) {
+            frameIn = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            frameOut = socket.getOutputStream();
+        } else {
+            in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
+        }
         out = new PrintWriter(socket.getOutputStream(), true);
 
         // Prompt for name
         BufferedReader console = new BufferedReader(new InputStreamReader(System.in));
         System.out.print("Enter your name: ");
         clientName = console.readLine().trim();
-        sendMessage("JOIN:" + clientName);
+        sendMessage("JOIN:" + clientName + (binary ? ":binary" : ""));
     }
 
     /**
@@ -115,7 +213,7 @@ public class MathClient {
         String response;
         
         // Block until we get an ACK for our client name
-        while ((response = in.readLine()) != null) {
+        while ((response = binary ? readAckLine() : in.readLine()) != null) {
             if (response.startsWith("ACK:" + clientName + ":")) {
                 System.out.println("[" + LocalDateTime.now().format(TS) + "] " + response);
                 return;
@@ -124,12 +222,37 @@ public class MathClient {
         throw new IOException("No ACK received");
     }
 
+    /**
+     * Reads one text line from the binary protocol stream, which is only used for the ACK to JOIN. Unlike a
+     * {@link BufferedReader}, this does not read ahead, so the frames that follow stay in {@code frameIn}.
+     *
+     * @return the line without its terminator, or {@code null} if the server closed the connection
+     * @throws IOException If there's an error with network communication
+     */
+    private String readAckLine() throws IOException {
+        final ByteArrayOutputStream line = new ByteArrayOutputStream();
+        int b;
+        while ((b = frameIn.read()) >= 0 && b != '\n') {
+            if (b != '\r') {
+                line.write(b);
+            }
+        }
+        return b < 0 && line.size() == 0 ? null : line.toString();
+    }
+
     /**
      * Continuously reads and displays messages from the server.
      * Runs in its own thread until the client is shut down or an error occurs.
      */
     private void readLoop() {
         try {
+            if (binary) {
+                BinaryProtocol.Frame frame;
+                while (running && (frame = BinaryProtocol.read(frameIn)) != null) {
+                    System.out.println("[" + LocalDateTime.now().format(TS) + "] " + describe(frame));
+                }
+                return;
+            }
             String line;
             while (running && (line = in.readLine()) != null) {
                 System.out.println("[" + LocalDateTime.now().format(TS) + "] " + line);
@@ -146,24 +269,29 @@ public class MathClient {
      * This method is scheduled to run periodically.
      */
     private void sendRandomExpression() {
-        final String expr = buildRandomExpression();
-        sendMessage("CALC:" + clientName + ":" + expr);
+        final String expr = buildRandomExpression(RNG, RNG.nextInt(8) + 3);   // Between 3 and 10 (inclusive) operands
+        if (binary) {
+            sendFrame(BinaryProtocol.encode(BinaryProtocol.CALC, nextRequestId.incrementAndGet(), expr));
+        } else {
+            sendMessage("CALC:" + clientName + ":" + expr);
+        }
         System.out.println("[" + LocalDateTime.now().format(TS) + "] Sent: " + expr);
     }
 
     /**
-     * Builds a random arithmetic expression with 3-8 operands and random operators.
+     * Builds a random arithmetic expression with the given number of operands and random operators.
      * 
+     * @param rng The source of randomness
+     * @param terms The number of operands
      * @return A string containing a random arithmetic expression
      */
-    private String buildRandomExpression() {
-        final int terms = RNG.nextInt(8) + 3; // Between 3 and 10 (inclusive) operands
+    static String buildRandomExpression(final Random rng, final int terms) {
         StringBuilder sb = new StringBuilder();
         
         for (int i = 0; i < terms; i++) {
-            sb.append(RNG.nextInt(100));    // Generate integer operand in the range [0, 100)
+            sb.append(rng.nextInt(100));    // Generate integer operand in the range [0, 100)
             if (i < terms - 1) {
-                sb.append(randomOperator());
+                sb.append(randomOperator(rng));
             }
         }
         return sb.toString();
@@ -172,10 +300,11 @@ public class MathClient {
     /**
      * Selects a random arithmetic operator from the available set.
      * 
+     * @param rng The source of randomness
      * @return A randomly chosen operator character (+, -, *, /, or %)
      */
-    private char randomOperator() {
-        return ops[RNG.nextInt(ops.length)];
+    private static char randomOperator(final Random rng) {
+        return ops[rng.nextInt(ops.length)];
     }
 
     /**
@@ -183,10 +312,33 @@ public class MathClient {
      * Also sets the running flag to false to initiate shutdown.
      */
     private void sendLeave() {
-        sendMessage("LEAVE:" + clientName);
+        if (binary) {
+            sendFrame(BinaryProtocol.encode(BinaryProtocol.LEAVE, 0, ""));
+        } else {
+            sendMessage("LEAVE:" + clientName);
+        }
         running = false;
     }
 
+    /**
+     * Renders a frame received from the server in the same form as the corresponding text protocol message
+     *
+     * @param frame The frame to describe
+     * @return a human-readable description of the frame
+     */
+    private String describe(final BinaryProtocol.Frame frame) {
+        return switch (frame.opcode) {
+            case BinaryProtocol.RES -> {
+                final double value = frame.value();
+                yield "RES:" + clientName + ":" + frame.requestId + ":"
+                    + (value == (long) value ? Long.toString((long) value) : Double.toString(value));
+            }
+            case BinaryProtocol.ERR -> "ERR:" + clientName + ":" + frame.requestId + ":" + frame.text();
+            case BinaryProtocol.ACK -> "ACK:" + clientName + ":" + frame.text();
+            default -> "Unknown frame opcode " + frame.opcode;
+        };
+    }
+
     /**
      * Utility function to send a message to the server.
      * 
@@ -196,6 +348,20 @@ public class MathClient {
         if (out != null) out.println(msg);
     }
 
+    /**
+     * Utility function to send an encoded binary protocol frame to the server.
+     * 
+     * @param frame The frame to send
+     */
+    private synchronized void sendFrame(final byte[] frame) {
+        try {
+            frameOut.write(frame);
+            frameOut.flush();
+        } catch (IOException e) {
+            System.err.println("Write error: " + e.getMessage());
+        }
+    }
+
     /**
      * Cleans up resources and shuts down the client.
      * Terminates all threads, closes the socket, and prints a termination message.
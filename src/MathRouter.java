@@ -0,0 +1,667 @@
+import java.io.BufferedInputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.PushbackInputStream;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Front-end router that spreads client sessions over several {@link MathServer} nodes. Clients connect to the router
+ * exactly as they would to a server. On JOIN, the session is placed on a backend by consistent hashing of the client
+ * name, so a client keeps landing on the same node, and every message of the session is then relayed between the
+ * client and that node unchanged, for the text and the binary protocol alike.
+ *
+ * <p>The router checks the health of every backend periodically with a {@code STATS} request. A backend that fails
+ * several checks in a row receives no new sessions until it answers again; sessions already on it stay, since a node
+ * that is merely full also fails checks, and those on a node that went away end when it closes their connection.
+ * A backend taken out of rotation with the {@code drain} console command is drained: each of its sessions is moved to
+ * the node the ring now assigns it to as soon as none of its requests is waiting for an answer, by joining the new
+ * node under the same name and sending the session's further requests there. Sessions that hold variables set with
+ * {@code SET} or {@code DEF} live on their node and are not moved; they end when their client leaves.
+ */
+public class MathRouter {
+    private static final int PORT = 12000;     // Default port to listen on
+    private static final int VIRTUAL_NODES = 128;   // Default number of points each backend is placed at on the hash ring
+    private static final int HEALTH_INTERVAL_MS = 1000;     // Default time between two health checks of a backend
+    private static final int HEALTH_TIMEOUT_MS = 500;       // Default time a backend has to answer a health check
+    private static final int HEALTH_FAILURES = 2;   // Default number of failed checks in a row after which a backend is taken out of rotation
+    private static final int DRAIN_TIMEOUT_MS = 5000;   // How long a session being drained may stay busy before the move is retried later
+    private static final String HEALTH_CHECK_CLIENT = "router-health";
+    private static final String LINE_SEPARATOR = System.lineSeparator();
+
+    private final List<Backend> backends = new ArrayList<>();
+    private final HashRing<Backend> ring;
+    private final int healthInterval;
+    private final int healthTimeout;
+    private final int healthFailures;
+    private final ServerLog log;
+
+    /**
+     * A MathServer node that sessions can be placed on
+     */
+    static final class Backend {
+        final String host;
+        final int port;
+        final String address;
+        final Set<Session> sessions = ConcurrentHashMap.newKeySet();  // Sessions currently relayed to this node
+        final AtomicBoolean draining = new AtomicBoolean();     // Whether sessions are being moved off this node right now
+        volatile boolean healthy = true;
+        volatile boolean enabled = true;    // Cleared while the node is taken out of rotation by the drain command
+        int failures;   // Health checks failed in a row, only used by the health checker
+
+        Backend(final String address) {
+            final int colon = address.lastIndexOf(':');
+            this.host = colon > 0 ? address.substring(0, colon) : "localhost";
+            this.port = Integer.parseInt(address.substring(colon + 1));
+            this.address = host + ":" + port;
+        }
+
+        /**
+         * @return whether new sessions may be placed on this node
+         */
+        boolean inRotation() {
+            return healthy && enabled;
+        }
+    }
+
+    /**
+     * Creates a router
+     *
+     * @param addresses The {@code host:port} address of every backend
+     * @param virtualNodes The number of points each backend is placed at on the hash ring
+     * @param healthInterval The time between two health checks, in milliseconds
+     * @param healthTimeout The time a backend has to answer a health check, in milliseconds
+     * @param healthFailures The number of failed checks in a row after which a backend is taken out of rotation
+     * @param log The log that routing events are written to
+     */
+    MathRouter(final List<String> addresses, final int virtualNodes, final int healthInterval, final int healthTimeout,
+               final int healthFailures, final ServerLog log) {
+        this.ring = new HashRing<>(virtualNodes);
+        for (final String address : addresses) {
+            final Backend backend = new Backend(address.trim());
+            backends.add(backend);
+            ring.add(backend, backend.address);
+        }
+        this.healthInterval = healthInterval;
+        this.healthTimeout = healthTimeout;
+        this.healthFailures = healthFailures;
+        this.log = log;
+    }
+
+    /**
+     * Entry point of the router
+     *
+     * @param args Options of the form {@code --name=value}: {@code --backends=<host:port>,...} (required),
+     *             {@code --port}, {@code --virtual-nodes}, {@code --health-interval}, {@code --health-timeout},
+     *             {@code --health-failures} and {@code --log-console}
+     */
+    public static void main(String[] args) throws IOException {
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (!arg.startsWith("--") || eq < 0) {
+                throw new IllegalArgumentException("Expected an option of the form --name=value but got: " + arg);
+            }
+            options.put(arg.substring(2, eq), arg.substring(eq + 1));
+        }
+        if (!options.containsKey("backends")) {
+            System.err.println("Usage: MathRouter --backends=<host:port>,<host:port>,... [--port=<N>] [--virtual-nodes=<N>]"
+                + " [--health-interval=<ms>] [--health-timeout=<ms>] [--health-failures=<N>] [--log-console=<true|false>]");
+            System.exit(2);
+        }
+
+        final Path logDir = Paths.get("logs");
+        Files.createDirectories(logDir);
+        final Path logFile = logDir.resolve("router.log");
+        Files.deleteIfExists(logFile);
+        final ServerLog log = new ServerLog(logFile, 8192, ServerLog.OverflowPolicy.BLOCK,
+            Boolean.parseBoolean(options.getOrDefault("log-console", "true")));
+        Runtime.getRuntime().addShutdownHook(new Thread(log::close, "LogFlusher"));
+
+        final MathRouter router = new MathRouter(
+            List.of(options.get("backends").split(",")),
+            Integer.parseInt(options.getOrDefault("virtual-nodes", Integer.toString(VIRTUAL_NODES))),
+            Integer.parseInt(options.getOrDefault("health-interval", Integer.toString(HEALTH_INTERVAL_MS))),
+            Integer.parseInt(options.getOrDefault("health-timeout", Integer.toString(HEALTH_TIMEOUT_MS))),
+            Integer.parseInt(options.getOrDefault("health-failures", Integer.toString(HEALTH_FAILURES))),
+            log
+        );
+        router.run(Integer.parseInt(options.getOrDefault("port", Integer.toString(PORT))));
+    }
+
+    /**
+     * Starts the health checker and the console, then accepts client connections, relaying each session on its own
+     * virtual thread. Only returns if the port cannot be bound.
+     * @param port The port to listen on
+     * @throws IOException if the server socket could not be opened
+     */
+    void run(final int port) throws IOException {
+        final Thread checker = new Thread(this::checkHealth, "HealthChecker");
+        checker.setDaemon(true);
+        checker.start();
+        final Thread console = new Thread(this::readConsole, "RouterConsole");
+        console.setDaemon(true);
+        console.start();
+
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            log.log("CONNECT", "ROUTER", "Router started on port " + port + " for " + backends.size() + " backends");
+            while (true) {
+                final Socket client = serverSocket.accept();
+                Thread.ofVirtual().name("session-" + client.getPort()).start(new Session(client));
+            }
+        }
+    }
+
+    /**
+     * Body of the console thread: handles the {@code status}, {@code drain <host:port>}, {@code enable <host:port>}
+     * and {@code quit} commands
+     */
+    private void readConsole() {
+        try (BufferedReader reader = new BufferedReader(new InputStreamReader(System.in))) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                final String[] words = line.trim().split("\\s+");
+                switch (words[0].toLowerCase()) {
+                    case "status" -> {
+                        for (final Backend backend : backends) {
+                            System.out.println(backend.address + " " + (backend.healthy ? "up" : "down")
+                                + (backend.enabled ? "" : " drained") + ", " + backend.sessions.size() + " sessions");
+                        }
+                    }
+                    case "drain", "enable" -> {
+                        final Backend backend = words.length == 2 ? find(words[1]) : null;
+                        if (backend == null) {
+                            System.out.println("Unknown backend; expected one of the --backends addresses");
+                        } else if (words[0].equalsIgnoreCase("drain")) {
+                            backend.enabled = false;
+                            log.log("DRAIN", "ROUTER", backend.address + " taken out of rotation");
+                            drain(backend);
+                        } else {
+                            backend.enabled = true;
+                            log.log("DRAIN", "ROUTER", backend.address + " back in rotation");
+                        }
+                    }
+                    case "quit" -> {
+                        log.log("CONNECT", "ROUTER", "Router shutting down...");
+                        System.exit(0);
+                    }
+                    case "" -> { }
+                    default -> System.out.println("Commands: status, drain <host:port>, enable <host:port>, quit");
+                }
+            }
+        } catch (IOException e) {
+            log.log("ERR", "ROUTER", "Error reading console input: " + e.getMessage());
+        }
+    }
+
+    private Backend find(final String address) {
+        for (final Backend backend : backends) {
+            if (backend.address.equals(address) || backend.address.equals("localhost:" + address)) {
+                return backend;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Body of the health checker thread: probes every backend once per interval, takes backends out of rotation after
+     * too many failed probes in a row and back in after a successful one, and keeps draining the sessions of every
+     * drained backend until none that can be moved is left
+     */
+    private void checkHealth() {
+        while (true) {
+            for (final Backend backend : backends) {
+                if (probe(backend)) {
+                    backend.failures = 0;
+                    if (!backend.healthy) {
+                        backend.healthy = true;
+                        log.log("HEALTH", "ROUTER", backend.address + " is up");
+                    }
+                } else if (++backend.failures >= healthFailures && backend.healthy) {
+                    backend.healthy = false;
+                    log.log("HEALTH", "ROUTER", backend.address + " is down after " + backend.failures + " failed checks");
+                }
+                if (!backend.enabled && !backend.sessions.isEmpty()) {
+                    drain(backend);
+                }
+            }
+            try {
+                Thread.sleep(healthInterval);
+            } catch (InterruptedException e) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return whether the backend answered a STATS request in time
+     */
+    private boolean probe(final Backend backend) {
+        try (Socket socket = new Socket()) {
+            socket.connect(new InetSocketAddress(backend.host, backend.port), healthTimeout);
+            socket.setSoTimeout(healthTimeout);
+            socket.getOutputStream().write(("STATS:" + HEALTH_CHECK_CLIENT + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            final String reply = new LineReader(socket.getInputStream()).readLine();
+            return reply != null && reply.startsWith("STATS:");
+        } catch (IOException e) {
+            return false;
+        }
+    }
+
+    /**
+     * Moves every session that can be moved off a backend that is out of rotation, on a separate virtual thread.
+     * Does nothing if the backend is already being drained.
+     */
+    private void drain(final Backend backend) {
+        if (!backend.draining.compareAndSet(false, true)) {
+            return;
+        }
+        Thread.ofVirtual().name("drain-" + backend.address).start(() -> {
+            try {
+                int moved = 0;
+                for (final Session session : backend.sessions) {
+                    final Backend target = ring.lookup(session.clientName, Backend::inRotation);
+                    if (target != null && session.migrate(backend, target)) {
+                        moved++;
+                    }
+                }
+                if (moved > 0) {
+                    log.log("DRAIN", "ROUTER", backend.address + ": " + moved + " sessions moved, " + backend.sessions.size() + " remaining");
+                }
+            } finally {
+                backend.draining.set(false);
+            }
+        });
+    }
+
+    /**
+     * Reads lines terminated by {@code \n}, {@code \r} or {@code \r\n}, like {@link MathServer}'s connection handlers,
+     * without reading ahead past the terminator, so that the stream can switch to binary frames after any line
+     */
+    private static final class LineReader {
+        private final PushbackInputStream in;
+        private final ByteArrayOutputStream line = new ByteArrayOutputStream(128);
+        private boolean skipLF;     // Whether a '\n' directly following the previous '\r' should be ignored
+
+        LineReader(final InputStream in) {
+            this.in = new PushbackInputStream(new BufferedInputStream(in), 1);
+        }
+
+        /**
+         * @return the next line without its terminator, decoded byte for byte so that it can be re-encoded unchanged,
+         *         or {@code null} at the end of the stream
+         */
+        String readLine() throws IOException {
+            line.reset();
+            int b;
+            while ((b = in.read()) >= 0) {
+                if (skipLF) {
+                    skipLF = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    skipLF = b == '\r';
+                    return line.toString(StandardCharsets.ISO_8859_1);
+                }
+                line.write(b);
+            }
+            return line.size() > 0 ? line.toString(StandardCharsets.ISO_8859_1) : null;
+        }
+
+        /**
+         * @return the rest of the stream, for reading binary frames after the last line
+         */
+        DataInputStream frames() throws IOException {
+            if (skipLF) {
+                skipLF = false;
+                final int b = in.read();
+                if (b >= 0 && b != '\n') {
+                    in.unread(b);
+                }
+            }
+            return new DataInputStream(in);
+        }
+    }
+
+    /**
+     * A connection from the router to a backend on behalf of one session
+     */
+    private static final class Connection {
+        final Backend backend;
+        final Socket socket;
+        final LineReader in;
+        final OutputStream out;
+
+        Connection(final Backend backend) throws IOException {
+            this.backend = backend;
+            this.socket = new Socket(backend.host, backend.port);
+            this.socket.setTcpNoDelay(true);
+            this.in = new LineReader(socket.getInputStream());
+            this.out = socket.getOutputStream();
+        }
+
+        void close() {
+            try {
+                socket.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+    }
+
+    /**
+     * One client connection, relayed to the backend its session is placed on. The session's own thread reads the
+     * client and forwards its requests; a second thread per backend connection relays the responses back. Every
+     * request except LEAVE is answered with exactly one response, so counting both tells when nothing is in flight
+     * and the session can be moved to another backend.
+     */
+    final class Session implements Runnable {
+        private final Socket client;
+        private LineReader clientIn;
+        private OutputStream clientOut;
+        private String joinLine;
+        volatile String clientName;
+        private boolean binary;             // Whether the client negotiated binary frames at JOIN
+        private volatile boolean stateful;  // Whether the client has session variables on its backend
+        private volatile boolean leaving;   // Whether the client sent LEAVE, after which the backend closes the connection
+
+        // Where the session is placed, changed under lock. No socket I/O to the current connection happens under it,
+        // so that a relay thread can always count an answer while the session thread is blocked writing a request.
+        private final ReentrantLock lock = new ReentrantLock();
+        private final Condition idle = lock.newCondition();
+        private final Condition resumed = lock.newCondition();
+        private volatile Connection connection;
+        private final AtomicInteger outstanding = new AtomicInteger();  // Requests forwarded to the current connection and not answered yet
+        private boolean migrating;      // Whether requests must wait while the session moves to another backend
+
+        Session(final Socket client) {
+            this.client = client;
+        }
+
+        @Override
+        public void run() {
+            try (client) {
+                clientIn = new LineReader(client.getInputStream());
+                clientOut = client.getOutputStream();
+                if (join()) {
+                    forwardRequests();
+                }
+            } catch (IOException e) {
+                if (!leaving && !client.isClosed()) {    // Not closed by a relay thread that already logged why
+                    log.log("ERR", clientName != null ? clientName : "UNKNOWN", e.getMessage());
+                }
+            } finally {
+                lock.lock();
+                try {
+                    if (connection != null) {
+                        final Connection last = connection;
+                        connection = null;  // So that its relay thread exits quietly
+                        last.backend.sessions.remove(this);
+                        last.close();
+                    }
+                } finally {
+                    lock.unlock();
+                }
+                if (clientName != null) {
+                    log.log("DISCONNECT", clientName, "Session ended");
+                }
+            }
+        }
+
+        /**
+         * Waits for the client's JOIN, answering anything else with an error, and places the session on a backend
+         * @return whether the session was placed, or {@code false} if the client left or no backend is available
+         */
+        private boolean join() throws IOException {
+            String line;
+            while ((line = clientIn.readLine()) != null) {
+                if (!line.startsWith("JOIN:")) {
+                    sendToClient("ERR:" + Evaluator.INVALID_FORMAT + LINE_SEPARATOR);
+                    continue;
+                }
+                final String payload = line.substring("JOIN:".length());
+                final int sep = payload.lastIndexOf(':');
+                final boolean hasFeatures = sep >= 0 && ClientHandler.isFeatureList(payload.substring(sep + 1));
+                clientName = hasFeatures ? payload.substring(0, sep) : payload;
+                binary = hasFeatures && payload.substring(sep + 1).contains("binary");
+                joinLine = line;
+
+                for (int attempt = 0; attempt < backends.size(); attempt++) {
+                    final Backend backend = ring.lookup(clientName, Backend::inRotation);
+                    if (backend == null) {
+                        break;
+                    }
+                    try {
+                        final Connection next = new Connection(backend);
+                        final String ack = handshake(next);
+                        lock.lock();
+                        try {
+                            connection = next;
+                            backend.sessions.add(this);
+                        } finally {
+                            lock.unlock();
+                        }
+                        sendToClient(ack + LINE_SEPARATOR);
+                        startRelay(next);
+                        log.log("CONNECT", clientName, "Placed on " + backend.address + " for " + client.getRemoteSocketAddress());
+                        return true;
+                    } catch (IOException e) {
+                        backend.healthy = false;    // Until the next successful health check
+                        log.log("HEALTH", "ROUTER", backend.address + " refused a session: " + e.getMessage());
+                    }
+                }
+                sendToClient("ERR:" + RequestQueue.SERVER_BUSY + LINE_SEPARATOR);
+                return false;
+            }
+            return false;
+        }
+
+        /**
+         * Joins a backend with the client's own JOIN message
+         * @return the backend's ACK line
+         * @throws IOException if the backend cannot be reached or does not acknowledge the JOIN
+         */
+        private String handshake(final Connection next) throws IOException {
+            next.out.write((joinLine + "\n").getBytes(StandardCharsets.ISO_8859_1));
+            next.out.flush();
+            final String ack = next.in.readLine();
+            if (ack == null || !ack.startsWith("ACK:")) {
+                next.close();
+                throw new IOException("Unexpected reply to JOIN: " + ack);
+            }
+            return ack;
+        }
+
+        /**
+         * Reads the client's requests until it disconnects, forwarding each one to the current backend
+         */
+        private void forwardRequests() throws IOException {
+            if (binary) {
+                final DataInputStream frames = clientIn.frames();
+                BinaryProtocol.Frame frame;
+                while ((frame = BinaryProtocol.read(frames)) != null) {
+                    leaving = frame.opcode == BinaryProtocol.LEAVE;
+                    forward(BinaryProtocol.encode(frame), !leaving);
+                }
+                return;
+            }
+            String line;
+            while ((line = clientIn.readLine()) != null) {
+                final int colon = line.indexOf(':');
+                final String command = colon >= 0 ? line.substring(0, colon) : line;
+                if (command.equals("SET") || command.equals("DEF")) {
+                    stateful = true;    // Pushed formula updates make responses uncountable, and the variables cannot move
+                }
+                leaving = command.equals("LEAVE");
+                forward((line + "\n").getBytes(StandardCharsets.ISO_8859_1), !leaving);
+            }
+        }
+
+        /**
+         * Sends a request to the current backend, waiting while the session is being moved. Only the session's own
+         * thread writes requests, so the write needs no lock: the request is counted first, which keeps
+         * {@link #migrate} from swapping the connection until it is answered, and then written without holding
+         * {@code lock}, as the backend may not read it before the relay thread has taken earlier answers off it.
+         */
+        private void forward(final byte[] request, final boolean answered) throws IOException {
+            final Connection target;
+            lock.lock();
+            try {
+                while (migrating) {
+                    resumed.awaitUninterruptibly();
+                }
+                target = connection;
+                if (answered) {
+                    outstanding.incrementAndGet();
+                }
+            } finally {
+                lock.unlock();
+            }
+            target.out.write(request);
+            target.out.flush();
+        }
+
+        private void startRelay(final Connection from) {
+            Thread.ofVirtual().name("relay-" + clientName).start(() -> relay(from));
+        }
+
+        /**
+         * Body of a relay thread: copies every response from a backend connection to the client until the connection
+         * closes. If it was still the session's current connection, the client is disconnected too.
+         */
+        private void relay(final Connection from) {
+            try {
+                if (binary) {
+                    final DataInputStream frames = from.in.frames();
+                    BinaryProtocol.Frame frame;
+                    while ((frame = BinaryProtocol.read(frames)) != null) {
+                        sendToClient(BinaryProtocol.encode(frame));
+                        answered(from);
+                    }
+                } else {
+                    String line;
+                    while ((line = from.in.readLine()) != null) {
+                        sendToClient((line + LINE_SEPARATOR).getBytes(StandardCharsets.ISO_8859_1));
+                        answered(from);
+                    }
+                }
+            } catch (IOException e) {
+                // The connection was closed, by the backend or because the session moved
+            }
+
+            lock.lock();
+            try {
+                if (connection != from) {
+                    return;     // The session has moved to another backend
+                }
+            } finally {
+                lock.unlock();
+            }
+            if (!leaving) {
+                log.log("ERR", clientName, "Lost connection to " + from.backend.address);
+            }
+            try {
+                client.close();
+            } catch (IOException ignored) {
+                // Already closed
+            }
+        }
+
+        private void answered(final Connection from) {
+            if (connection == from && outstanding.get() > 0 && outstanding.decrementAndGet() == 0) {
+                lock.lock();
+                try {
+                    idle.signalAll();   // Taking the lock first means a migrate that saw the request pending is waiting
+                } finally {
+                    lock.unlock();
+                }
+            }
+        }
+
+        /**
+         * Moves the session to another backend once none of its requests is waiting for an answer. New requests from
+         * the client wait meanwhile, and are sent to the new backend.
+         * @param from The backend the session is being drained from
+         * @param target The backend to move the session to
+         * @return whether the session was moved; {@code false} if it holds session variables, has left, is no longer
+         *         on {@code from}, stayed busy for too long, or the target cannot be joined
+         */
+        boolean migrate(final Backend from, final Backend target) {
+            if (stateful || leaving || target == from) {
+                return false;
+            }
+            lock.lock();
+            try {
+                if (connection == null || connection.backend != from) {
+                    return false;
+                }
+                migrating = true;
+                long remaining = TimeUnit.MILLISECONDS.toNanos(DRAIN_TIMEOUT_MS);
+                while (outstanding.get() > 0) {
+                    if (remaining <= 0) {
+                        return false;   // Retried on the next health check
+                    }
+                    remaining = idle.awaitNanos(remaining);
+                }
+                if (stateful || leaving) {
+                    return false;
+                }
+
+                final Connection next = new Connection(target);
+                handshake(next);    // Its ACK is not relayed, since the client already joined
+                final Connection previous = connection;
+                connection = next;
+                from.sessions.remove(this);
+                target.sessions.add(this);
+                previous.close();
+                startRelay(next);
+                log.log("MIGRATE", clientName, "Moved from " + from.address + " to " + target.address);
+                return true;
+            } catch (IOException e) {
+                log.log("ERR", clientName, "Could not move to " + target.address + ": " + e.getMessage());
+                return false;
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                return false;
+            } finally {
+                migrating = false;
+                resumed.signalAll();
+                lock.unlock();
+            }
+        }
+
+        private void sendToClient(final String message) throws IOException {
+            sendToClient(message.getBytes(StandardCharsets.ISO_8859_1));
+        }
+
+        private void sendToClient(final byte[] bytes) throws IOException {
+            synchronized (clientOut) {
+                clientOut.write(bytes);
+                clientOut.flush();
+            }
+        }
+    }
+}
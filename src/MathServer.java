@@ -2,58 +2,94 @@ import java.net.ServerSocket;
 import java.net.Socket;
 import java.io.BufferedReader;
 import java.io.InputStreamReader;
-import java.io.PrintWriter;
 import java.io.IOException;
+import java.math.MathContext;
+import java.math.RoundingMode;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
-import java.nio.file.StandardOpenOption;
-import java.time.Duration;
 import java.time.Instant;
-import java.time.LocalDateTime;
-import java.time.format.DateTimeFormatter;
-import java.util.ArrayDeque;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Deque;
-import java.util.concurrent.BlockingQueue;
 import java.util.concurrent.ConcurrentHashMap;
 import java.util.concurrent.ConcurrentMap;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
-import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
 
 public class MathServer {
-    private static final int PORT = 12345;
-    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int PORT = 12345;  // Default port to listen on
+    private static final int LOG_BUFFER_SIZE = 8192;    // Default number of log entries that can wait to be written
+    private static final int CACHE_SIZE = 10_000;       // Default number of compiled expressions kept in the expression cache
+    private static final int NEGATIVE_CACHE_SIZE = 1_000;   // Default number of malformed expressions remembered by the expression cache
+    private static final int CACHE_MAX_CHARS = 4 << 20;     // Default total length of the expressions kept by each part of the expression cache
+    static final int COMPILE_THRESHOLD = 1_000;    // Default number of evaluations after which a DEF formula is compiled to lambdas
+    private static final int JOURNAL_SEGMENT_MB = 64;   // Default size of each request journal segment
+    private static final int EXACT_PRECISION = 34;      // Default number of significant digits kept when an exact result needs BigDecimal
+    private static final int QUEUE_CAPACITY = 10_000;   // Default number of requests that can wait for each request processor
+    private static final int FLUSH_BYTES = 16_384;      // Default number of response bytes held back for a connection before they are written
+    private static final int FLUSH_DELAY_MICROS = 200;  // Default time a response may be held back before it is written
+    static final String DEADLINE_EXCEEDED = "Deadline Exceeded";
+    static final char BATCH_SEPARATOR = ';';    // Separates the expressions of a CALCBATCH request and the items of its response
     
     // Thread pool configuration
-    private static final int MAX_CONCURRENT_CLIENTS = 5; // Maximum number of concurrent client connections
+    private static final int MAX_CONCURRENT_CLIENTS = 5; // Default maximum number of concurrent client connections for the thread pool engine
     
-    private static final ConcurrentMap<String, ClientHandler> clients = new ConcurrentHashMap<>();  // Stores the assigned ClientHandler object for each clientName
-    private static final ConcurrentMap<String, Instant> connectTimes = new ConcurrentHashMap<>();   // Stores the time at which each client joined the server, indexed by clientName
-    private static final BlockingQueue<CalcRequest> requestQueue = new LinkedBlockingQueue<>(); // A central queue to store all incoming calculation requests in FIFO order
-    private static final ExecutorService clientPool = Executors.newFixedThreadPool(MAX_CONCURRENT_CLIENTS);
-
-    private static final Map<String, Integer> prec = Map.of(
-        "+", 1,
-        "-", 1,
-        "*", 2,
-        "/", 2,
-        "%", 2
-    );
+    static final ConcurrentMap<String, ClientHandler> clients = new ConcurrentHashMap<>();  // Stores the assigned ClientHandler object for each clientName
+    static final ConcurrentMap<String, Instant> connectTimes = new ConcurrentHashMap<>();   // Stores the time at which each client joined the server, indexed by clientName
+    private static final List<RequestQueue> requestQueues = new ArrayList<>();  // One bounded FIFO queue of calculation requests per request processor thread
+    private static final AtomicInteger nextQueue = new AtomicInteger();  // Round-robin counter used to assign each new client to a processor queue
+    private static final Map<String, String> options = new HashMap<>();  // Command-line options given as --name=value
+    private static volatile ServerLog serverLog;    // Writes log entries in the background once setupLogFile has run
+    private static ExpressionCache expressionCache;     // Compiled forms of recently seen expressions, shared by all request processors
+    private static MathContext exactContext;    // Precision and rounding of exact results that do not fit in a scaled long
+    private static volatile RequestJournal journal;     // Binary record of every answered calculation, or null unless --journal-dir is given
+    static SessionReaper sessionReaper;     // Closes sessions that go quiet, or null unless --idle-timeout or --read-timeout is given
 
     /**
-     * Main entry point for the server. Sets up logging, starts the request processor,
+     * Main entry point for the server. Sets up logging, starts the request processors,
      * initializes console input handling for graceful shutdown, and begins accepting
-     * client connections.
+     * client connections with the connection engine selected by {@code --engine}.
      * 
-     * @param args Command-line arguments (not used)
+     * @param args Command-line options in the form {@code --name=value}, e.g. {@code --processors=4}
      */
     public static void main(String[] args) {
+        parseOptions(args);
+        final int processors = intOption("processors", Runtime.getRuntime().availableProcessors());
+        if (processors < 1) {
+            throw new IllegalArgumentException("Option --processors must be at least 1 but got: " + processors);
+        }
         setupLogFile();
-        startRequestProcessor();
+        setupJournal();
+        expressionCache = new ExpressionCache(
+            intOption("cache-size", CACHE_SIZE),
+            intOption("negative-cache-size", NEGATIVE_CACHE_SIZE),
+            intOption("cache-max-chars", CACHE_MAX_CHARS),
+            Boolean.parseBoolean(option("cache-results", "true"))
+        );
+        exactContext = new MathContext(
+            intOption("exact-precision", EXACT_PRECISION),
+            RoundingMode.valueOf(option("exact-rounding", "half-even").toUpperCase().replace('-', '_'))
+        );
+        Evaluator.maxNestingDepth = intOption("max-nesting-depth", Evaluator.MAX_NESTING_DEPTH);
+        Evaluator.maxExpressionLength = intOption("max-expression-length", Evaluator.MAX_EXPRESSION_LENGTH);
+        startRequestProcessors(
+            processors,
+            intOption("queue-capacity", QUEUE_CAPACITY),
+            RequestQueue.OverloadPolicy.valueOf(option("overload", "reject").toUpperCase().replace('-', '_'))
+        );
+        startSessionReaper(intOption("idle-timeout", 0), intOption("read-timeout", 0));
+        final int metricsPort = intOption("metrics-port", 0);
+        if (metricsPort > 0) {
+            try {
+                ServerMetrics.startHttpEndpoint(metricsPort);
+                log("CONNECT", "SERVER", "Metrics available at http://localhost:" + metricsPort + "/metrics");
+            } catch (IOException e) {
+                log("ERR", "SERVER", "Failed to start metrics endpoint: " + e.getMessage());
+            }
+        }
 
         // Add shutdown hook for console input
         Thread consoleInput = new Thread(() -> {
@@ -61,6 +97,7 @@ public class MathServer {
                 String line;
                 while ((line = reader.readLine()) != null) {
                     if ("quit".equalsIgnoreCase(line.trim())) {
+                        log("CACHE", "SERVER", expressionCache.stats());
                         log("CONNECT", "SERVER", "Server shutting down...");
                         System.exit(0);
                     }
@@ -72,128 +109,284 @@ public class MathServer {
         consoleInput.setDaemon(true);
         consoleInput.start();
 
-        try (ServerSocket serverSocket = new ServerSocket(PORT)) {
-            log("CONNECT", "SERVER", "Server started on port " + PORT);
-            while (true) {
-                final Socket clientSocket = serverSocket.accept();
-                clientPool.execute(new ClientHandler(clientSocket));
+        final int port = intOption("port", PORT);
+        final String engine = option("engine", "pool");
+        try {
+            switch (engine) {
+                case "pool" -> serveBlocking(port, Executors.newFixedThreadPool(intOption("max-clients", MAX_CONCURRENT_CLIENTS)));
+                case "virtual" -> serveBlocking(port, Executors.newVirtualThreadPerTaskExecutor());
+                case "nio" -> {
+                    final NioServer server = new NioServer(port);
+                    log("CONNECT", "SERVER", "Server started on port " + port + " (nio engine)");
+                    server.run();
+                }
+                default -> log("ERR", "SERVER", "Unknown connection engine: " + engine);
             }
         } catch (IOException e) {
             log("ERR", "SERVER", "Failed to start server: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Accepts client connections on a blocking {@link ServerSocket} and runs one {@link SocketClientHandler} per connection.
+     * @param port The port to listen on
+     * @param clientPool The executor that runs the handlers: a fixed-size pool of platform threads, or one virtual thread per connection
+     * @throws IOException if the server socket could not be opened
+     */
+    private static void serveBlocking(final int port, final ExecutorService clientPool) throws IOException {
+        try (ServerSocket serverSocket = new ServerSocket(port)) {
+            log("CONNECT", "SERVER", "Server started on port " + port);
+            while (true) {
+                final Socket clientSocket = serverSocket.accept();
+                clientPool.execute(new SocketClientHandler(clientSocket));
+            }
         } finally {
             clientPool.shutdown();
         }
     }
 
     /**
-     * Launches a dedicated central background thread that continuously reads calculation requests in FIFO order.
-     * This thread calls the relevant functions to calculate the output of the expressions and then creates a response to send back to the appropriate client based on that.
-     * It also logs the incoming request and the outgoing response.
+     * Stores every {@code --name=value} (or {@code --name value}) command-line argument so that it can be looked up with {@link #intOption}.
+     * @param args The command-line arguments passed to {@link #main}
+     * @throws IllegalArgumentException if an argument is not a {@code --name} option or is missing its value
      */
-    private static void startRequestProcessor() {
-        final Thread processor = new Thread(() -> {
-            while (true) {
-                try {
-                    final CalcRequest req = requestQueue.take();    // Take a calculation request from the FIFO queue
-                    log("CALC_REQUEST", req.clientName, "Expression received: " + req.expression);
+    private static void parseOptions(final String[] args) {
+        for (int i = 0; i < args.length; i++) {
+            final String arg = args[i];
+            if (!arg.startsWith("--")) {
+                throw new IllegalArgumentException("Expected an option of the form --name=value but got: " + arg);
+            }
+            final int eq = arg.indexOf('=');
+            if (eq >= 0) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else if (i + 1 < args.length) {
+                options.put(arg.substring(2), args[++i]);
+            } else {
+                throw new IllegalArgumentException("Missing value for option " + arg);
+            }
+        }
+    }
+
+    /**
+     * Looks up a command-line option
+     * @param name The option name, without the leading {@code --}
+     * @param defaultValue The value used when the option was not given
+     * @return the configured value of the option
+     */
+    static String option(final String name, final String defaultValue) {
+        return options.getOrDefault(name, defaultValue);
+    }
+
+    /**
+     * Looks up an integer command-line option
+     * @param name The option name, without the leading {@code --}
+     * @param defaultValue The value used when the option was not given
+     * @return the configured value of the option
+     */
+    static int intOption(final String name, final int defaultValue) {
+        final String value = options.get(name);
+        return value != null ? Integer.parseInt(value) : defaultValue;
+    }
+
+    /**
+     * Launches the background threads that continuously read calculation requests from their queues in FIFO order.
+     * Each thread calls the relevant functions to calculate the output of the expressions and then creates a response to send back to the appropriate client based on that.
+     * Every client is pinned to a single processor, so its responses are sent in the order its requests arrived, while different clients are evaluated in parallel.
+     * With a single processor, this is one central thread draining one queue shared by all clients.
+     * Responses are held back by a {@link WriteCoalescer} while more requests are waiting, so that a client with several
+     * requests in the queue gets their responses in one write, within {@code --flush-bytes} and {@code --flush-delay-us}.
+     * @param count The number of processor threads to start
+     * @param capacity The maximum number of requests waiting in each processor's queue
+     * @param policy What happens to new requests while a queue is full
+     */
+    private static void startRequestProcessors(final int count, final int capacity, final RequestQueue.OverloadPolicy policy) {
+        final int flushBytes = intOption("flush-bytes", FLUSH_BYTES);
+        final long flushDelayNanos = intOption("flush-delay-us", FLUSH_DELAY_MICROS) * 1_000L;
+        for (int i = 0; i < count; i++) {
+            final RequestQueue queue = new RequestQueue(capacity, policy);
+            requestQueues.add(queue);
+
+            final String name = count == 1 ? "RequestProcessor" : "RequestProcessor-" + i;
+            final Thread processor = new Thread(() -> {
+                final WriteCoalescer coalescer = new WriteCoalescer(flushBytes, flushDelayNanos);
+                coalescer.install();
+                while (true) {
                     try {
-                        final double value = calculate(req.expression);
-                        final String result = formatResult(value);
-                        req.handler.sendMessage("RES:" + req.clientName + ":" + result);
-                        log("CALC_RESPONSE", req.clientName, req.expression + " = " + result);
-                    } catch (IllegalArgumentException ex) {
-                        req.handler.sendMessage("ERR:" + ex.getMessage());
-                        log("ERR", req.clientName, ex.getMessage());
+                        CalcRequest req = queue.poll();
+                        if (req == null) {
+                            coalescer.flush();  // Nothing more to answer for now, so write out what was held back
+                            req = queue.take();     // Take a calculation request from the FIFO queue
+                        }
+                        processRequest(req);
+                        coalescer.flushIfDue();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                        break;
                     }
-                } catch (InterruptedException e) {
-                    Thread.currentThread().interrupt();
-                    break;
                 }
-            }
-        }, "RequestProcessor");
-        processor.setDaemon(true);
-        processor.start();
+            }, name);
+            processor.setDaemon(true);
+            processor.start();
+        }
     }
 
     /**
-     * Calculates the arithmetical value of the provided expression using the standard Shunting Yard Algorithm
-     * @param expression The arithmetic expression provided as a String
-     * @return the computed value of the calculation as a String
-     * @throws IllegalArgumentException if the expression is malformed
+     * Starts the background thread that closes quiet sessions, if either timeout is set
+     * @param idleMillis How long a session may go without sending a message, or 0 for no limit
+     * @param readMillis How long a client may take to finish sending a message, or 0 for no limit
      */
-    private static double calculate(final String expression) {
-        List<String> tokens = tokenize(expression);
-        List<String> output = new ArrayList<>();
-        Deque<String> ops = new ArrayDeque<>();
+    private static void startSessionReaper(final int idleMillis, final int readMillis) {
+        if (idleMillis <= 0 && readMillis <= 0) {
+            return;
+        }
+        sessionReaper = new SessionReaper(idleMillis, readMillis);
+        final Thread thread = new Thread(sessionReaper, "SessionReaper");
+        thread.setDaemon(true);
+        thread.start();
+    }
 
-        for (String token : tokens) {
-            if (token.matches("\\d+(\\.\\d+)?")) {
-                output.add(token);
-            } else if (prec.containsKey(token)) {
-                while (!ops.isEmpty()
-                       && prec.containsKey(ops.peekFirst())
-                       && prec.get(ops.peekFirst()) >= prec.get(token)) {
-                    output.add(ops.removeFirst());
-                }
-                ops.addFirst(token);
-            } else if ("(".equals(token)) {
-                ops.addFirst(token);
-            } else if (")".equals(token)) {
-                while (!ops.isEmpty() && !"(".equals(ops.peekFirst())) {
-                    output.add(ops.removeFirst());
-                }
-                if (ops.isEmpty() || ! "(".equals(ops.removeFirst())) {
-                    throw new IllegalArgumentException("Invalid Expression Format");
-                }
-            } else {
-                throw new IllegalArgumentException("Invalid Expression Format");
-            }
+    /**
+     * Picks the processor queue for a newly connected client, spreading clients over the processors round-robin
+     * @return the queue that all of the client's calculation requests should be added to
+     */
+    static RequestQueue assignQueue() {
+        return requestQueues.get(Math.floorMod(nextQueue.getAndIncrement(), requestQueues.size()));
+    }
+
+    /**
+     * @return the number of calculation requests waiting in all processor queues
+     */
+    static int queueDepth() {
+        int depth = 0;
+        for (RequestQueue queue : requestQueues) {
+            depth += queue.size();
         }
-        while (!ops.isEmpty()) {
-            final String op = ops.removeFirst();
-            if ("(".equals(op) || ")".equals(op)) {
-                throw new IllegalArgumentException("Invalid Expression Format");
+        return depth;
+    }
+
+    /**
+     * Evaluates a single calculation request and sends the result, or the error, back to the client that made it.
+     * It also logs the incoming request and the outgoing response, and records how long each stage took in {@link ServerMetrics}.
+     * @param req The calculation request to process
+     */
+    private static void processRequest(final CalcRequest req) {
+        if (req.shed) {
+            req.handler.sendError(req, RequestQueue.SERVER_BUSY);
+            ServerMetrics.requestRefused(req.handler.metrics, ServerMetrics.shed);
+            if (req.variable == null) {
+                final long now = System.nanoTime();
+                journal(req, now, now, RequestQueue.SERVER_BUSY, false);
             }
-            output.add(op);
+            return;
         }
-        
-        Deque<Double> eval = new ArrayDeque<>();
-        for (final String token : output) {
-            if (prec.containsKey(token)) {
-                if (eval.size() < 2) {
-                    throw new IllegalArgumentException("Invalid Expression Format");
-                }
+        final long dequeued = System.nanoTime();
+        if (req.variable != null) {
+            log("VARIABLE", req.clientName, (req.formula ? "DEF " : "SET ") + req.variable + "=" + req.expression);
+            final boolean success = req.handler.variables().assign(req);
+            final long evaluated = System.nanoTime();
+            ServerMetrics.requestCompleted(req, dequeued, evaluated, evaluated, success);
+            return;
+        }
+        if (req.deadlineNanos > 0 && dequeued - req.receivedAt > req.deadlineNanos) {
+            req.handler.sendError(req, DEADLINE_EXCEEDED);     // Its caller has most likely given up on it by now
+            ServerMetrics.requestRefused(req.handler.metrics, ServerMetrics.expired);
+            journal(req, dequeued, dequeued, DEADLINE_EXCEEDED, false);
+            return;
+        }
+        if (req.batch) {
+            processBatch(req, dequeued);
+            return;
+        }
+        if (req.streamed) {
+            processStreamed(req, dequeued);
+            return;
+        }
+        log("CALC_REQUEST", req.clientName, "Expression received: " + req.expression);
+        try {
+            final double value = req.exact ? Double.NaN : calculate(req.expression);     // Exact results are only sent as text
+            final String result = req.exact ? ExactEvaluator.evaluate(req.expression, exactContext) : formatResult(value);
+            final long evaluated = System.nanoTime();
+            req.handler.sendResult(req, value, result);
+            ServerMetrics.requestCompleted(req, dequeued, evaluated, System.nanoTime(), true);
+            journal(req, dequeued, evaluated, result, true);
+            log("CALC_RESPONSE", req.clientName, req.expression + " = " + result);
+        } catch (IllegalArgumentException ex) {
+            final long evaluated = System.nanoTime();
+            req.handler.sendError(req, ex.getMessage());
+            ServerMetrics.requestCompleted(req, dequeued, evaluated, System.nanoTime(), false);
+            journal(req, dequeued, evaluated, ex.getMessage(), false);
+            log("ERR", req.clientName, ex.getMessage());
+        }
+    }
 
-                final double b = eval.removeFirst();
-                final double a = eval.removeFirst();
-                switch (token) {
-                    case "+" -> eval.addFirst(a + b);
-                    case "-" -> eval.addFirst(a - b);
-                    case "*" -> eval.addFirst(a * b);
-                    case "/" -> eval.addFirst(a / b);
-                    case "%" -> eval.addFirst(a % b);
-                }
-            } else {
-                eval.addFirst(Double.parseDouble(token));
-            }
+    /**
+     * Sends the outcome of a CALC request whose expression was evaluated while it was received. Only a summary of the
+     * expression is logged and journaled, since the expression itself was never held.
+     * @param req The streamed request
+     * @param dequeued When a processor took the request, from {@link System#nanoTime}
+     */
+    private static void processStreamed(final CalcRequest req, final long dequeued) {
+        log("CALC_REQUEST", req.clientName, "Streamed expression received: " + req.expression);
+        if (req.error == null) {
+            final String result = formatResult(req.value);
+            req.handler.sendResult(req, req.value, result);
+            ServerMetrics.requestCompleted(req, dequeued, dequeued, System.nanoTime(), true);
+            journal(req, dequeued, dequeued, result, true);
+            log("CALC_RESPONSE", req.clientName, req.expression + " = " + result);
+        } else {
+            req.handler.sendError(req, req.error);
+            ServerMetrics.requestCompleted(req, dequeued, dequeued, System.nanoTime(), false);
+            journal(req, dequeued, dequeued, req.error, false);
+            log("ERR", req.clientName, req.error + ": " + req.expression);
         }
+    }
 
-        if (eval.size() != 1) {
-            throw new IllegalArgumentException("Invalid Expression Format");
+    /**
+     * Evaluates every expression of a CALCBATCH request as one unit of work and sends all of the results back in a single
+     * response, in the order the expressions were given. A malformed expression only fails its own item.
+     * The batch is logged once, rather than once per expression.
+     * @param req The batch request to process; its expression holds the {@code ;}-separated expressions
+     * @param start When a processor took the request, from {@link System#nanoTime}
+     */
+    private static void processBatch(final CalcRequest req, final long start) {
+        final StringBuilder results = new StringBuilder();
+        int count = 0;
+        int errors = 0;
+        int from = 0;
+        while (true) {
+            final int sep = req.expression.indexOf(BATCH_SEPARATOR, from);
+            final String expression = req.expression.substring(from, sep < 0 ? req.expression.length() : sep);
+            if (count++ > 0) {
+                results.append(BATCH_SEPARATOR);
+            }
+            try {
+                results.append(req.exact ? ExactEvaluator.evaluate(expression, exactContext) : formatResult(calculate(expression)));
+            } catch (IllegalArgumentException ex) {
+                results.append("ERR=").append(ex.getMessage());
+                errors++;
+            }
+            if (sep < 0) {
+                break;
+            }
+            from = sep + 1;
         }
-        return eval.removeFirst();
+        final long evaluated = System.nanoTime();
+        req.handler.sendBatchResult(req, results);
+        ServerMetrics.requestCompleted(req, start, evaluated, System.nanoTime(), true);
+        journal(req, start, evaluated, results, true);
+        final long micros = (evaluated - start) / 1_000;
+        log("CALC_BATCH", req.clientName, count + " expressions evaluated in " + micros + " us (" + errors + " errors)");
     }
 
     /**
-     * Splits the given expression string into a {@code List} of numbers, operators, and parentheses
-     * 
-     * @param expr The string expression to tokenize
-     * @return A list of tokens (numbers, operators, parentheses)
+     * Calculates the arithmetical value of the provided expression using the standard Shunting Yard Algorithm,
+     * reusing the compiled form of the expression when it is in the expression cache
+     * @param expression The arithmetic expression provided as a String
+     * @return the computed value of the calculation
+     * @throws IllegalArgumentException if the expression is malformed
      */
-    private static List<String> tokenize(final String expr) {
-        final String spaced = expr.replaceAll("([()+\\-*/%])", " $1 ");
-        final String[] parts = spaced.trim().split("\\s+");
-        return List.of(parts);
+    private static double calculate(final String expression) {
+        return expressionCache.evaluate(expression);
     }
 
     /**
@@ -201,7 +394,7 @@ public class MathServer {
      * @param result The calculated result as a double
      * @return A string representation of the result, as an integer if possible
      */
-    private static String formatResult(final double result) {
+    static String formatResult(final double result) {
         if (result == (long) result) {
             return Long.toString((long) result);
         }
@@ -209,8 +402,8 @@ public class MathServer {
     }
 
     /**
-     * First, this creates the log sub-directory if it doesn't exist already. Then, it makes a new server.log file, replacing a previous one, if it exists.
-     * @throws IOException if the log dir could not be created
+     * First, this creates the log sub-directory if it doesn't exist already. Then, it makes a new server.log file, replacing a previous one, if it exists,
+     * and starts the background writer that appends log entries to it.
      */
     private static void setupLogFile() {
         try {
@@ -223,29 +416,76 @@ public class MathServer {
             }
 
             Files.createFile(logFile);
+            serverLog = new ServerLog(
+                logFile,
+                intOption("log-buffer", LOG_BUFFER_SIZE),
+                ServerLog.OverflowPolicy.valueOf(option("log-overflow", "block").toUpperCase()),
+                Boolean.parseBoolean(option("log-console", "true"))
+            );
+            Runtime.getRuntime().addShutdownHook(new Thread(serverLog::close, "LogFlusher"));   // Write out any pending entries when the server exits
         } catch (IOException e) {
             System.err.println("Could not create log directory or file: " + e.getMessage());
         }
     }
 
     /**
-     * Utility function for logging server events. All logs are printed to stdout and also to the log file in the logs sub-directory.
-     * @param event The event being logged. They can be one of {@code JOIN},{@code CALC}, or {@code LEAVE}.
-     * @param clientName The name of the client to which {@code event} belongs.
-     * @param details Information about the event.
+     * Opens the request journal in the directory given by {@code --journal-dir}, if any, continuing after the segments
+     * left by previous runs, and closes it when the server exits
      */
-    private static void log(final String event, final String clientName, final String details) {
-        final String timestamp = LocalDateTime.now().format(TIMESTAMP);
-        final String entry = String.format("[%s] %s - %s: %s", timestamp, event, clientName, details);
-        System.out.println(entry);
+    private static void setupJournal() {
+        final String directory = option("journal-dir", null);
+        if (directory == null) {
+            return;
+        }
         try {
-            Files.writeString(
-                Path.of("logs/server.log"),
-                entry + System.lineSeparator(),
-                StandardOpenOption.CREATE, StandardOpenOption.APPEND
+            journal = new RequestJournal(
+                Paths.get(directory),
+                (long) intOption("journal-segment-mb", JOURNAL_SEGMENT_MB) << 20,
+                intOption("journal-max-segments", 0)
             );
+            Runtime.getRuntime().addShutdownHook(new Thread(journal::close, "JournalFlusher"));
+        } catch (IOException e) {
+            log("ERR", "SERVER", "Could not open the request journal, continuing without it: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Records an answered calculation request in the request journal, if there is one
+     * @param req The request
+     * @param dequeued When a processor took the request, from {@link System#nanoTime}
+     * @param evaluated When its evaluation finished
+     * @param outcome The result sent back, or the error description
+     * @param success Whether the result was sent rather than an error
+     */
+    private static void journal(final CalcRequest req, final long dequeued, final long evaluated, final CharSequence outcome, final boolean success) {
+        final RequestJournal target = journal;
+        if (target == null) {
+            return;
+        }
+        final byte flags = (byte) ((success ? 0 : RequestJournal.ERROR) | (req.exact ? RequestJournal.EXACT : 0) | (req.batch ? RequestJournal.BATCH : 0));
+        try {
+            target.append(System.currentTimeMillis(), req.clientName, req.expression, outcome.toString(), flags,
+                dequeued - req.receivedAt, evaluated - dequeued);
         } catch (IOException e) {
-            System.err.println("Failed to write log: " + e.getMessage());
+            log("ERR", "SERVER", "Could not write to the request journal, continuing without it: " + e.getMessage());
+            journal = null;
+            target.close();
+        }
+    }
+
+    /**
+     * Utility function for logging server events. All logs are printed to stdout (unless disabled with {@code --log-console=false})
+     * and also to the log file in the logs sub-directory. The entry is only queued here; it is written by the log's background thread.
+     * @param event The event being logged. They can be one of {@code JOIN},{@code CALC}, or {@code LEAVE}.
+     * @param clientName The name of the client to which {@code event} belongs.
+     * @param details Information about the event.
+     */
+    static void log(final String event, final String clientName, final String details) {
+        final ServerLog target = serverLog;
+        if (target != null) {
+            target.log(event, clientName, details);
+        } else {
+            System.err.println(event + " - " + clientName + ": " + details);
         }
     }
 
@@ -253,136 +493,139 @@ public class MathServer {
     /**
      * A basic utility class that tracks relevant information for each incoming calculation request
      */
-    private static class CalcRequest {
+    static class CalcRequest {
+        private static final int REQUEST_OVERHEAD = 32;
         final String clientName;
+        final String id;    // The client's request id, or null for clients that did not opt into request ids at JOIN
+        final int frameId;  // The request id of a binary protocol frame
         final String expression;
         final ClientHandler handler;
+        final boolean batch;    // Whether this is a CALCBATCH request, whose expression holds several ';'-separated expressions
+        final boolean exact;    // Whether to evaluate with exact decimal arithmetic instead of doubles
+        final String variable;  // The variable assigned by a SET or DEF request, or null for a calculation
+        final boolean formula;  // Whether this is a DEF request, which keeps the variable computed from its expression
+        final long receivedAt = System.nanoTime();  // When the request was read from the connection, for the queue wait metric
+        final long deadlineNanos;   // How long the request may wait for a processor before it is answered with ERR:Deadline Exceeded instead, or 0 for no limit
+        final boolean streamed;     // Whether the expression was evaluated as it arrived, so that only its outcome below is sent
+        final double value;     // The result of a streamed expression
+        final String error;     // Why a streamed expression could not be evaluated, or null if it could
+        final int cost;     // Estimate of the work to evaluate the request, which its client's share of the processor is measured in
+        boolean shed;   // Set, under the queue's lock, when the request was dropped from a full queue to make room for a newer one
+        long start;     // Set, under the queue's lock, to the virtual time at which the request's fair share of the processor starts
+        long arrival;   // Set, under the queue's lock, to the number of requests queued before it
 
         /**
          * Creates a new calculation request with the specified parameters
          * 
          * @param clientName The name of the client making the request
+         * @param id The request id given by the client, or {@code null} if it does not use request ids
          * @param expression The mathematical expression to calculate
          * @param handler The client handler instance to send the result back to
+         * @param batch Whether {@code expression} holds the {@code ;}-separated expressions of a CALCBATCH request
+         * @param exact Whether to evaluate with exact decimal arithmetic
          */
-        CalcRequest(final String clientName, final String expression, final ClientHandler handler) {
+        CalcRequest(final String clientName, final String id, final String expression, final ClientHandler handler, final boolean batch, final boolean exact) {
             this.clientName = clientName;
+            this.id = id;
+            this.frameId = 0;
             this.expression = expression;
             this.handler = handler;
-        }
-    }
-
-    /**
-     * Handles communication with an individual client. Each client connection
-     * is managed by its own instance of this class running in a separate thread.
-     */
-    private static class ClientHandler implements Runnable {
-        private final Socket socket;
-        private String clientName;
-        private PrintWriter out;
-
-        /**
-         * Creates a new client handler for the specified socket
-         * 
-         * @param socket The client socket connection
-         */
-        ClientHandler(Socket socket) {
-            this.socket = socket;
-        }
-
-        /**
-         * Main processing loop for client communication. Reads incoming messages,
-         * parses them, and handles them according to the protocol.
-         */
-        @Override
-        public void run() {
-            final String clientAddr = socket.getRemoteSocketAddress().toString();
-            try (BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream()));
-                 PrintWriter writer = new PrintWriter(socket.getOutputStream(), true)) {
-                this.out = writer;
-                
-                String line;
-                while ((line = in.readLine()) != null) {
-                    final String[] parts = line.split(":", 2);    // Parse the input from client
-
-                    if (parts.length != 2) {
-                        sendMessage("ERR:Invalid Expression Format");
-                        log("ERR", "UNKNOWN", "Malformed command");
-                        continue;
-                    }
-
-                    final String cmd = parts[0];
-                    switch (cmd) {  // Process the request from client
-                        case "JOIN" -> handleJoin(parts[1], clientAddr);
-                        case "CALC" -> handleCalc(parts[1]);
-                        case "LEAVE" -> {
-                            sendMessage("ACK:" + clientName + ":Goodbye");
-                            return;
-                        }
-                        default -> {
-                            sendMessage("ERR:Invalid Expression Format");
-                            log("ERR", "UNKNOWN", "Unknown command: " + cmd);
-                        }
-                    }
-                }
-            } catch (IOException e) {
-                log("ERR", clientName != null ? clientName : "UNKNOWN", e.getMessage());
-            } finally {
-                cleanup();
-            }
+            this.batch = batch;
+            this.exact = exact;
+            this.variable = null;
+            this.formula = false;
+            this.deadlineNanos = handler.deadlineNanos();
+            this.streamed = false;
+            this.value = Double.NaN;
+            this.error = null;
+            this.cost = costOf(expression);
         }
 
         /**
-         * Describes what the handler thread should do when handling a newly connected client
-         * @param payload The name of the client that joined, usually
-         * @param clientAddr The IP address of the client
+         * Creates a new calculation request received as a binary protocol frame
+         *
+         * @param clientName The name of the client making the request
+         * @param frameId The request id of the frame
+         * @param expression The mathematical expression to calculate
+         * @param handler The client handler instance to send the result back to
          */
-        private void handleJoin(final String payload, final String clientAddr) {
-            clientName = payload;
-
-            // Record both the assigned handler object and the join time for each client
-            clients.put(clientName, this);
-            connectTimes.put(clientName, Instant.now());
-            log("CONNECT", clientName, "Connected from " + clientAddr);
-            sendMessage("ACK:" + clientName + ":Welcome");
+        CalcRequest(final String clientName, final int frameId, final String expression, final ClientHandler handler) {
+            this.clientName = clientName;
+            this.id = null;
+            this.frameId = frameId;
+            this.expression = expression;
+            this.handler = handler;
+            this.batch = false;
+            this.exact = false;
+            this.variable = null;
+            this.formula = false;
+            this.deadlineNanos = handler.deadlineNanos();
+            this.streamed = false;
+            this.value = Double.NaN;
+            this.error = null;
+            this.cost = costOf(expression);
         }
 
         /**
-         * Describes what the handler thread should do to process a calculation request from a client
-         * @param payload An input string in the format {@code <ClientName>:<ArithmeticExpression>}
+         * Creates a new request to assign a session variable
+         *
+         * @param clientName The name of the client making the request
+         * @param handler The client handler instance whose session the variable belongs to
+         * @param variable The name of the variable
+         * @param expression The expression the variable is set to, or defined as
+         * @param formula Whether this is a DEF rather than a SET request
          */
-        private void handleCalc(final String payload) {
-            final String[] parts = payload.split(":", 2);
-            if (parts.length != 2) {
-                sendMessage("ERR:Invalid Expression Format");
-                log("ERR", clientName, "CALC missing expression");
-                return;
-            }
-            final String expr = parts[1];
-            requestQueue.offer(new CalcRequest(clientName, expr, this));    // Add the calc request to the queue of calc requests
+        CalcRequest(final String clientName, final ClientHandler handler, final String variable, final String expression, final boolean formula) {
+            this.clientName = clientName;
+            this.id = null;
+            this.frameId = 0;
+            this.expression = expression;
+            this.handler = handler;
+            this.batch = false;
+            this.exact = false;
+            this.variable = variable;
+            this.formula = formula;
+            this.deadlineNanos = 0;     // Assignments change the session, so they are never dropped unevaluated
+            this.streamed = false;
+            this.value = Double.NaN;
+            this.error = null;
+            this.cost = costOf(expression);
         }
 
         /**
-         * Describes what the handler thread should do when a client disconnects from the server
+         * Creates a calculation request whose expression was already evaluated while it was received, because it was
+         * too long to hold whole, so that its result is sent in order with the client's other responses
+         *
+         * @param clientName The name of the client making the request
+         * @param id The request id given by the client, or {@code null} if it does not use request ids
+         * @param summary The start of the expression and its length, to log it by
+         * @param handler The client handler instance to send the result back to
+         * @param value The result, unless the evaluation failed
+         * @param error Why the evaluation failed, or {@code null} if it succeeded
          */
-        private void cleanup() {
-            if (clientName != null) {
-                clients.remove(clientName);
-                final Instant start = connectTimes.remove(clientName);
-                final long secs = start != null ? Duration.between(start, Instant.now()).getSeconds() : 0;  // The number of seconds the client was connected to the server
-                log("DISCONNECT", clientName, "Client disconnected after " + secs + " seconds");
-            }
-            try {
-                socket.close();
-            } catch (IOException ignored) {}
+        CalcRequest(final String clientName, final String id, final String summary, final ClientHandler handler, final double value, final String error) {
+            this.clientName = clientName;
+            this.id = id;
+            this.frameId = 0;
+            this.expression = summary;
+            this.handler = handler;
+            this.batch = false;
+            this.exact = false;
+            this.variable = null;
+            this.formula = false;
+            this.deadlineNanos = handler.deadlineNanos();
+            this.streamed = true;
+            this.value = value;
+            this.error = error;
+            this.cost = costOf(summary);    // Only sending the outcome is left to do
         }
 
         /**
-         * Utility function for sending messages from the server to clients
-         * @param msg The message to be sent to the connected client
+         * Estimates the work of a request from the length of its expression, which the time to parse and evaluate it
+         * grows with, plus {@value #REQUEST_OVERHEAD} for handling any request at all
          */
-        private void sendMessage(final String msg) {
-            out.println(msg);
+        private static int costOf(final String expression) {
+            return REQUEST_OVERHEAD + expression.length();
         }
     }
 }
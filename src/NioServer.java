@@ -0,0 +1,421 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.StandardSocketOptions;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.Set;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+/**
+ * Non-blocking connection engine. A single selector thread accepts connections, reads and splits incoming lines
+ * and flushes pending output for every client, so idle connections cost a little memory but no thread.
+ * Responses written by the request processors go straight to the channel when possible, and are otherwise queued
+ * until the selector reports that the channel is writable again. A client that lets more than
+ * {@value #MAX_PENDING_OUTPUT} bytes of responses pile up is not read from until it has taken half of them, so that a
+ * client that never reads cannot make the server queue output without end. Under the {@code block} overload policy, a
+ * client whose request does not fit in its full queue is likewise not read from until the request has been queued.
+ */
+final class NioServer {
+    private static final int READ_BUFFER_SIZE = 8192;
+    private static final long STALL_RETRY_MILLIS = 1;  // How often stalled clients offer their request to its queue again
+    private static final ByteBuffer NO_INPUT = ByteBuffer.allocate(0);
+    private static final int LINE_SIZE = 128;      // Initial size of a connection's line array
+    private static final int MAX_KEPT_LINE = 1 << 16;  // Larger line arrays, grown for one long message, are not kept
+    private static final int MAX_PENDING_OUTPUT = 1 << 20;     // Bytes queued for a client that is not reading, after which it is not read from either
+
+    private final Selector selector;
+    private final ServerSocketChannel serverChannel;
+    private final ByteBuffer readBuffer = ByteBuffer.allocateDirect(READ_BUFFER_SIZE);  // Shared by all connections, since only the selector thread reads
+    private final Set<NioClientHandler> stalledClients = new LinkedHashSet<>();  // Clients not being read from until their request fits in its queue
+    private final ConcurrentLinkedQueue<NioClientHandler> closeRequests = new ConcurrentLinkedQueue<>();   // Clients closed by other threads, whose channels the selector thread still has to close
+    private volatile Thread selectorThread;  // The thread running the selector loop, the only one that touches selection keys
+
+    /**
+     * Opens a non-blocking server channel on the specified port
+     *
+     * @param port The port to listen on
+     * @throws IOException if the port could not be bound
+     */
+    NioServer(final int port) throws IOException {
+        selector = Selector.open();
+        serverChannel = ServerSocketChannel.open();
+        serverChannel.bind(new InetSocketAddress(port));
+        serverChannel.configureBlocking(false);
+        serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+    }
+
+    /**
+     * Runs the selector loop on the calling thread. Only returns if the selector itself fails; a failure while serving
+     * one connection only closes that connection.
+     *
+     * @throws IOException if the selector or the server channel fails
+     */
+    void run() throws IOException {
+        selectorThread = Thread.currentThread();
+        while (true) {
+            selector.select(stalledClients.isEmpty() ? 0 : STALL_RETRY_MILLIS);
+            for (NioClientHandler handler; (handler = closeRequests.poll()) != null; ) {
+                handler.closeChannel();
+            }
+            resumeStalledClients();
+            final Iterator<SelectionKey> keys = selector.selectedKeys().iterator();
+            while (keys.hasNext()) {
+                final SelectionKey key = keys.next();
+                keys.remove();
+                if (!key.isValid()) {
+                    continue;
+                }
+                if (key.isAcceptable()) {
+                    accept();
+                    continue;
+                }
+
+                final NioClientHandler handler = (NioClientHandler) key.attachment();
+                try {
+                    if (key.isReadable()) {
+                        handler.read();
+                    }
+                    if (key.isValid() && key.isWritable()) {
+                        handler.flush();
+                    }
+                } catch (IOException e) {
+                    if (!handler.isCleanedUp()) {   // Otherwise the connection was closed on purpose, e.g. for being idle
+                        MathServer.log("ERR", handler.clientName != null ? handler.clientName : "UNKNOWN", e.getMessage());
+                    }
+                    handler.cleanup();
+                } catch (RuntimeException e) {
+                    MathServer.log("ERR", handler.clientName != null ? handler.clientName : "UNKNOWN", "Closing the connection after an unexpected error: " + e);
+                    handler.cleanup();
+                }
+            }
+        }
+    }
+
+    /**
+     * Retries the stalled request of every paused client, and resumes handling the input of those whose request now fits
+     */
+    private void resumeStalledClients() {
+        for (Iterator<NioClientHandler> it = stalledClients.iterator(); it.hasNext(); ) {
+            final NioClientHandler handler = it.next();
+            if (!handler.key.isValid()) {
+                it.remove();
+                continue;
+            }
+            try {
+                if (handler.resume()) {
+                    it.remove();
+                }
+            } catch (IOException | RuntimeException e) {
+                it.remove();
+                MathServer.log("ERR", handler.clientName != null ? handler.clientName : "UNKNOWN", e.getMessage());
+                handler.cleanup();
+            }
+        }
+    }
+
+    /**
+     * Accepts every pending connection and registers it with the selector
+     */
+    private void accept() throws IOException {
+        SocketChannel channel;
+        while ((channel = serverChannel.accept()) != null) {
+            channel.configureBlocking(false);
+            channel.setOption(StandardSocketOptions.TCP_NODELAY, true);     // Responses are already coalesced by the request processors
+            final NioClientHandler handler = new NioClientHandler(channel);
+            handler.key = channel.register(selector, SelectionKey.OP_READ, handler);
+            handler.watchTimeouts();
+        }
+    }
+
+    /**
+     * Client handler for a non-blocking channel owned by this server's selector
+     */
+    private final class NioClientHandler extends ClientHandler {
+        private final SocketChannel channel;
+        private final ArrayDeque<ByteBuffer> pendingOutput = new ArrayDeque<>(); // Encoded messages not yet fully written to the channel
+        private int pendingBytes;   // Bytes left in pendingOutput
+        private boolean backlogged; // Whether reading is paused until the client takes more of its pending output
+        private SelectionKey key;
+        private byte[] line = new byte[LINE_SIZE];  // Bytes of the line (or frames) currently being received
+        private int lineLength;
+        private boolean skipLF;     // Whether a '\n' directly following the previous '\r' should be ignored
+        private boolean diverted;   // Whether the rest of the current line is handed to divertedByte rather than buffered
+        private ByteBuffer unhandledInput;  // Input read after a stalled text request, handled once the client resumes
+        private boolean leaving;    // Set once the client has sent LEAVE; the channel closes when the output is flushed
+        private boolean closed;
+
+        NioClientHandler(final SocketChannel channel) throws IOException {
+            super(channel.getRemoteAddress().toString());
+            this.channel = channel;
+        }
+
+        @Override
+        boolean readerMayBlock() {
+            return false;   // Waiting would stall every connection, not just this one
+        }
+
+        /**
+         * Reads whatever is available from the channel and handles each complete line. Lines may be terminated by
+         * {@code \n}, {@code \r} or {@code \r\n}, exactly like {@link java.io.BufferedReader#readLine()}. A line that
+         * the protocol takes over with {@link #divertLine} is handed to it byte by byte instead of being buffered.
+         * Once the client has negotiated the binary protocol, the input is split into frames instead.
+         */
+        void read() throws IOException {
+            readBuffer.clear();
+            final int n = channel.read(readBuffer);
+            if (n < 0) {
+                if (diverted && !leaving) {
+                    endDivertedLine();
+                } else if (lineLength > 0 && !leaving && !isBinary()) {
+                    handleLine(decodeLine());   // A final line without a terminator is still a message
+                }
+                cleanup();
+                return;
+            }
+
+            readBuffer.flip();
+            handleInput(readBuffer);
+        }
+
+        /**
+         * Handles every complete line, or frame, in the input until it runs out or a request stalls, in which case
+         * reading from the client is paused and the rest of the input kept until {@link #resume}
+         * @param input The bytes to handle
+         */
+        private void handleInput(final ByteBuffer input) throws IOException {
+            while (!leaving && !isStalled()) {
+                if (isBinary()) {
+                    readFrames(input);
+                    break;
+                }
+                if (!input.hasRemaining()) {
+                    break;
+                }
+                final byte b = input.get();
+                if (skipLF) {
+                    skipLF = false;
+                    if (b == '\n') {
+                        continue;
+                    }
+                }
+                if (b == '\n' || b == '\r') {
+                    skipLF = b == '\r';
+                    if (diverted) {
+                        diverted = false;
+                        endDivertedLine();
+                    } else if (!handleLine(decodeLine())) {
+                        leave();
+                    }
+                } else if (diverted) {
+                    divertedByte(b);
+                } else {
+                    append(b);
+                    if (divertLine(line, lineLength)) {
+                        diverted = true;
+                        lineLength = 0;
+                        shrinkLine();
+                    }
+                }
+            }
+            if (lineLength > 0 || diverted) {
+                messageStarting();  // Part of a line or frame is waiting for the rest
+            }
+            if (isStalled()) {
+                if (input.hasRemaining()) {
+                    unhandledInput = ByteBuffer.allocate(input.remaining()).put(input).flip();
+                }
+                key.interestOpsAnd(~SelectionKey.OP_READ);
+                stalledClients.add(this);
+            }
+        }
+
+        /**
+         * Offers the stalled request to its queue again and, if it fits, handles the input received after it and
+         * starts reading from the client again
+         * @return whether the client is no longer stalled
+         */
+        boolean resume() throws IOException {
+            if (!retryStalled()) {
+                return false;
+            }
+            final ByteBuffer input = unhandledInput != null ? unhandledInput : NO_INPUT;
+            unhandledInput = null;
+            handleInput(input);
+            if (isStalled()) {
+                return false;
+            }
+            resumeReading();
+            return true;
+        }
+
+        /**
+         * Starts reading from the client again, unless it has left, is stalled or has too much output pending
+         */
+        private synchronized void resumeReading() {
+            if (!leaving && !closed && !backlogged && !isStalled()) {
+                key.interestOpsOr(SelectionKey.OP_READ);
+            }
+        }
+
+        /**
+         * Appends the rest of the input to the pending frame bytes and handles every complete frame in them
+         * @param input The bytes received after the JOIN line
+         */
+        private void readFrames(final ByteBuffer input) throws IOException {
+            if (skipLF && input.hasRemaining()) {
+                skipLF = false;     // The JOIN line ended with '\r', so a '\n' may still precede the first frame
+                if (input.get(input.position()) == '\n') {
+                    input.get();
+                }
+            }
+            while (input.hasRemaining()) {
+                append(input.get());
+            }
+
+            int start = 0;
+            while (lineLength - start >= 4 && !leaving && !isStalled()) {
+                final int length = ByteBuffer.wrap(line, start, 4).getInt();
+                BinaryProtocol.checkLength(length);
+                if (lineLength - start - 4 < length) {
+                    break;      // The rest of the frame has not arrived yet
+                }
+                final ByteBuffer frame = ByteBuffer.wrap(line, start + 4, length);
+                final byte opcode = frame.get();
+                final int requestId = frame.getInt();
+                final byte[] payload = Arrays.copyOfRange(line, start + 4 + BinaryProtocol.HEADER_LENGTH, start + 4 + length);
+                start += 4 + length;
+                if (!handleFrame(new BinaryProtocol.Frame(opcode, requestId, payload))) {
+                    leave();
+                }
+            }
+            System.arraycopy(line, start, line, 0, lineLength - start);
+            lineLength -= start;
+            shrinkLine();
+        }
+
+        private void append(final byte b) {
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, lineLength * 2);
+            }
+            line[lineLength++] = b;
+        }
+
+        /**
+         * Stops reading from a client that sent LEAVE, and closes the connection once its output has been written
+         */
+        private void leave() {
+            leaving = true;
+            key.interestOpsAnd(~SelectionKey.OP_READ);  // Ignore anything sent after LEAVE
+            closeIfDrained();
+        }
+
+        private String decodeLine() {
+            final String decoded = new String(line, 0, lineLength, Charset.defaultCharset());
+            lineLength = 0;
+            shrinkLine();
+            return decoded;
+        }
+
+        /**
+         * Lets go of a line array grown for a long message once what is left of it fits in a small one again
+         */
+        private void shrinkLine() {
+            if (line.length > MAX_KEPT_LINE && lineLength <= LINE_SIZE) {
+                line = Arrays.copyOf(line, LINE_SIZE);
+            }
+        }
+
+        @Override
+        void write(final byte[] message, final int length) {
+            final ByteBuffer bytes = ByteBuffer.wrap(message, 0, length);
+            synchronized (this) {
+                if (closed) {
+                    return;
+                }
+                if (pendingOutput.isEmpty()) {
+                    try {
+                        channel.write(bytes);
+                    } catch (IOException e) {
+                        return;     // The selector thread notices the broken connection on its next read
+                    }
+                    if (!bytes.hasRemaining()) {
+                        return;
+                    }
+                    key.interestOpsOr(SelectionKey.OP_WRITE);
+                    selector.wakeup();
+                }
+                pendingBytes += bytes.remaining();
+                pendingOutput.add(ByteBuffer.allocate(bytes.remaining()).put(bytes).flip());    // The array is reused
+                if (pendingBytes > MAX_PENDING_OUTPUT && !backlogged) {
+                    backlogged = true;
+                    key.interestOpsAnd(~SelectionKey.OP_READ);  // Requests already queued may still add their responses
+                }
+            }
+        }
+
+        /**
+         * Writes as much queued output as the channel accepts, and closes the connection if the client has left
+         * and all of its output has been written
+         */
+        synchronized void flush() throws IOException {
+            while (!pendingOutput.isEmpty()) {
+                final ByteBuffer head = pendingOutput.peek();
+                pendingBytes -= channel.write(head);
+                if (backlogged && pendingBytes <= MAX_PENDING_OUTPUT / 2) {
+                    backlogged = false;
+                    resumeReading();
+                }
+                if (head.hasRemaining()) {
+                    return;
+                }
+                pendingOutput.poll();
+            }
+            key.interestOpsAnd(~SelectionKey.OP_WRITE);
+            closeIfDrained();
+        }
+
+        private synchronized void closeIfDrained() {
+            if (leaving && pendingOutput.isEmpty()) {
+                cleanup();
+            }
+        }
+
+        /**
+         * Stops all output to the client at once. The key and the channel are only closed by the selector thread, which
+         * may be using them right now, so a close from another thread, e.g. the {@link SessionReaper}, is handed to it.
+         */
+        @Override
+        synchronized void close() {
+            if (closed) {
+                return;
+            }
+            closed = true;
+            pendingOutput.clear();
+            pendingBytes = 0;
+            if (Thread.currentThread() == selectorThread) {
+                closeChannel();
+            } else {
+                closeRequests.add(this);
+                selector.wakeup();
+            }
+        }
+
+        /**
+         * Cancels the key and closes the channel. Only called by the selector thread.
+         */
+        void closeChannel() {
+            key.cancel();
+            try {
+                channel.close();
+            } catch (IOException ignored) {}
+        }
+    }
+}
@@ -0,0 +1,260 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.stream.Stream;
+
+/**
+ * Append-only binary journal of the calculation requests a server answered: who sent each one and when, the
+ * expression, the result or error sent back, and how long the request waited in its queue and took to evaluate.
+ * Unlike {@code logs/server.log}, the journal is kept across restarts and can be scanned quickly by {@link JournalTool}.
+ *
+ * <p>The journal is a directory of segment files named {@code journal-<sequence>.ncj}, each memory-mapped at a fixed
+ * size and filled with records one after the other. A record that does not fit in the rest of the segment starts a new
+ * one, and a restarted server continues with the next sequence number. Appending only copies the record into the
+ * mapped pages, and the operating system writes them to disk in the background, so a record is not lost if the server
+ * process dies, only if the machine does before the pages are written out.
+ *
+ * <p>Each segment starts with the {@link #MAGIC} number and the format {@link #VERSION}. Each record is:
+ * <ul>
+ * <li>int: the length of the rest of the record; 0 where no more records follow, as unwritten pages read as zero</li>
+ * <li>long: when the request was answered, in milliseconds since the epoch</li>
+ * <li>long, long: the nanoseconds the request waited in its queue, and took to evaluate</li>
+ * <li>byte: the {@link #ERROR}, {@link #EXACT}, {@link #BATCH} and {@link #TRUNCATED} flags</li>
+ * <li>short, int, int: the lengths of the client name, the expression and the outcome, in bytes</li>
+ * <li>the UTF-8 bytes of the client name, the expression and the outcome (the result as sent, or the error description)</li>
+ * </ul>
+ * The length is written after the rest of the record, so a reader never sees a record that is only partly written.
+ * All numbers are big-endian.
+ */
+final class RequestJournal implements AutoCloseable {
+    static final int MAGIC = 0x4E434A31;    // "NCJ1"
+    static final int VERSION = 1;
+    static final int SEGMENT_HEADER_LENGTH = 8;
+    static final int RECORD_HEADER_LENGTH = 8 + 8 + 8 + 1 + 2 + 4 + 4;     // After the length field
+    static final byte ERROR = 1;        // The outcome is an error description
+    static final byte EXACT = 2;        // The request asked for exact decimal arithmetic
+    static final byte BATCH = 4;        // The expression and outcome are the ';'-separated items of a CALCBATCH request
+    static final byte TRUNCATED = 8;    // The expression or the outcome was cut to MAX_FIELD_LENGTH bytes
+    static final int MAX_FIELD_LENGTH = 1 << 16;    // Longest expression or outcome kept in full
+    static final long MIN_SEGMENT_SIZE = 1 << 20;   // Guarantees that the longest possible record fits in a segment
+    static final long MAX_SEGMENT_SIZE = 1 << 30;
+    private static final String PREFIX = "journal-";
+    private static final String SUFFIX = ".ncj";
+
+    private final Path directory;
+    private final long segmentSize;
+    private final int maxSegments;
+    private final ArrayDeque<Path> segments = new ArrayDeque<>();  // Existing segments, oldest first
+    private long sequence;          // Sequence number of the current segment
+    private FileChannel channel;
+    private MappedByteBuffer segment;   // The current segment, positioned after its last record; null once closed
+
+    /**
+     * Opens the journal in a directory, creating the directory if needed, and starts a new segment after the existing ones
+     *
+     * @param directory The directory holding the segments
+     * @param segmentSize The size of each segment in bytes, between {@value #MIN_SEGMENT_SIZE} and {@value #MAX_SEGMENT_SIZE}
+     * @param maxSegments The number of segments to keep, deleting the oldest ones beyond that, or 0 to keep them all
+     * @throws IOException if the directory or the first segment cannot be created
+     */
+    RequestJournal(final Path directory, final long segmentSize, final int maxSegments) throws IOException {
+        this.directory = directory;
+        this.segmentSize = Math.max(MIN_SEGMENT_SIZE, Math.min(segmentSize, MAX_SEGMENT_SIZE));
+        this.maxSegments = maxSegments;
+        Files.createDirectories(directory);
+        segments.addAll(segments(directory));
+        sequence = segments.isEmpty() ? 0 : sequenceOf(segments.getLast());
+        roll();
+    }
+
+    /**
+     * Appends a record to the journal. Does nothing once the journal is closed.
+     * @param timestamp When the request was answered, in milliseconds since the epoch
+     * @param client The name of the client that sent the request
+     * @param expression The expression, or the expressions of a batch
+     * @param outcome The result sent back, or the error description
+     * @param flags The {@link #ERROR}, {@link #EXACT} and {@link #BATCH} flags that apply
+     * @param queueNanos How long the request waited in its queue
+     * @param evalNanos How long the request took to evaluate
+     * @throws IOException if a new segment was needed and could not be created
+     */
+    synchronized void append(final long timestamp, final String client, final String expression, final String outcome,
+                             byte flags, final long queueNanos, final long evalNanos) throws IOException {
+        if (segment == null) {
+            return;
+        }
+        final byte[] clientBytes = truncate(client.getBytes(StandardCharsets.UTF_8), Short.MAX_VALUE);
+        byte[] expressionBytes = expression.getBytes(StandardCharsets.UTF_8);
+        byte[] outcomeBytes = outcome.getBytes(StandardCharsets.UTF_8);
+        if (expressionBytes.length > MAX_FIELD_LENGTH || outcomeBytes.length > MAX_FIELD_LENGTH) {
+            expressionBytes = truncate(expressionBytes, MAX_FIELD_LENGTH);
+            outcomeBytes = truncate(outcomeBytes, MAX_FIELD_LENGTH);
+            flags |= TRUNCATED;
+        }
+        final int length = RECORD_HEADER_LENGTH + clientBytes.length + expressionBytes.length + outcomeBytes.length;
+        if (segment.remaining() < 4 + length) {
+            roll();
+        }
+
+        final int start = segment.position();
+        segment.position(start + 4);
+        segment.putLong(timestamp).putLong(queueNanos).putLong(evalNanos).put(flags)
+            .putShort((short) clientBytes.length).putInt(expressionBytes.length).putInt(outcomeBytes.length)
+            .put(clientBytes).put(expressionBytes).put(outcomeBytes);
+        segment.putInt(start, length);      // Last, so that the record only becomes visible once complete
+    }
+
+    private static byte[] truncate(final byte[] bytes, final int max) {
+        return bytes.length <= max ? bytes : Arrays.copyOf(bytes, max);
+    }
+
+    /**
+     * Writes the current segment out and starts the next one, deleting the oldest segments beyond the configured number
+     */
+    private void roll() throws IOException {
+        closeSegment();
+        final Path file = directory.resolve(String.format("%s%010d%s", PREFIX, ++sequence, SUFFIX));
+        channel = FileChannel.open(file, StandardOpenOption.CREATE_NEW, StandardOpenOption.READ, StandardOpenOption.WRITE);
+        segment = channel.map(FileChannel.MapMode.READ_WRITE, 0, segmentSize);
+        segment.putInt(MAGIC).putInt(VERSION);
+        segments.addLast(file);
+        while (maxSegments > 0 && segments.size() > maxSegments) {
+            Files.deleteIfExists(segments.removeFirst());
+        }
+    }
+
+    private void closeSegment() throws IOException {
+        if (segment != null) {
+            segment.force();
+            segment = null;     // Unmapped once collected
+            channel.close();
+        }
+    }
+
+    /**
+     * Writes out and closes the current segment. Records appended afterwards are dropped.
+     */
+    @Override
+    public synchronized void close() {
+        try {
+            closeSegment();
+        } catch (IOException e) {
+            System.err.println("Could not write out the request journal: " + e.getMessage());
+        }
+    }
+
+    /**
+     * @return the segment files in a journal directory, oldest first
+     * @throws IOException if the directory cannot be listed
+     */
+    static List<Path> segments(final Path directory) throws IOException {
+        final List<Path> found = new ArrayList<>();
+        try (Stream<Path> files = Files.list(directory)) {
+            files.filter(file -> {
+                final String name = file.getFileName().toString();
+                return name.startsWith(PREFIX) && name.endsWith(SUFFIX);
+            }).forEach(found::add);
+        }
+        found.sort((a, b) -> Long.compare(sequenceOf(a), sequenceOf(b)));
+        return found;
+    }
+
+    private static long sequenceOf(final Path segment) {
+        final String name = segment.getFileName().toString();
+        return Long.parseLong(name.substring(PREFIX.length(), name.length() - SUFFIX.length()));
+    }
+
+    /**
+     * Reads the records of one segment in order. The numeric fields of the current record are decoded by
+     * {@link #next()}, while its texts are only decoded when asked for, so that scans that do not need them stay fast.
+     */
+    static final class Cursor {
+        private final ByteBuffer buffer;
+        private int textsAt;    // Position of the current record's client name
+        long timestamp;
+        long queueNanos;
+        long evalNanos;
+        byte flags;
+        int clientLength;
+        int expressionLength;
+        int outcomeLength;
+
+        /**
+         * Maps a segment for reading; it may still be being written by a running server
+         * @param segment The segment file
+         * @throws IOException if the file cannot be mapped or is not a journal segment
+         */
+        Cursor(final Path segment) throws IOException {
+            try (FileChannel channel = FileChannel.open(segment, StandardOpenOption.READ)) {
+                buffer = channel.map(FileChannel.MapMode.READ_ONLY, 0, channel.size());
+            }
+            if (buffer.remaining() < SEGMENT_HEADER_LENGTH || buffer.getInt() != MAGIC) {
+                throw new IOException(segment + " is not a journal segment");
+            }
+            final int version = buffer.getInt();
+            if (version != VERSION) {
+                throw new IOException(segment + " has unsupported journal version " + version);
+            }
+        }
+
+        /**
+         * Moves to the next record
+         * @return whether there was one, or {@code false} at the end of the written records
+         */
+        boolean next() {
+            if (buffer.remaining() < 4) {
+                return false;
+            }
+            final int start = buffer.position();
+            final int length = buffer.getInt(start);
+            if (length < RECORD_HEADER_LENGTH || length > buffer.remaining() - 4) {
+                return false;
+            }
+            buffer.position(start + 4);
+            timestamp = buffer.getLong();
+            queueNanos = buffer.getLong();
+            evalNanos = buffer.getLong();
+            flags = buffer.get();
+            clientLength = buffer.getShort() & 0xFFFF;
+            expressionLength = buffer.getInt();
+            outcomeLength = buffer.getInt();
+            textsAt = buffer.position();
+            buffer.position(start + 4 + length);
+            return true;
+        }
+
+        /**
+         * @return the number of bytes read so far, including the segment header
+         */
+        int position() {
+            return buffer.position();
+        }
+
+        String client() {
+            return text(textsAt, clientLength);
+        }
+
+        String expression() {
+            return text(textsAt + clientLength, expressionLength);
+        }
+
+        String outcome() {
+            return text(textsAt + clientLength + expressionLength, outcomeLength);
+        }
+
+        private String text(final int at, final int length) {
+            final byte[] bytes = new byte[length];
+            buffer.get(at, bytes);
+            return new String(bytes, StandardCharsets.UTF_8);
+        }
+    }
+}
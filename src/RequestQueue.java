@@ -0,0 +1,221 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded queue of calculation requests waiting for one request processor, shared fairly between the clients that
+ * send them. What happens to a new request while the queue is full is decided by the {@link OverloadPolicy}.
+ *
+ * <p>Each connection's requests wait in a FIFO of their own, its flow, and the processor takes from the flows by
+ * start-time fair queuing: every request is stamped with the virtual time at which it would start if each flow with
+ * requests waiting got an equal share of the processor, and the request with the earliest stamp goes next. A request's
+ * share is its {@link MathServer.CalcRequest#cost}, so a client that sends one huge expression, or a hundred thousand
+ * small ones, only delays the other clients by about one request of the same cost each, rather than by all of its
+ * work. A client's own requests are still taken in the order they arrived, and a client that was idle starts at the
+ * current virtual time, without credit saved up from the time it sent nothing.
+ *
+ * <p>Shed requests are not answered by the thread that sheds them, but handed to the processor ahead of everything
+ * still queued. The request shed is always the oldest of its client, so its {@code ERR:Server Busy} still reaches the
+ * client after the responses to its earlier requests and before those to its later ones.
+ */
+final class RequestQueue {
+    /**
+     * What to do with a new request when the queue is full
+     */
+    enum OverloadPolicy {
+        REJECT,         // Refuse the new request with ERR:Server Busy
+        BLOCK,          // Stop reading from the client until there is room, pushing back through TCP
+        SHED_OLDEST     // Queue the new request and answer the oldest queued one of the client with the most queued with ERR:Server Busy instead
+    }
+
+    static final String SERVER_BUSY = "Server Busy";
+
+    private final int capacity;
+    private final OverloadPolicy policy;
+
+    // Pending requests, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final Map<ClientHandler, Flow> flows = new HashMap<>();     // Flows with requests waiting, by connection
+    private final PriorityQueue<Flow> ready = new PriorityQueue<>();    // The same flows, ordered by the stamp of their first request
+    private final ArrayDeque<MathServer.CalcRequest> shed = new ArrayDeque<>();    // Requests to answer with ERR:Server Busy, oldest first
+    private int queued;     // Requests waiting in all flows
+    private long virtualTime;   // Start stamp of the request taken last
+    private long arrivals;      // Breaks ties between equal stamps in arrival order
+
+    /**
+     * The requests of one connection waiting in this queue
+     */
+    private static final class Flow implements Comparable<Flow> {
+        final ClientHandler client;
+        final ArrayDeque<MathServer.CalcRequest> requests = new ArrayDeque<>();
+        long finish;    // Virtual time at which the flow's last request would finish
+
+        Flow(final ClientHandler client) {
+            this.client = client;
+        }
+
+        @Override
+        public int compareTo(final Flow other) {
+            final MathServer.CalcRequest a = requests.peek();
+            final MathServer.CalcRequest b = other.requests.peek();
+            return a.start != b.start ? Long.compare(a.start, b.start) : Long.compare(a.arrival, b.arrival);
+        }
+    }
+
+    /**
+     * Creates an empty queue
+     *
+     * @param capacity The maximum number of requests waiting to be evaluated
+     * @param policy What to do with new requests while the queue is full
+     */
+    RequestQueue(final int capacity, final OverloadPolicy policy) {
+        this.capacity = capacity;
+        this.policy = policy;
+    }
+
+    /**
+     * @return what happens to new requests while this queue is full
+     */
+    OverloadPolicy policy() {
+        return policy;
+    }
+
+    /**
+     * Adds a request to the end of its client's flow, applying the overload policy if the queue is full
+     * @param req The request
+     * @param mayWait Whether the calling thread may wait for room under {@link OverloadPolicy#BLOCK}. Connection engines
+     *                that serve many clients from one thread pass {@code false} and stop reading from the client instead.
+     * @return {@code true} if the request was queued; {@code false} if it was not, because the policy is
+     *         {@link OverloadPolicy#REJECT} or because it is {@link OverloadPolicy#BLOCK} and {@code mayWait} is {@code false}
+     */
+    boolean offer(final MathServer.CalcRequest req, final boolean mayWait) {
+        lock.lock();
+        try {
+            if (queued >= capacity) {
+                switch (policy) {
+                    case REJECT -> {
+                        return false;
+                    }
+                    case BLOCK -> {
+                        if (!mayWait) {
+                            return false;
+                        }
+                        ServerMetrics.blocked.increment();
+                        while (queued >= capacity) {
+                            notFull.awaitUninterruptibly();
+                        }
+                    }
+                    case SHED_OLDEST -> {
+                        final Flow longest = longestFlow();
+                        ready.remove(longest);
+                        final MathServer.CalcRequest oldest = removeFirst(longest);
+                        oldest.shed = true;
+                        shed.add(oldest);
+                    }
+                }
+            }
+
+            Flow flow = flows.get(req.handler);
+            final boolean idle = flow == null;
+            if (idle) {
+                flow = new Flow(req.handler);
+                flow.finish = virtualTime;
+                flows.put(req.handler, flow);
+            }
+            req.start = Math.max(virtualTime, flow.finish);
+            req.arrival = arrivals++;
+            flow.finish = req.start + req.cost;
+            flow.requests.add(req);
+            if (idle) {
+                ready.add(flow);
+            }
+            queued++;
+            notEmpty.signal();
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private Flow longestFlow() {
+        Flow longest = null;
+        for (Flow flow : flows.values()) {
+            if (longest == null || flow.requests.size() > longest.requests.size()) {
+                longest = flow;
+            }
+        }
+        return longest;
+    }
+
+    /**
+     * Removes the first request of a flow that has just been taken out of {@link #ready}, and puts the flow back,
+     * ordered by its next request, unless that was its last one
+     */
+    private MathServer.CalcRequest removeFirst(final Flow flow) {
+        final MathServer.CalcRequest req = flow.requests.poll();
+        if (flow.requests.isEmpty()) {
+            flows.remove(flow.client);
+        } else {
+            ready.add(flow);
+        }
+        queued--;
+        return req;
+    }
+
+    /**
+     * Waits for the next request to process. Shed requests come first, and are marked with {@link MathServer.CalcRequest#shed}.
+     * @return the request
+     * @throws InterruptedException if interrupted while waiting
+     */
+    MathServer.CalcRequest take() throws InterruptedException {
+        lock.lock();
+        try {
+            while (queued == 0 && shed.isEmpty()) {
+                notEmpty.await();
+            }
+            return next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Takes the next request to process like {@link #take}, without waiting
+     * @return the request, or {@code null} if there is none
+     */
+    MathServer.CalcRequest poll() {
+        lock.lock();
+        try {
+            return queued == 0 && shed.isEmpty() ? null : next();
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private MathServer.CalcRequest next() {
+        if (!shed.isEmpty()) {
+            return shed.poll();
+        }
+        final MathServer.CalcRequest req = removeFirst(ready.poll());
+        virtualTime = req.start;
+        notFull.signal();
+        return req;
+    }
+
+    /**
+     * @return the number of requests waiting to be evaluated
+     */
+    int size() {
+        lock.lock();
+        try {
+            return queued;
+        } finally {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,134 @@
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Growable byte array that responses are encoded into before they are written to a connection. Text is encoded with
+ * the platform charset, exactly like {@code String.getBytes(Charset.defaultCharset())}, but ASCII text (which every
+ * result, and almost every message, is) is copied without creating an intermediate String or byte array.
+ *
+ * <p>Not thread-safe.
+ */
+final class ResponseBuffer {
+    private static final Charset CHARSET = Charset.defaultCharset();
+    private static final boolean ASCII_COMPATIBLE = asciiCompatible();     // Whether the charset encodes ASCII as itself
+    static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(CHARSET);
+
+    private static final int MAX_KEPT_CAPACITY = 1 << 16;   // Larger arrays, grown for a big batch result, are not kept
+
+    private final int initialCapacity;
+    private byte[] bytes;
+    private int length;
+
+    /**
+     * Creates an empty buffer
+     *
+     * @param capacity The initial capacity in bytes
+     */
+    ResponseBuffer(final int capacity) {
+        initialCapacity = capacity;
+        bytes = new byte[capacity];
+    }
+
+    private static boolean asciiCompatible() {
+        final byte[] ascii = new byte[128];
+        final char[] chars = new char[128];
+        for (int i = 0; i < 128; i++) {
+            ascii[i] = (byte) i;
+            chars[i] = (char) i;
+        }
+        return Arrays.equals(new String(chars).getBytes(CHARSET), ascii);
+    }
+
+    /**
+     * @return the array holding the buffered bytes, which are its first {@link #length()} bytes
+     */
+    byte[] array() {
+        return bytes;
+    }
+
+    int length() {
+        return length;
+    }
+
+    /**
+     * Empties the buffer, keeping its capacity unless it has grown unusually large
+     */
+    void reset() {
+        length = 0;
+        if (bytes.length > MAX_KEPT_CAPACITY) {
+            bytes = new byte[initialCapacity];
+        }
+    }
+
+    private void ensure(final int extra) {
+        if (length + extra > bytes.length) {
+            bytes = Arrays.copyOf(bytes, Math.max(bytes.length * 2, length + extra));
+        }
+    }
+
+    ResponseBuffer append(final byte b) {
+        ensure(1);
+        bytes[length++] = b;
+        return this;
+    }
+
+    ResponseBuffer append(final byte[] b) {
+        ensure(b.length);
+        System.arraycopy(b, 0, bytes, length, b.length);
+        length += b.length;
+        return this;
+    }
+
+    /**
+     * Appends an int as 4 big-endian bytes, like {@link java.nio.ByteBuffer#putInt}
+     */
+    ResponseBuffer appendInt(final int value) {
+        ensure(4);
+        bytes[length++] = (byte) (value >>> 24);
+        bytes[length++] = (byte) (value >>> 16);
+        bytes[length++] = (byte) (value >>> 8);
+        bytes[length++] = (byte) value;
+        return this;
+    }
+
+    /**
+     * Appends a double as 8 big-endian bytes, like {@link java.nio.ByteBuffer#putDouble}
+     */
+    ResponseBuffer appendDouble(final double value) {
+        final long bits = Double.doubleToRawLongBits(value);
+        appendInt((int) (bits >>> 32));
+        return appendInt((int) bits);
+    }
+
+    /**
+     * Appends text encoded with the platform charset
+     * @param text The text
+     */
+    ResponseBuffer append(final CharSequence text) {
+        final int n = text.length();
+        ensure(n);
+        if (ASCII_COMPATIBLE) {
+            int i = 0;
+            while (i < n) {
+                final char c = text.charAt(i);
+                if (c >= 0x80) {
+                    break;
+                }
+                bytes[length + i++] = (byte) c;
+            }
+            length += i;
+            if (i == n) {
+                return this;
+            }
+            return append(text.subSequence(i, n).toString().getBytes(CHARSET));
+        }
+        return append(text.toString().getBytes(CHARSET));
+    }
+
+    /**
+     * Ends the current text message
+     */
+    ResponseBuffer appendLineSeparator() {
+        return append(LINE_SEPARATOR);
+    }
+}
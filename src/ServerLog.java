@@ -0,0 +1,284 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Asynchronous server log. Threads that log an event only copy it into a fixed-size ring buffer; a single
+ * background writer thread drains the buffer in batches, formats the entries as
+ * {@code [yyyy-MM-dd HH:mm:ss] EVENT - client: details} and appends each batch to the log file with one write
+ * on a {@link FileChannel} that stays open for the lifetime of the server.
+ */
+final class ServerLog {
+    /**
+     * What to do with a new entry when the ring buffer is full
+     */
+    enum OverflowPolicy {
+        BLOCK,  // Wait until the writer has made room
+        DROP,   // Discard the entry silently
+        COUNT   // Discard the entry, and log how many entries were discarded once there is room again
+    }
+
+    private static final DateTimeFormatter TIMESTAMP = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final byte[] LINE_SEPARATOR = System.lineSeparator().getBytes(StandardCharsets.UTF_8);
+
+    private final FileChannel channel;
+    private final OverflowPolicy policy;
+    private final boolean echo;
+    private final Thread writer;
+
+    // Ring buffer of pending entries, guarded by lock
+    private final ReentrantLock lock = new ReentrantLock();
+    private final Condition notEmpty = lock.newCondition();
+    private final Condition notFull = lock.newCondition();
+    private final long[] times;
+    private final String[] events;
+    private final String[] clientNames;
+    private final String[] details;
+    private int head;       // Index of the oldest pending entry
+    private int size;       // Number of pending entries
+    private long dropped;   // Entries discarded since the last overflow report
+    private boolean closed;
+
+    // Writer thread state
+    private ByteBuffer out = ByteBuffer.allocate(64 * 1024);
+    private long cachedSecond = Long.MIN_VALUE;
+    private final byte[] cachedTimestamp = new byte[19];
+
+    /**
+     * Opens the log file for appending and starts the background writer thread
+     *
+     * @param file The file to append log entries to
+     * @param capacity The maximum number of entries waiting to be written
+     * @param policy What to do with new entries while the buffer is full
+     * @param echo Whether entries are also printed to standard output
+     * @throws IOException if the log file could not be opened
+     */
+    ServerLog(final Path file, final int capacity, final OverflowPolicy policy, final boolean echo) throws IOException {
+        this.channel = FileChannel.open(file, StandardOpenOption.CREATE, StandardOpenOption.WRITE, StandardOpenOption.APPEND);
+        this.policy = policy;
+        this.echo = echo;
+        this.times = new long[capacity];
+        this.events = new String[capacity];
+        this.clientNames = new String[capacity];
+        this.details = new String[capacity];
+        this.writer = new Thread(this::writeLoop, "LogWriter");
+        writer.setDaemon(true);
+        writer.start();
+    }
+
+    /**
+     * Queues an event to be written to the log
+     * @param event The event being logged
+     * @param clientName The name of the client to which {@code event} belongs
+     * @param detail Information about the event
+     */
+    void log(final String event, final String clientName, final String detail) {
+        final long now = System.currentTimeMillis();
+        lock.lock();
+        try {
+            while (size == times.length && !closed) {
+                if (policy != OverflowPolicy.BLOCK) {
+                    dropped++;
+                    return;
+                }
+                notFull.awaitUninterruptibly();
+            }
+            if (closed) {
+                return;
+            }
+            final int slot = (head + size) % times.length;
+            times[slot] = now;
+            events[slot] = event;
+            clientNames[slot] = clientName;
+            details[slot] = detail;
+            if (size++ == 0) {
+                notEmpty.signal();
+            }
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    /**
+     * Writes every pending entry, stops the writer thread and closes the log file
+     */
+    void close() {
+        lock.lock();
+        try {
+            closed = true;
+            notEmpty.signal();
+            notFull.signalAll();
+        } finally {
+            lock.unlock();
+        }
+        try {
+            writer.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        try {
+            channel.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Body of the writer thread: repeatedly takes every pending entry out of the ring buffer and writes them as one batch
+     */
+    private void writeLoop() {
+        final int capacity = times.length;
+        final long[] batchTimes = new long[capacity];
+        final String[] batchEvents = new String[capacity];
+        final String[] batchClients = new String[capacity];
+        final String[] batchDetails = new String[capacity];
+
+        while (true) {
+            int count;
+            long overflow;
+            lock.lock();
+            try {
+                while (size == 0 && dropped == 0 && !closed) {
+                    notEmpty.awaitUninterruptibly();
+                }
+                if (size == 0 && dropped == 0) {
+                    return;     // Closed and fully drained
+                }
+                count = size;
+                for (int i = 0; i < count; i++) {
+                    final int slot = (head + i) % capacity;
+                    batchTimes[i] = times[slot];
+                    batchEvents[i] = events[slot];
+                    batchClients[i] = clientNames[slot];
+                    batchDetails[i] = details[slot];
+                    events[slot] = clientNames[slot] = details[slot] = null;
+                }
+                head = (head + count) % capacity;
+                size = 0;
+                overflow = policy == OverflowPolicy.COUNT ? dropped : 0;
+                dropped = 0;
+                notFull.signalAll();
+            } finally {
+                lock.unlock();
+            }
+
+            out.clear();
+            for (int i = 0; i < count; i++) {
+                append(batchTimes[i], batchEvents[i], batchClients[i], batchDetails[i]);
+                batchEvents[i] = batchClients[i] = batchDetails[i] = null;
+            }
+            if (overflow > 0) {
+                append(System.currentTimeMillis(), "LOG_OVERFLOW", "SERVER", overflow + " log entries dropped because the log buffer was full");
+            }
+            write();
+        }
+    }
+
+    /**
+     * Formats one entry into the output buffer
+     */
+    private void append(final long millis, final String event, final String clientName, final String detail) {
+        final long second = Math.floorDiv(millis, 1000);
+        if (second != cachedSecond) {
+            final LocalDateTime time = LocalDateTime.ofInstant(Instant.ofEpochSecond(second), ZoneId.systemDefault());
+            TIMESTAMP.formatTo(time, new AsciiAppender(cachedTimestamp));
+            cachedSecond = second;
+        }
+        ensureRoom(cachedTimestamp.length + 8);
+        out.put((byte) '[').put(cachedTimestamp).put((byte) ']').put((byte) ' ');
+        appendUtf8(event);
+        ensureRoom(3);
+        out.put((byte) ' ').put((byte) '-').put((byte) ' ');
+        appendUtf8(String.valueOf(clientName));
+        ensureRoom(2);
+        out.put((byte) ':').put((byte) ' ');
+        appendUtf8(String.valueOf(detail));
+        ensureRoom(LINE_SEPARATOR.length);
+        out.put(LINE_SEPARATOR);
+    }
+
+    private void appendUtf8(final String s) {
+        ensureRoom(s.length() * 3);
+        for (int i = 0; i < s.length(); i++) {
+            final char c = s.charAt(i);
+            if (c < 0x80) {
+                out.put((byte) c);
+            } else if (c < 0x800) {
+                out.put((byte) (0xC0 | (c >> 6))).put((byte) (0x80 | (c & 0x3F)));
+            } else if (Character.isHighSurrogate(c) && i + 1 < s.length() && Character.isLowSurrogate(s.charAt(i + 1))) {
+                final int cp = Character.toCodePoint(c, s.charAt(++i));
+                out.put((byte) (0xF0 | (cp >> 18))).put((byte) (0x80 | ((cp >> 12) & 0x3F)))
+                   .put((byte) (0x80 | ((cp >> 6) & 0x3F))).put((byte) (0x80 | (cp & 0x3F)));
+            } else if (Character.isSurrogate(c)) {
+                out.put((byte) '?');    // Unpaired surrogate, replaced just like String.getBytes does
+            } else {
+                out.put((byte) (0xE0 | (c >> 12))).put((byte) (0x80 | ((c >> 6) & 0x3F))).put((byte) (0x80 | (c & 0x3F)));
+            }
+        }
+    }
+
+    private void ensureRoom(final int bytes) {
+        if (out.remaining() < bytes) {
+            final ByteBuffer bigger = ByteBuffer.allocate(Math.max(out.capacity() * 2, out.position() + bytes));
+            out.flip();
+            bigger.put(out);
+            out = bigger;
+        }
+    }
+
+    /**
+     * Writes the formatted batch to the log file, and to standard output if echoing is enabled
+     */
+    private void write() {
+        out.flip();
+        if (echo) {
+            System.out.write(out.array(), 0, out.limit());
+            System.out.flush();
+        }
+        try {
+            while (out.hasRemaining()) {
+                channel.write(out);
+            }
+        } catch (IOException e) {
+            System.err.println("Failed to write log: " + e.getMessage());
+        }
+    }
+
+    /**
+     * Lets {@link DateTimeFormatter#formatTo} write a timestamp straight into a byte array
+     */
+    private static final class AsciiAppender implements Appendable {
+        private final byte[] target;
+        private int pos;
+
+        AsciiAppender(final byte[] target) {
+            this.target = target;
+        }
+
+        @Override
+        public Appendable append(final CharSequence csq) {
+            return append(csq, 0, csq.length());
+        }
+
+        @Override
+        public Appendable append(final CharSequence csq, final int start, final int end) {
+            for (int i = start; i < end; i++) {
+                append(csq.charAt(i));
+            }
+            return this;
+        }
+
+        @Override
+        public Appendable append(final char c) {
+            target[pos++] = (byte) c;
+            return this;
+        }
+    }
+}
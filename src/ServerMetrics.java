@@ -0,0 +1,246 @@
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * Live counters and latency histograms for the whole server, plus the per-client counters kept by each
+ * {@link ClientHandler}. Recording only touches {@link LongAdder}s and lock-free histograms, so it is cheap enough to do
+ * for every request. The metrics can be read with the {@code STATS} protocol command or, when {@code --metrics-port}
+ * is set, scraped as plain text from {@code http://localhost:<port>/metrics}.
+ */
+final class ServerMetrics {
+    private static final int RATE_WINDOW_SECONDS = 10;  // Throughput is averaged over this many completed seconds
+
+    static final LongAdder connections = new LongAdder();     // Connections accepted since startup
+    static final LongAdder requests = new LongAdder();        // CALC and CALCBATCH requests received
+    static final LongAdder results = new LongAdder();         // Requests answered with a result
+    static final LongAdder errors = new LongAdder();          // Requests answered with an error
+    static final LongAdder rejected = new LongAdder();        // Requests refused with ERR:Server Busy because their queue was full
+    static final LongAdder shed = new LongAdder();            // Queued requests dropped with ERR:Server Busy to make room for newer ones
+    static final LongAdder rateLimited = new LongAdder();     // Requests refused because their client exceeded its rate limit
+    static final LongAdder expired = new LongAdder();         // Requests answered with ERR:Deadline Exceeded because they waited too long to be evaluated
+    static final LongAdder blocked = new LongAdder();         // Times a connection stopped being read until its queue had room
+    static final LatencyHistogram queueWait = new LatencyHistogram();     // From receiving a request to a processor taking it
+    static final LatencyHistogram evaluation = new LatencyHistogram();    // Evaluating the expression, or every expression of a batch
+    static final LatencyHistogram responseWrite = new LatencyHistogram(); // Handing the response to the connection
+
+    private static final long startNanos = System.nanoTime();  // Origin of the per-second throughput ring
+    private static final AtomicLongArray completedPerSecond = new AtomicLongArray(RATE_WINDOW_SECONDS + 2);    // Ring of per-second completion counts
+    private static final AtomicLongArray secondOfSlot = new AtomicLongArray(RATE_WINDOW_SECONDS + 2);        // The second each ring slot currently counts
+
+    private ServerMetrics() {}
+
+    /**
+     * Counters for a single client connection. Updated by the connection's reader and by the processors evaluating its requests.
+     */
+    static final class Client {
+        final LongAdder requests = new LongAdder();
+        final LongAdder results = new LongAdder();
+        final LongAdder errors = new LongAdder();
+        final LongAdder refused = new LongAdder();     // Requests rejected, shed, rate limited or expired
+        final LongAdder latencyNanos = new LongAdder();     // Total time from receiving each request to sending its response
+        final AtomicLong maxLatencyNanos = new AtomicLong();
+
+        /**
+         * @return the client's metrics as comma-separated {@code client_<name>=value} pairs
+         */
+        String describe() {
+            final long answered = results.sum() + errors.sum();
+            return "client_requests=" + requests.sum() + ",client_results=" + results.sum() + ",client_errors=" + errors.sum()
+                + ",client_refused=" + refused.sum()
+                + ",client_latency_mean_us=" + micros(answered == 0 ? 0 : (double) latencyNanos.sum() / answered)
+                + ",client_latency_max_us=" + micros(maxLatencyNanos.get());
+        }
+    }
+
+    /**
+     * Records a request being received
+     * @param client The metrics of the client that sent it
+     */
+    static void requestReceived(final Client client) {
+        requests.increment();
+        client.requests.increment();
+    }
+
+    /**
+     * Records a request being refused rather than evaluated
+     * @param client The metrics of the client that sent it
+     * @param reason The server-wide counter for the reason: {@link #rejected}, {@link #shed}, {@link #rateLimited} or {@link #expired}
+     */
+    static void requestRefused(final Client client, final LongAdder reason) {
+        reason.increment();
+        client.refused.increment();
+    }
+
+    /**
+     * Records a request having been answered
+     * @param req The request
+     * @param dequeued When a processor took the request, from {@link System#nanoTime}
+     * @param evaluated When evaluation finished
+     * @param written When the response was handed to the connection
+     * @param success Whether the response was a result rather than an error
+     */
+    static void requestCompleted(final MathServer.CalcRequest req, final long dequeued, final long evaluated, final long written, final boolean success) {
+        queueWait.record(dequeued - req.receivedAt);
+        evaluation.record(evaluated - dequeued);
+        responseWrite.record(written - evaluated);
+        (success ? results : errors).increment();
+
+        final Client client = req.handler.metrics;
+        (success ? client.results : client.errors).increment();
+        client.latencyNanos.add(written - req.receivedAt);
+        client.maxLatencyNanos.accumulateAndGet(written - req.receivedAt, Math::max);
+
+        final long second = (written - startNanos) / 1_000_000_000L;
+        final int slot = (int) (second % completedPerSecond.length());
+        final long previous = secondOfSlot.get(slot);
+        if (previous != second && secondOfSlot.compareAndSet(slot, previous, second)) {
+            completedPerSecond.set(slot, 0);    // Start counting a new second in the slot
+        }
+        completedPerSecond.incrementAndGet(slot);
+    }
+
+    /**
+     * @return the average number of requests answered per second over the last {@value #RATE_WINDOW_SECONDS} completed seconds
+     */
+    static double throughput() {
+        final long current = (System.nanoTime() - startNanos) / 1_000_000_000L;
+        final long seconds = Math.min(current, RATE_WINDOW_SECONDS);
+        if (seconds == 0) {
+            return 0;
+        }
+        long total = 0;
+        for (long second = current - seconds; second < current; second++) {
+            final int slot = (int) (second % completedPerSecond.length());
+            if (secondOfSlot.get(slot) == second) {
+                total += completedPerSecond.get(slot);
+            }
+        }
+        return (double) total / seconds;
+    }
+
+    /**
+     * @return the server-wide metrics as comma-separated {@code name=value} pairs, as sent in a STATS reply
+     */
+    static String describe() {
+        return "uptime_s=" + ManagementFactory.getRuntimeMXBean().getUptime() / 1000
+            + ",clients=" + MathServer.clients.size()
+            + ",connections=" + connections.sum()
+            + ",queue_depth=" + MathServer.queueDepth()
+            + ",requests=" + requests.sum()
+            + ",results=" + results.sum()
+            + ",errors=" + errors.sum()
+            + ",rejected=" + rejected.sum()
+            + ",shed=" + shed.sum()
+            + ",rate_limited=" + rateLimited.sum()
+            + ",expired=" + expired.sum()
+            + ",blocked=" + blocked.sum()
+            + ",reclaimed=" + SessionReaper.reclaimed.sum()
+            + ",throughput_per_s=" + String.format(Locale.ROOT, "%.1f", throughput())
+            + ",compiled=" + CompiledExpression.translations.sum()
+            + ",compile_time_us=" + CompiledExpression.translationNanos.sum() / 1_000
+            + ",exact_fast=" + ExactEvaluator.fastPath.sum()
+            + ",exact_fallback=" + ExactEvaluator.fallbacks.sum()
+            + "," + percentiles("queue_wait", queueWait)
+            + "," + percentiles("eval", evaluation)
+            + "," + percentiles("write", responseWrite);
+    }
+
+    private static String percentiles(final String name, final LatencyHistogram histogram) {
+        return name + "_p50_us=" + micros(histogram.percentile(50))
+            + "," + name + "_p99_us=" + micros(histogram.percentile(99))
+            + "," + name + "_p999_us=" + micros(histogram.percentile(99.9))
+            + "," + name + "_max_us=" + micros(histogram.max());
+    }
+
+    /**
+     * Renders every server-wide and per-client metric in the plain-text exposition format understood by common scrapers,
+     * one {@code name{labels} value} sample per line
+     * @return the metrics page
+     */
+    static String exposition() {
+        final StringBuilder sb = new StringBuilder();
+        sample(sb, "networkcalc_uptime_seconds", "", ManagementFactory.getRuntimeMXBean().getUptime() / 1e3);
+        sample(sb, "networkcalc_clients", "", MathServer.clients.size());
+        sample(sb, "networkcalc_connections_total", "", connections.sum());
+        sample(sb, "networkcalc_queue_depth", "", MathServer.queueDepth());
+        sample(sb, "networkcalc_requests_total", "", requests.sum());
+        sample(sb, "networkcalc_results_total", "", results.sum());
+        sample(sb, "networkcalc_errors_total", "", errors.sum());
+        sample(sb, "networkcalc_rejected_total", "", rejected.sum());
+        sample(sb, "networkcalc_shed_total", "", shed.sum());
+        sample(sb, "networkcalc_rate_limited_total", "", rateLimited.sum());
+        sample(sb, "networkcalc_expired_total", "", expired.sum());
+        sample(sb, "networkcalc_blocked_total", "", blocked.sum());
+        sample(sb, "networkcalc_sessions_reclaimed_total", "", SessionReaper.reclaimed.sum());
+        sample(sb, "networkcalc_throughput_per_second", "", throughput());
+        sample(sb, "networkcalc_compiled_expressions_total", "", CompiledExpression.translations.sum());
+        sample(sb, "networkcalc_compile_seconds_total", "", CompiledExpression.translationNanos.sum() / 1e9);
+        sample(sb, "networkcalc_exact_fast_path_total", "", ExactEvaluator.fastPath.sum());
+        sample(sb, "networkcalc_exact_fallback_total", "", ExactEvaluator.fallbacks.sum());
+        histogram(sb, "networkcalc_queue_wait_seconds", queueWait);
+        histogram(sb, "networkcalc_evaluation_seconds", evaluation);
+        histogram(sb, "networkcalc_response_write_seconds", responseWrite);
+        for (ClientHandler handler : MathServer.clients.values()) {
+            final String label = "{client=\"" + handler.clientName.replace("\\", "\\\\").replace("\"", "\\\"") + "\"}";
+            final Client client = handler.metrics;
+            sample(sb, "networkcalc_client_requests_total", label, client.requests.sum());
+            sample(sb, "networkcalc_client_results_total", label, client.results.sum());
+            sample(sb, "networkcalc_client_errors_total", label, client.errors.sum());
+            sample(sb, "networkcalc_client_refused_total", label, client.refused.sum());
+            sample(sb, "networkcalc_client_latency_seconds_sum", label, client.latencyNanos.sum() / 1e9);
+            sample(sb, "networkcalc_client_latency_seconds_max", label, client.maxLatencyNanos.get() / 1e9);
+        }
+        return sb.toString();
+    }
+
+    private static void histogram(final StringBuilder sb, final String name, final LatencyHistogram histogram) {
+        for (String quantile : new String[] {"0.5", "0.99", "0.999"}) {
+            sample(sb, name, "{quantile=\"" + quantile + "\"}", histogram.percentile(Double.parseDouble(quantile) * 100) / 1e9);
+        }
+        sample(sb, name + "_count", "", histogram.count());
+        sample(sb, name + "_sum", "", histogram.mean() * histogram.count() / 1e9);
+        sample(sb, name + "_max", "", histogram.max() / 1e9);
+    }
+
+    private static void sample(final StringBuilder sb, final String name, final String labels, final double value) {
+        sb.append(name).append(labels).append(' ');
+        if (value == (long) value) {
+            sb.append((long) value);
+        } else {
+            sb.append(value);
+        }
+        sb.append('\n');
+    }
+
+    private static String micros(final double nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000);
+    }
+
+    /**
+     * Serves the metrics page at {@code /metrics} on the loopback interface only, on a background thread
+     * @param port The port to listen on
+     * @throws IOException if the port cannot be bound
+     */
+    static void startHttpEndpoint(final int port) throws IOException {
+        final HttpServer server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        server.createContext("/metrics", exchange -> {
+            final byte[] body = exposition().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream out = exchange.getResponseBody()) {
+                out.write(body);
+            }
+        });
+        server.start();
+    }
+}
@@ -0,0 +1,133 @@
+import java.util.ArrayDeque;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Closes client sessions that have gone quiet: those that have sent no complete message for the idle timeout, and
+ * those that started a message but did not finish it within the read timeout. A client whose network dropped without
+ * closing the connection looks the same as a silent one, so this is also what frees the pool thread and the
+ * {@link MathServer#clients} entry of a dead connection. Clients that want to stay connected while idle send
+ * {@code PING} now and then.
+ *
+ * <p>Sessions are kept on a timing wheel: a ring of slots, one per tick, that a single background thread advances
+ * through. A session sits in the slot of the tick at which it would be due, and when that slot comes round its actual
+ * deadline is checked, since the client may have been active since, and it is either closed or moved on to the slot of
+ * its new deadline. Handling a message therefore only records the current tick in the session, and the thread only
+ * looks at the sessions that may be due, so the cost does not grow with the number of connected clients.
+ */
+final class SessionReaper implements Runnable {
+    private static final int TICK_MILLIS = 250;
+    private static final int WHEEL_SLOTS = 512;    // Deadlines further away than a full turn are checked, and re-slotted, early
+    static final long NOT_READING = -1;     // ClientHandler#messageStarted while no message is partly received
+
+    static final LongAdder reclaimed = new LongAdder();   // Sessions closed for being idle or for a stalled message
+
+    private final long idleTicks;   // 0 if there is no idle timeout
+    private final long readTicks;   // 0 if there is no read timeout
+    private final ArrayDeque<ClientHandler>[] wheel;    // Guarded by itself
+    private volatile long tick;     // Ticks since the reaper started, which sessions use as a clock
+
+    /**
+     * Creates a reaper, which does nothing until it is run on a thread of its own
+     *
+     * @param idleMillis How long a session may go without sending a message, or 0 for no limit
+     * @param readMillis How long a client may take to send the rest of a message it started, or 0 for no limit
+     */
+    @SuppressWarnings({"unchecked", "rawtypes"})
+    SessionReaper(final long idleMillis, final long readMillis) {
+        this.idleTicks = ticks(idleMillis);
+        this.readTicks = ticks(readMillis);
+        this.wheel = new ArrayDeque[WHEEL_SLOTS];
+        for (int i = 0; i < WHEEL_SLOTS; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+    }
+
+    private static long ticks(final long millis) {
+        return millis <= 0 ? 0 : Math.max(1, (millis + TICK_MILLIS - 1) / TICK_MILLIS);
+    }
+
+    /**
+     * @return the current tick, the clock that sessions record their activity with
+     */
+    long now() {
+        return tick;
+    }
+
+    /**
+     * Starts watching a newly connected session
+     * @param handler The session, whose last activity is now
+     */
+    void watch(final ClientHandler handler) {
+        schedule(handler, deadline(handler));
+    }
+
+    private void schedule(final ClientHandler handler, final long due) {
+        final ArrayDeque<ClientHandler> slot = wheel[(int) (Math.max(due, tick + 1) % WHEEL_SLOTS)];
+        synchronized (wheel) {
+            slot.add(handler);
+        }
+    }
+
+    /**
+     * @return the tick at which the session should be closed if it does nothing more. With a read timeout, that is
+     *         also no later than a read timeout from now, as a message could start at any moment.
+     */
+    private long deadline(final ClientHandler handler) {
+        long due = idleTicks > 0 ? handler.lastActive + idleTicks : Long.MAX_VALUE;
+        if (readTicks > 0) {
+            final long started = handler.messageStarted;
+            due = Math.min(due, (started != NOT_READING ? started : tick) + readTicks);
+        }
+        return due;
+    }
+
+    /**
+     * Advances the wheel once per tick, closing the sessions that are due
+     */
+    @Override
+    public void run() {
+        final ArrayDeque<ClientHandler> due = new ArrayDeque<>();
+        long next = System.nanoTime();
+        while (true) {
+            next += TICK_MILLIS * 1_000_000L;
+            final long sleep = next - System.nanoTime();
+            if (sleep > 0) {
+                try {
+                    Thread.sleep(sleep / 1_000_000, (int) (sleep % 1_000_000));
+                } catch (InterruptedException e) {
+                    return;
+                }
+            }
+            final long now = ++tick;
+            final ArrayDeque<ClientHandler> slot = wheel[(int) (now % WHEEL_SLOTS)];
+            synchronized (wheel) {
+                due.addAll(slot);
+                slot.clear();
+            }
+
+            int closed = 0;
+            for (ClientHandler handler; (handler = due.poll()) != null; ) {
+                if (handler.isCleanedUp()) {
+                    continue;
+                }
+                final long deadline = deadline(handler);
+                if (deadline > now) {
+                    schedule(handler, deadline);
+                } else {
+                    final boolean stalled = readTicks > 0 && handler.messageStarted != NOT_READING
+                        && handler.messageStarted + readTicks <= now;
+                    MathServer.log("TIMEOUT", handler.clientName != null ? handler.clientName : "UNKNOWN", stalled
+                        ? "Message not completed within " + readTicks * TICK_MILLIS + " ms, closing the connection"
+                        : "No message for " + idleTicks * TICK_MILLIS + " ms, closing the connection");
+                    handler.cleanup();
+                    closed++;
+                }
+            }
+            if (closed > 0) {
+                reclaimed.add(closed);
+                MathServer.log("TIMEOUT", "SERVER", "Reclaimed " + closed + " idle session" + (closed == 1 ? "" : "s")
+                    + " (" + reclaimed.sum() + " since startup)");
+            }
+        }
+    }
+}
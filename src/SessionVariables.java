@@ -0,0 +1,281 @@
+import java.util.ArrayDeque;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.PriorityQueue;
+import java.util.Set;
+
+/**
+ * The named variables and formulas of one client session, set with {@code SET} and defined with {@code DEF}.
+ *
+ * <p>A variable set with {@code SET} holds a value. A formula defined with {@code DEF} refers to other variables and
+ * is kept up to date: the variables form a dependency graph, and when a value changes only the formulas downstream of
+ * it are evaluated again, each one once and only after all of its inputs, and only those whose result actually changed
+ * are pushed to the client. An update therefore costs time in proportion to the part of the graph it affects, not to
+ * the number of formulas in the session.
+ *
+ * <p>Not thread-safe: every {@code SET} and {@code DEF} of a client goes to the client's own request queue, so its
+ * session is only ever used by that queue's processor thread.
+ */
+final class SessionVariables {
+    static final String UNDEFINED_VARIABLE = "Undefined Variable ";
+    static final String CIRCULAR_DEFINITION = "Circular Definition";
+    static final String INVALID_NAME = "Invalid Variable Name";
+
+    private final ClientHandler handler;
+    private final int compileThreshold;
+    private final Map<String, Variable> variables = new HashMap<>();
+    private final PriorityQueue<Variable> pending = new PriorityQueue<>((a, b) -> Integer.compare(a.level, b.level));
+
+    /**
+     * A node of the dependency graph: either a plain value or a formula over other variables
+     */
+    private static final class Variable {
+        final String name;
+        final Set<Variable> dependents = new LinkedHashSet<>();    // Formulas that refer to this variable
+        CompiledExpression formula;     // The definition, or null for a plain value
+        Variable[] inputs;              // The variables the formula refers to, in the order of formula.variables()
+        double[] inputValues;           // Reused to pass the inputs' values to the formula
+        boolean defined;                // Whether the variable currently has a value
+        double value;
+        String error;                   // Why a formula has no value, or null
+        int level;                      // Greater than the level of every input, so lower levels are evaluated first
+        boolean queued;                 // Whether the variable is waiting in the pending queue
+
+        Variable(final String name) {
+            this.name = name;
+        }
+    }
+
+    /**
+     * Creates an empty session
+     *
+     * @param handler The client the session belongs to, which updates are pushed to
+     * @param compileThreshold The number of evaluations after which a formula is compiled to lambdas, or 0 to always interpret
+     */
+    SessionVariables(final ClientHandler handler, final int compileThreshold) {
+        this.handler = handler;
+        this.compileThreshold = compileThreshold;
+    }
+
+    /**
+     * Handles a SET or DEF request, answering it and pushing the formulas whose values changed as a result
+     * @param req The request, naming the variable and holding its expression
+     * @return whether the variable was assigned, rather than the request failing
+     */
+    boolean assign(final MathServer.CalcRequest req) {
+        if (!isName(req.variable)) {
+            handler.sendMessage("ERR:" + req.clientName + ":" + req.variable + ":" + INVALID_NAME);
+            return false;
+        }
+        final CompiledExpression expression;
+        try {
+            expression = Evaluator.compileFormula(req.expression);
+        } catch (IllegalArgumentException ex) {
+            handler.sendMessage("ERR:" + req.clientName + ":" + req.variable + ":" + ex.getMessage());
+            return false;
+        }
+        return req.formula ? define(req.variable, expression) : set(req.variable, expression);
+    }
+
+    /**
+     * Gives a variable a value, computed once from the current values of any variables the expression refers to.
+     * A formula previously defined for the variable is dropped.
+     */
+    private boolean set(final String name, final CompiledExpression expression) {
+        final Variable[] inputs = lookup(expression.variables(), false);
+        final double[] values = new double[inputs.length];
+        for (int i = 0; i < inputs.length; i++) {
+            if (inputs[i] == null || !inputs[i].defined) {
+                handler.sendMessage("ERR:" + handler.clientName + ":" + name + ":" + UNDEFINED_VARIABLE + expression.variables()[i]);
+                return false;
+            }
+            values[i] = inputs[i].value;
+        }
+        final double value = expression.execute(values);
+
+        final Variable variable = variables.computeIfAbsent(name, Variable::new);
+        detach(variable);
+        variable.level = 0;
+        variable.error = null;
+        final boolean changed = !variable.defined || Double.doubleToLongBits(variable.value) != Double.doubleToLongBits(value);
+        variable.defined = true;
+        variable.value = value;
+        push(variable);
+        if (changed) {
+            enqueueDependents(variable);
+            propagate();
+        }
+        return true;
+    }
+
+    /**
+     * Defines a variable as a formula, refusing definitions that would make it depend on itself. Variables the formula
+     * refers to that do not exist yet are created undefined, so that setting them later updates the formula.
+     */
+    private boolean define(final String name, final CompiledExpression formula) {
+        final Variable variable = variables.computeIfAbsent(name, Variable::new);
+        for (final String input : formula.variables()) {
+            if (input.equals(name) || reaches(variable, variables.get(input))) {
+                handler.sendMessage("ERR:" + handler.clientName + ":" + name + ":" + CIRCULAR_DEFINITION);
+                return false;
+            }
+        }
+
+        detach(variable);
+        final Variable[] inputs = lookup(formula.variables(), true);
+        int level = 0;
+        for (final Variable input : inputs) {
+            input.dependents.add(variable);
+            level = Math.max(level, input.level + 1);
+        }
+        variable.formula = formula;
+        variable.inputs = inputs;
+        variable.inputValues = new double[inputs.length];
+        raiseLevel(variable, level);
+
+        recompute(variable);
+        push(variable);
+        enqueueDependents(variable);
+        propagate();
+        return variable.defined;
+    }
+
+    /**
+     * @return whether {@code target} is downstream of {@code from}, i.e. whether {@code target} is computed from it
+     */
+    private static boolean reaches(final Variable from, final Variable target) {
+        if (target == null || target.formula == null) {
+            return false;   // Only a formula can be downstream of anything
+        }
+        final Set<Variable> seen = new HashSet<>();
+        final ArrayDeque<Variable> stack = new ArrayDeque<>(from.dependents);
+        while (!stack.isEmpty()) {
+            final Variable next = stack.pop();
+            if (next == target) {
+                return true;
+            }
+            if (seen.add(next)) {
+                stack.addAll(next.dependents);
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Removes a variable's formula from the graph, so that it no longer depends on its former inputs
+     */
+    private static void detach(final Variable variable) {
+        if (variable.formula == null) {
+            return;
+        }
+        for (final Variable input : variable.inputs) {
+            input.dependents.remove(variable);
+        }
+        variable.formula = null;
+        variable.inputs = null;
+        variable.inputValues = null;
+    }
+
+    /**
+     * Sets a variable's level and raises the levels of its dependents where needed to stay above it
+     */
+    private static void raiseLevel(final Variable variable, final int level) {
+        variable.level = level;
+        final ArrayDeque<Variable> stack = new ArrayDeque<>();
+        stack.push(variable);
+        while (!stack.isEmpty()) {
+            final Variable next = stack.pop();
+            for (final Variable dependent : next.dependents) {
+                if (dependent.level <= next.level) {
+                    dependent.level = next.level + 1;
+                    stack.push(dependent);
+                }
+            }
+        }
+    }
+
+    private Variable[] lookup(final String[] names, final boolean create) {
+        final Variable[] found = new Variable[names.length];
+        for (int i = 0; i < names.length; i++) {
+            found[i] = create ? variables.computeIfAbsent(names[i], Variable::new) : variables.get(names[i]);
+        }
+        return found;
+    }
+
+    private void enqueueDependents(final Variable variable) {
+        for (final Variable dependent : variable.dependents) {
+            if (!dependent.queued) {
+                dependent.queued = true;
+                pending.add(dependent);
+            }
+        }
+    }
+
+    /**
+     * Evaluates the queued formulas in level order, pushing those whose value or error changed and queueing their
+     * own dependents in turn
+     */
+    private void propagate() {
+        Variable next;
+        while ((next = pending.poll()) != null) {
+            next.queued = false;
+            if (recompute(next)) {
+                push(next);
+                enqueueDependents(next);
+            }
+        }
+    }
+
+    /**
+     * Evaluates a formula from the current values of its inputs
+     * @return whether its value, or its error, changed
+     */
+    private boolean recompute(final Variable variable) {
+        final boolean wasDefined = variable.defined;
+        final double oldValue = variable.value;
+        final String oldError = variable.error;
+
+        variable.defined = true;
+        variable.error = null;
+        for (int i = 0; i < variable.inputs.length; i++) {
+            final Variable input = variable.inputs[i];
+            if (!input.defined) {
+                variable.defined = false;
+                variable.error = UNDEFINED_VARIABLE + input.name;
+                break;
+            }
+            variable.inputValues[i] = input.value;
+        }
+        if (variable.defined) {
+            variable.value = variable.formula.evaluate(compileThreshold, variable.inputValues);
+        }
+        return variable.defined != wasDefined
+            || (variable.defined ? Double.doubleToLongBits(variable.value) != Double.doubleToLongBits(oldValue) : !variable.error.equals(oldError));
+    }
+
+    /**
+     * Sends the current value of a variable, or why it has none, to the client
+     */
+    private void push(final Variable variable) {
+        handler.sendMessage(variable.defined
+            ? "RES:" + handler.clientName + ":" + variable.name + "=" + MathServer.formatResult(variable.value)
+            : "ERR:" + handler.clientName + ":" + variable.name + ":" + variable.error);
+    }
+
+    /**
+     * @return whether {@code name} is a valid variable name: letters, digits and underscores, not starting with a digit
+     */
+    static boolean isName(final String name) {
+        if (name.isEmpty() || !Evaluator.isIdentifierStart(name.charAt(0))) {
+            return false;
+        }
+        for (int i = 1; i < name.length(); i++) {
+            if (!Evaluator.isIdentifierPart(name.charAt(i))) {
+                return false;
+            }
+        }
+        return true;
+    }
+}
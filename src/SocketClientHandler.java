@@ -0,0 +1,213 @@
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.Socket;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Serves a single client over a blocking {@link Socket}. Each connection is managed by its own instance of
+ * this class running in a separate thread, which is either a pooled platform thread or a virtual thread
+ * depending on the connection engine chosen at startup.
+ */
+class SocketClientHandler extends ClientHandler implements Runnable {
+    private static final int LINE_SIZE = 128;      // Initial size of the line array
+    private static final int MAX_KEPT_LINE = 1 << 16;  // Larger line arrays, grown for one long message, are not kept
+
+    // What readLine found
+    private static final int END_OF_STREAM = -1;
+    private static final int LINE = 0;      // A line, which decodeLine returns
+    private static final int DIVERTED = 1;  // A line already handled through divertLine
+
+    private final Socket socket;
+    private OutputStream out;
+    private byte[] line = new byte[LINE_SIZE];  // Bytes of the line currently being received
+    private int lineLength;
+    private boolean skipLF;     // Whether a '\n' directly following the previous '\r' should be ignored
+
+    /**
+     * Creates a new client handler for the specified socket
+     *
+     * @param socket The client socket connection
+     */
+    SocketClientHandler(final Socket socket) {
+        super(socket.getRemoteSocketAddress().toString());
+        this.socket = socket;
+        try {
+            socket.setTcpNoDelay(true);     // Responses are already coalesced by the request processors
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Main processing loop for client communication. Reads incoming messages
+     * and hands them to the protocol until the client leaves or disconnects.
+     */
+    @Override
+    public void run() {
+        try (Input in = new Input(socket.getInputStream());
+             OutputStream writer = socket.getOutputStream()) {
+            this.out = writer;
+            watchTimeouts();
+
+            int status;
+            while (!isBinary() && (status = readLine(in)) != END_OF_STREAM) {
+                if (status == LINE && !handleLine(decodeLine())) {
+                    return;
+                }
+            }
+            if (!isBinary()) {
+                return;
+            }
+
+            // The client negotiated binary frames at JOIN, so the rest of the stream consists of frames
+            if (skipLF && in.peek() == '\n') {
+                in.read();
+            }
+            final DataInputStream frames = new DataInputStream(in);
+            while (in.peek() >= 0) {
+                messageStarting();  // The first bytes of a frame have arrived
+                final BinaryProtocol.Frame frame = BinaryProtocol.read(frames);
+                if (frame == null || !handleFrame(frame)) {
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            if (!isCleanedUp()) {   // Otherwise the connection was closed on purpose, e.g. for being idle
+                MathServer.log("ERR", clientName != null ? clientName : "UNKNOWN", e.getMessage());
+            }
+        } finally {
+            cleanup();
+        }
+    }
+
+    /**
+     * Reads a line of text terminated by {@code \n}, {@code \r} or {@code \r\n}, exactly like
+     * {@link java.io.BufferedReader#readLine()}, but without reading ahead past the terminator. A line that the
+     * protocol takes over with {@link #divertLine} is handed to it byte by byte instead, and never held whole.
+     * @return {@link #LINE} if a line was read, whose text without its terminator {@link #decodeLine} returns,
+     *         {@link #DIVERTED} if it was handled already, or {@link #END_OF_STREAM}
+     */
+    private int readLine(final Input in) throws IOException {
+        lineLength = 0;
+        if (line.length > MAX_KEPT_LINE) {
+            line = new byte[LINE_SIZE];
+        }
+        boolean diverted = false;
+        int b;
+        boolean started = false;
+        while ((b = in.read()) >= 0) {
+            if (!started) {
+                started = true;
+                messageStarting();
+            }
+            if (skipLF) {
+                skipLF = false;
+                if (b == '\n') {
+                    continue;
+                }
+            }
+            if (b == '\n' || b == '\r') {
+                skipLF = b == '\r';
+                return diverted ? divertedLineEnded() : LINE;
+            }
+            if (diverted) {
+                divertedByte((byte) b);
+                continue;
+            }
+            if (lineLength == line.length) {
+                line = Arrays.copyOf(line, lineLength * 2);
+            }
+            line[lineLength++] = (byte) b;
+            diverted = divertLine(line, lineLength);
+        }
+        if (diverted) {
+            return divertedLineEnded();     // A final line without a terminator is still a message
+        }
+        return lineLength > 0 ? LINE : END_OF_STREAM;
+    }
+
+    private String decodeLine() {
+        return new String(line, 0, lineLength, Charset.defaultCharset());
+    }
+
+    private int divertedLineEnded() {
+        endDivertedLine();
+        return DIVERTED;
+    }
+
+    @Override
+    void write(final byte[] bytes, final int length) {
+        try {
+            out.write(bytes, 0, length);
+        } catch (IOException ignored) {
+            // The reading thread notices the broken connection and cleans up
+        }
+    }
+
+    @Override
+    void close() {
+        try {
+            socket.close();
+        } catch (IOException ignored) {}
+    }
+
+    /**
+     * Buffers the socket input like {@link java.io.BufferedInputStream}, but without locking on every byte
+     * and with a one-byte {@link #peek}, so that it can be shared between line and frame reading
+     */
+    private static final class Input extends InputStream {
+        private final InputStream source;
+        private final byte[] buf = new byte[8192];
+        private int pos;
+        private int limit;
+
+        Input(final InputStream source) {
+            this.source = source;
+        }
+
+        private boolean fill() throws IOException {
+            if (pos < limit) {
+                return true;
+            }
+            final int n = source.read(buf);
+            if (n <= 0) {
+                return false;
+            }
+            pos = 0;
+            limit = n;
+            return true;
+        }
+
+        /**
+         * @return the next byte without consuming it, or -1 at the end of the stream
+         */
+        int peek() throws IOException {
+            return fill() ? buf[pos] & 0xFF : -1;
+        }
+
+        @Override
+        public int read() throws IOException {
+            return fill() ? buf[pos++] & 0xFF : -1;
+        }
+
+        @Override
+        public int read(final byte[] b, final int off, final int len) throws IOException {
+            if (len == 0) {
+                return 0;
+            }
+            if (!fill()) {
+                return -1;
+            }
+            final int n = Math.min(len, limit - pos);
+            System.arraycopy(buf, pos, b, off, n);
+            pos += n;
+            return n;
+        }
+
+        @Override
+        public void close() throws IOException {
+            source.close();
+        }
+    }
+}
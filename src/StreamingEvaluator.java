@@ -0,0 +1,224 @@
+import java.util.Arrays;
+
+/**
+ * Evaluates an expression while it is still being received, one byte at a time, so that an expression of any length
+ * is evaluated without ever being held in memory. Only the operand and operator stacks are kept, which grow with the
+ * number of operands waiting to be combined rather than with the length of the expression, and the number being read.
+ *
+ * <p>Accepts exactly the expressions {@link Evaluator} does and computes the same result with the same floating point
+ * operations, except that a single number may not be longer than {@value #MAX_NUMBER_LENGTH} characters. Once the
+ * expression is known to be malformed, or too long, the rest of it is only counted.
+ *
+ * <p>Not thread-safe; each connection reuses one for its expressions.
+ */
+final class StreamingEvaluator {
+    static final int MAX_NUMBER_LENGTH = 1024;
+    private static final int SUMMARY_LENGTH = 64;   // Characters of the expression kept to log it by
+
+    private final long maxLength;
+    private double[] values = new double[16];
+    private int valueCount;
+    private char[] ops = new char[16];
+    private int opCount;
+    private int depth;          // Parentheses open
+    private long length;        // Bytes received
+    private boolean started;    // Whether anything but leading spaces and control characters has been received
+    private boolean trailing;   // Whether a control character was received since, which only the end may follow, as it is trimmed
+    private final StringBuilder summary = new StringBuilder(SUMMARY_LENGTH);
+    private String error;       // Why the expression is refused, once known
+
+    // The number being received, gathered exactly like Evaluator#scanNumber does
+    private final StringBuilder number = new StringBuilder();
+    private boolean inNumber;
+    private long mantissa;
+    private int digits;
+    private int fractionDigits;
+    private boolean dot;
+
+    /**
+     * Creates an evaluator, ready for the first expression
+     *
+     * @param maxLength The longest expression accepted, in bytes
+     */
+    StreamingEvaluator(final long maxLength) {
+        this.maxLength = maxLength;
+    }
+
+    /**
+     * Gets ready for a new expression
+     */
+    void reset() {
+        valueCount = 0;
+        opCount = 0;
+        depth = 0;
+        length = 0;
+        started = false;
+        trailing = false;
+        summary.setLength(0);
+        error = null;
+        inNumber = false;
+        number.setLength(0);
+    }
+
+    /**
+     * Handles the next byte of the expression
+     * @param b The byte
+     */
+    void accept(final byte b) {
+        if (++length > maxLength) {
+            error = Evaluator.EXPRESSION_TOO_LONG;
+        }
+        if (error != null) {
+            return;
+        }
+        final char c = (char) (b & 0xFF);   // Bytes outside ASCII are not valid in an expression in any charset
+        if (summary.length() < SUMMARY_LENGTH) {
+            summary.append(c);
+        }
+        try {
+            accept(c);
+        } catch (IllegalArgumentException e) {
+            error = e.getMessage();
+        }
+    }
+
+    private void accept(final char c) {
+        if (c <= ' ') {
+            if (started) {
+                endNumber();
+                trailing |= !Evaluator.isWhitespace(c);
+            }
+            return;
+        }
+        if (trailing) {
+            throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);
+        }
+        started = true;
+
+        if (inNumber) {
+            if (c >= '0' && c <= '9' || c == '.') {
+                appendToNumber(c);
+                return;
+            }
+            endNumber();
+        }
+        if (Evaluator.isOperator(c)) {
+            while (opCount > 0 && ops[opCount - 1] != '(' && Evaluator.precedence(ops[opCount - 1]) >= Evaluator.precedence(c)) {
+                apply(ops[--opCount]);
+            }
+            pushOp(c);
+        } else if (c == '(') {
+            if (++depth > Evaluator.maxNestingDepth) {
+                throw new IllegalArgumentException(Evaluator.NESTING_TOO_DEEP);
+            }
+            pushOp(c);
+        } else if (c == ')') {
+            while (opCount > 0 && ops[opCount - 1] != '(') {
+                apply(ops[--opCount]);
+            }
+            if (opCount == 0) {
+                throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);
+            }
+            opCount--;  // Discard the matching '('
+            depth--;
+        } else if (c >= '0' && c <= '9') {
+            inNumber = true;
+            number.setLength(0);
+            mantissa = 0;
+            digits = 0;
+            fractionDigits = 0;
+            dot = false;
+            appendToNumber(c);
+        } else {
+            throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);  // Including a number starting with '.'
+        }
+    }
+
+    private void appendToNumber(final char c) {
+        if (number.length() == MAX_NUMBER_LENGTH) {
+            throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);
+        }
+        number.append(c);
+        if (c == '.') {
+            if (dot) {
+                throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);
+            }
+            dot = true;
+            return;
+        }
+        if (digits < Evaluator.MAX_MANTISSA_DIGITS) {
+            mantissa = mantissa * 10 + (c - '0');
+        }
+        if (mantissa != 0 || dot) {
+            digits++;
+        }
+        if (dot) {
+            fractionDigits++;
+        }
+    }
+
+    private void endNumber() {
+        if (!inNumber) {
+            return;
+        }
+        inNumber = false;
+        if (number.charAt(number.length() - 1) == '.') {
+            throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);   // A '.' must be followed by at least one digit
+        }
+        if (valueCount == values.length) {
+            values = Arrays.copyOf(values, Evaluator.grownStackSize(valueCount));
+        }
+        values[valueCount++] = Evaluator.numberValue(mantissa, digits, fractionDigits, number);
+    }
+
+    private void apply(final char op) {
+        if (valueCount < 2) {
+            throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);
+        }
+        final double b = values[--valueCount];
+        values[valueCount - 1] = Evaluator.operate(op, values[valueCount - 1], b);
+    }
+
+    private void pushOp(final char op) {
+        if (opCount == ops.length) {
+            ops = Arrays.copyOf(ops, Evaluator.grownStackSize(opCount));
+        }
+        ops[opCount++] = op;
+    }
+
+    /**
+     * Completes the evaluation once the whole expression has been received
+     * @return the value of the expression
+     * @throws IllegalArgumentException if the expression is malformed, nested too deeply or too long
+     */
+    double finish() {
+        if (error == null) {
+            try {
+                endNumber();
+                while (opCount > 0) {
+                    final char op = ops[--opCount];
+                    if (op == '(') {
+                        throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);
+                    }
+                    apply(op);
+                }
+                if (valueCount != 1) {
+                    throw new IllegalArgumentException(Evaluator.INVALID_FORMAT);
+                }
+            } catch (IllegalArgumentException e) {
+                error = e.getMessage();
+            }
+        }
+        if (error != null) {
+            throw new IllegalArgumentException(error);
+        }
+        return values[0];
+    }
+
+    /**
+     * @return the start of the expression and its length, to log it by, e.g. {@code 1+2+3+... (5242880 bytes)}
+     */
+    String summary() {
+        return summary + "... (" + length + " bytes)";
+    }
+}
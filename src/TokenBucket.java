@@ -0,0 +1,40 @@
+/**
+ * Token-bucket rate limiter for the requests of one client. Tokens are added continuously at a fixed rate up to the
+ * burst size, and every request takes one token per expression it contains. Not thread-safe: each bucket is only used
+ * by the thread reading its client's connection.
+ */
+final class TokenBucket {
+    private final double tokensPerNano;
+    private final double burst;
+    private double tokens;
+    private long refilledAt = System.nanoTime();
+
+    /**
+     * Creates a full bucket
+     *
+     * @param ratePerSecond The sustained number of tokens available per second
+     * @param burst The most tokens that can be saved up, i.e. the largest burst allowed after a quiet period
+     */
+    TokenBucket(final double ratePerSecond, final double burst) {
+        this.tokensPerNano = ratePerSecond / 1e9;
+        this.burst = burst;
+        this.tokens = burst;
+    }
+
+    /**
+     * Takes tokens if enough are available. A request costing more than the burst size is allowed once the bucket
+     * is full, and leaves it in debt until enough tokens have been added again.
+     * @param cost The number of tokens the request needs
+     * @return whether the request is within the rate limit
+     */
+    boolean tryAcquire(final int cost) {
+        final long now = System.nanoTime();
+        tokens = Math.min(burst, tokens + (now - refilledAt) * tokensPerNano);
+        refilledAt = now;
+        if (tokens < Math.min(cost, burst)) {
+            return false;
+        }
+        tokens -= cost;
+        return true;
+    }
+}
@@ -0,0 +1,643 @@
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.io.Reader;
+import java.io.Writer;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.LocalDateTime;
+import java.time.ZoneId;
+import java.time.format.DateTimeFormatter;
+import java.time.format.DateTimeParseException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.concurrent.locks.LockSupport;
+
+/**
+ * Replays recorded client traffic against a server, to check that it still gives the same answers and to see how its
+ * latency and throughput compare with an earlier run. The traffic is read from a server log ({@code logs/server.log})
+ * or from a {@link RequestJournal} directory, and split into the sessions of each client, from its CONNECT to its
+ * DISCONNECT in the log, or from its first to its last request in the journal.
+ *
+ * <p>Each session is replayed on a connection of its own, joined with request IDs so that its requests can overlap like
+ * they did when they were recorded. Requests are sent at their recorded times, scaled by a speed factor, or as fast as
+ * the limit on outstanding requests allows, and every answer is compared with the recorded one. Refusals by the
+ * server's overload protection depend on the load rather than the request, so they are counted but not compared. A
+ * session's variable assignments are only sent once its earlier requests are answered, and its later requests only
+ * once the assignment is, so that they see the same variables as when they were recorded. Sessions of the same client
+ * are replayed one after the other.
+ *
+ * <p>The log records when each request was evaluated to the second, and the requests of one second are spread evenly
+ * over it; it does not record batches, which are skipped, or whether a request asked for exact arithmetic. The journal
+ * records when each request arrived to the millisecond, and batches and exact requests, but not variable assignments.
+ */
+public class TrafficReplay {
+    private static final long DRAIN_TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(10);   // How long to wait for outstanding answers
+    private static final DateTimeFormatter LOG_TIME = DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+    private static final int MAX_MISMATCHES_SHOWN = 10;
+    private static final int MAX_SHOWN_LENGTH = 80;     // Longer expressions and answers are cut in the mismatch report
+    private static final List<String> REFUSALS = List.of(
+        "ERR:" + RequestQueue.SERVER_BUSY, "ERR:" + ClientHandler.RATE_LIMIT_EXCEEDED, "ERR:" + MathServer.DEADLINE_EXCEEDED);
+
+    private final String host;
+    private final int port;
+    private final double speed;         // Factor by which recorded time passes faster, or 0 to send as fast as possible
+    private final int outstanding;      // Most requests a session has in flight at once
+
+    private final LatencyHistogram latencies = new LatencyHistogram();
+    private final LongAdder sent = new LongAdder();
+    private final LongAdder assignments = new LongAdder();
+    private final LongAdder matched = new LongAdder();
+    private final LongAdder mismatched = new LongAdder();
+    private final LongAdder refused = new LongAdder();
+    private final LongAdder unchecked = new LongAdder();    // Answered, but with no recorded answer to compare with
+    private final LongAdder failedSessions = new LongAdder();
+    private final AtomicLong lastAnswer = new AtomicLong();     // When the last answer arrived, from System#nanoTime
+    private final List<String> mismatches = Collections.synchronizedList(new ArrayList<>());
+
+    private long origin;        // Recorded time of the first session's start, in milliseconds since the epoch
+    private long startNanos;    // When the replay started
+
+    /**
+     * A recorded request: a calculation, a batch or a variable assignment
+     */
+    private static final class Message {
+        final String command;   // CALC, XCALC, CALCBATCH, XCALCBATCH, SET or DEF
+        final String body;      // The expression, the expressions of a batch, or <Variable>=<Expression>
+        long time;              // When the server received it, in milliseconds since the epoch
+        String expected;        // The recorded answer as <Type>:<Text>, e.g. RES:33 or ERR:Division By Zero, or null if unknown
+
+        Message(final String command, final String body, final long time) {
+            this.command = command;
+            this.body = body;
+            this.time = time;
+        }
+
+        boolean isAssignment() {
+            return command.equals("SET") || command.equals("DEF");
+        }
+    }
+
+    /**
+     * The requests one client sent over one connection
+     */
+    private static final class Session {
+        final String client;
+        final List<Message> messages = new ArrayList<>();
+        long start;     // When the client joined, in milliseconds since the epoch
+        long end;       // When it left
+
+        Session(final String client, final long start) {
+            this.client = client;
+            this.start = start;
+            this.end = start;
+        }
+    }
+
+    /**
+     * The sessions read from a log or journal
+     */
+    private static final class Capture {
+        final List<Session> sessions = new ArrayList<>();
+        int skipped;    // Requests that cannot be replayed: batches in a log, truncated requests in a journal
+    }
+
+    /**
+     * Creates a replay
+     * @param host The server host
+     * @param port The server port
+     * @param speed How many times faster than recorded to send requests, or 0 to send them as fast as possible
+     * @param outstanding The most requests a session has in flight at once
+     */
+    TrafficReplay(final String host, final int port, final double speed, final int outstanding) {
+        this.host = host;
+        this.port = port;
+        this.speed = speed;
+        this.outstanding = outstanding;
+    }
+
+    /**
+     * Entry point of the replay tool
+     *
+     * @param args The server log file or journal directory to replay, and optionally {@code --host=<host>},
+     *             {@code --port=<N>}, {@code --speed=<factor|max>}, {@code --outstanding=<N>}, {@code --save=<file>}
+     *             and {@code --baseline=<file>}
+     */
+    public static void main(String[] args) {
+        final List<String> positional = new ArrayList<>();
+        final Map<String, String> options = new HashMap<>();
+        for (final String arg : args) {
+            final int eq = arg.indexOf('=');
+            if (arg.startsWith("--") && eq > 0) {
+                options.put(arg.substring(2, eq), arg.substring(eq + 1));
+            } else {
+                positional.add(arg);
+            }
+        }
+        final String speed = options.getOrDefault("speed", "1");
+        if (positional.size() != 1 || !speed.equals("max") && !(Double.parseDouble(speed) > 0)) {
+            System.err.println("Usage: TrafficReplay <server log | journal directory> [--host=<host>] [--port=<N>]"
+                + " [--speed=<factor|max>] [--outstanding=<N>] [--save=<file>] [--baseline=<file>]");
+            System.exit(2);
+        }
+
+        final TrafficReplay replay = new TrafficReplay(
+            options.getOrDefault("host", "localhost"),
+            Integer.parseInt(options.getOrDefault("port", "12345")),
+            speed.equals("max") ? 0 : Double.parseDouble(speed),
+            Integer.parseInt(options.getOrDefault("outstanding", "100"))
+        );
+        final Path source = Paths.get(positional.get(0));
+        try {
+            final Capture capture = Files.isDirectory(source) ? readJournal(source) : readLog(source);
+            if (capture.sessions.isEmpty()) {
+                throw new IOException("No requests to replay in " + source);
+            }
+            replay.run(source, capture);
+            final Properties results = replay.results();
+            if (options.containsKey("baseline")) {
+                compare(Paths.get(options.get("baseline")), results);
+            }
+            if (options.containsKey("save")) {
+                try (Writer out = Files.newBufferedWriter(Paths.get(options.get("save")), StandardCharsets.UTF_8)) {
+                    results.store(out, "TrafficReplay of " + source);
+                }
+            }
+        } catch (IOException e) {
+            System.err.println("Replay failed: " + e.getMessage());
+            System.exit(1);
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+            System.exit(1);
+        }
+        if (replay.mismatched.sum() > 0 || replay.unanswered() > 0 || replay.failedSessions.sum() > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * Reads the sessions recorded in a server log. Entries of the same second are given times spread evenly over it,
+     * in the order they were logged.
+     * @param file The log file
+     * @return the sessions, in the order they started
+     * @throws IOException if the file cannot be read
+     */
+    private static Capture readLog(final Path file) throws IOException {
+        final Capture capture = new Capture();
+        final Map<String, Session> open = new HashMap<>();          // Sessions of the clients currently connected
+        final Map<String, Message> unanswered = new HashMap<>();    // Each client's request waiting for its logged answer
+        final List<Message> sameSecond = new ArrayList<>();
+        long second = Long.MIN_VALUE;
+        try (BufferedReader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            String line;
+            while ((line = reader.readLine()) != null) {
+                // [yyyy-MM-dd HH:mm:ss] EVENT - client: details
+                final int dash = line.startsWith("[") && line.startsWith("] ", 20) ? line.indexOf(" - ", 22) : -1;
+                final int colon = dash < 0 ? -1 : line.indexOf(": ", dash + 3);
+                if (colon < 0) {
+                    continue;
+                }
+                final long time;
+                try {
+                    time = LocalDateTime.parse(line.substring(1, 20), LOG_TIME).atZone(ZoneId.systemDefault()).toInstant().toEpochMilli();
+                } catch (DateTimeParseException e) {
+                    continue;
+                }
+                if (time != second) {
+                    spread(sameSecond, second);
+                    second = time;
+                }
+                final String event = line.substring(22, dash);
+                final String client = line.substring(dash + 3, colon);
+                final String details = line.substring(colon + 2);
+
+                Message message = null;
+                switch (event) {
+                    case "CONNECT" -> {
+                        if (details.startsWith("Connected from ")) {
+                            final Session session = new Session(client, time);
+                            capture.sessions.add(session);
+                            open.put(client, session);
+                        }
+                    }
+                    case "DISCONNECT" -> {
+                        final Session session = open.remove(client);
+                        if (session != null) {
+                            session.end = time;
+                        }
+                        unanswered.remove(client);
+                    }
+                    case "VARIABLE" -> {
+                        if (details.startsWith("SET ") || details.startsWith("DEF ")) {
+                            message = new Message(details.substring(0, 3), details.substring(4), time);
+                        }
+                    }
+                    case "CALC_REQUEST" -> {
+                        if (details.startsWith("Expression received: ")) {
+                            message = new Message("CALC", details.substring("Expression received: ".length()), time);
+                            unanswered.put(client, message);
+                        }
+                    }
+                    case "CALC_RESPONSE" -> {
+                        final Message request = unanswered.remove(client);
+                        if (request != null && details.startsWith(request.body + " = ")) {
+                            request.expected = "RES:" + details.substring(request.body.length() + 3);
+                        }
+                    }
+                    case "ERR" -> {
+                        final Message request = unanswered.remove(client);
+                        if (request != null) {
+                            request.expected = "ERR:" + details;
+                        }
+                    }
+                    case "CALC_BATCH" -> capture.skipped++;
+                    default -> {
+                    }
+                }
+                if (message != null) {
+                    Session session = open.get(client);
+                    if (session == null) {      // Connected before the log starts
+                        session = new Session(client, time);
+                        capture.sessions.add(session);
+                        open.put(client, session);
+                    }
+                    session.messages.add(message);
+                    sameSecond.add(message);
+                }
+            }
+        }
+        spread(sameSecond, second);
+        for (Session session : open.values()) {     // Still connected when the log ends
+            if (!session.messages.isEmpty()) {
+                session.end = Math.max(session.end, session.messages.get(session.messages.size() - 1).time);
+            }
+        }
+        capture.sessions.removeIf(session -> session.messages.isEmpty());
+        return capture;
+    }
+
+    /**
+     * Spreads the messages logged in one second evenly over it, and empties the list
+     */
+    private static void spread(final List<Message> messages, final long second) {
+        for (int i = 0; i < messages.size(); i++) {
+            messages.get(i).time = second + i * 1000L / messages.size();
+        }
+        messages.clear();
+    }
+
+    /**
+     * Reads the requests recorded in a journal, as one session per client. A request arrived when it was answered, less
+     * the time it waited and was evaluated.
+     * @param directory The journal directory
+     * @return the sessions, in the order they started
+     * @throws IOException if the journal cannot be read
+     */
+    private static Capture readJournal(final Path directory) throws IOException {
+        final Capture capture = new Capture();
+        final Map<String, Session> sessions = new LinkedHashMap<>();
+        for (Path segment : RequestJournal.segments(directory)) {
+            final RequestJournal.Cursor cursor = new RequestJournal.Cursor(segment);
+            while (cursor.next()) {
+                if ((cursor.flags & RequestJournal.TRUNCATED) != 0) {
+                    capture.skipped++;
+                    continue;
+                }
+                final boolean batch = (cursor.flags & RequestJournal.BATCH) != 0;
+                final String command = ((cursor.flags & RequestJournal.EXACT) != 0 ? "X" : "") + (batch ? "CALCBATCH" : "CALC");
+                final long arrived = cursor.timestamp - (cursor.queueNanos + cursor.evalNanos) / 1_000_000;
+                final Message message = new Message(command, cursor.expression(), arrived);
+                message.expected = ((cursor.flags & RequestJournal.ERROR) != 0 ? "ERR:" : batch ? "RESBATCH:" : "RES:") + cursor.outcome();
+                sessions.computeIfAbsent(cursor.client(), client -> new Session(client, arrived)).messages.add(message);
+            }
+        }
+        for (Session session : sessions.values()) {
+            session.messages.sort(Comparator.comparingLong(message -> message.time));  // Journaled in the order answered
+            session.start = session.messages.get(0).time;
+            session.end = session.messages.get(session.messages.size() - 1).time;
+            capture.sessions.add(session);
+        }
+        capture.sessions.sort(Comparator.comparingLong(session -> session.start));
+        return capture;
+    }
+
+    /**
+     * Replays every session, each client's on a virtual thread of its own, and prints the report
+     * @param source Where the sessions were read from, for the report
+     * @param capture The sessions
+     * @throws InterruptedException if interrupted while waiting for the sessions
+     */
+    void run(final Path source, final Capture capture) throws InterruptedException {
+        final Map<String, List<Session>> byClient = new LinkedHashMap<>();
+        long requests = 0;
+        long end = Long.MIN_VALUE;
+        origin = Long.MAX_VALUE;
+        for (Session session : capture.sessions) {
+            byClient.computeIfAbsent(session.client, client -> new ArrayList<>()).add(session);
+            requests += session.messages.size();
+            origin = Math.min(origin, session.start);
+            end = Math.max(end, session.end);
+        }
+        System.out.println("Replay of " + source + ": " + capture.sessions.size() + " sessions of " + byClient.size()
+            + " clients, " + requests + " requests recorded over " + String.format(Locale.ROOT, "%.1f", (end - origin) / 1000.0)
+            + " s, " + (speed > 0 ? "at " + speed + "x speed" : "as fast as possible")
+            + (capture.skipped > 0 ? ", " + capture.skipped + " requests skipped as they cannot be replayed" : ""));
+
+        startNanos = System.nanoTime();
+        final List<Thread> clients = new ArrayList<>();
+        for (final List<Session> sessions : byClient.values()) {
+            clients.add(Thread.ofVirtual().name("Replay-" + sessions.get(0).client).start(() -> {
+                for (Session session : sessions) {
+                    new Replayer(session).run();
+                }
+            }));
+        }
+        for (Thread client : clients) {
+            client.join();
+        }
+        report();
+    }
+
+    /**
+     * @param time A recorded time, in milliseconds since the epoch
+     * @return when to replay what happened at that time, from {@link System#nanoTime}; in the past when replaying
+     *         as fast as possible
+     */
+    private long due(final long time) {
+        return speed > 0 ? startNanos + (long) ((time - origin) * 1e6 / speed) : startNanos;
+    }
+
+    private static void sleepUntil(final long due) {
+        long wait;
+        while ((wait = due - System.nanoTime()) > 0) {
+            LockSupport.parkNanos(wait);
+        }
+    }
+
+    private long answered() {
+        return matched.sum() + mismatched.sum() + refused.sum() + unchecked.sum();
+    }
+
+    private long unanswered() {
+        return sent.sum() - answered();
+    }
+
+    private double seconds() {
+        return Math.max(lastAnswer.get() - startNanos, 0) / 1e9;
+    }
+
+    /**
+     * Prints the totals, the throughput, the latency percentiles and the first mismatches
+     */
+    private void report() {
+        final double seconds = seconds();
+        System.out.println("Requests: " + sent.sum() + " sent, " + matched.sum() + " matched, " + mismatched.sum()
+            + " mismatched, " + refused.sum() + " refused, " + unchecked.sum() + " unchecked, " + unanswered() + " unanswered"
+            + (assignments.sum() > 0 ? ", " + assignments.sum() + " variable assignments" : "")
+            + (failedSessions.sum() > 0 ? ", " + failedSessions.sum() + " sessions failed" : ""));
+        System.out.println("Throughput: " + String.format(Locale.ROOT, "%.1f", seconds > 0 ? answered() / seconds : 0.0)
+            + " requests/s, " + answered() + " answers in " + String.format(Locale.ROOT, "%.2f", seconds) + " s");
+        System.out.println("Latency (us): p50=" + micros(latencies.percentile(50)) + " p99=" + micros(latencies.percentile(99))
+            + " p99.9=" + micros(latencies.percentile(99.9)) + " max=" + micros(latencies.max())
+            + " mean=" + String.format(Locale.ROOT, "%.1f", latencies.mean() / 1000));
+        synchronized (mismatches) {
+            for (String mismatch : mismatches) {
+                System.out.println("Mismatch: " + mismatch);
+            }
+        }
+        if (mismatched.sum() > mismatches.size()) {
+            System.out.println("... and " + (mismatched.sum() - mismatches.size()) + " more mismatches");
+        }
+    }
+
+    private static String micros(final long nanos) {
+        return String.format(Locale.ROOT, "%.1f", nanos / 1000.0);
+    }
+
+    private static String shorten(final String text) {
+        return text.length() <= MAX_SHOWN_LENGTH ? text : text.substring(0, MAX_SHOWN_LENGTH) + "...";
+    }
+
+    /**
+     * @return the figures of this run that are compared with a baseline
+     */
+    private Properties results() {
+        final double seconds = seconds();
+        final Properties results = new Properties();
+        results.setProperty("requests", Long.toString(sent.sum()));
+        results.setProperty("mismatched", Long.toString(mismatched.sum()));
+        results.setProperty("refused", Long.toString(refused.sum()));
+        results.setProperty("throughput_per_s", String.format(Locale.ROOT, "%.1f", seconds > 0 ? answered() / seconds : 0.0));
+        results.setProperty("latency_p50_us", micros(latencies.percentile(50)));
+        results.setProperty("latency_p99_us", micros(latencies.percentile(99)));
+        results.setProperty("latency_p999_us", micros(latencies.percentile(99.9)));
+        results.setProperty("latency_max_us", micros(latencies.max()));
+        results.setProperty("latency_mean_us", String.format(Locale.ROOT, "%.1f", latencies.mean() / 1000));
+        return results;
+    }
+
+    /**
+     * Prints how the results of this run differ from those saved by an earlier one
+     * @param file The file the earlier results were saved to with {@code --save}
+     * @param results The results of this run
+     * @throws IOException if the file cannot be read
+     */
+    private static void compare(final Path file, final Properties results) throws IOException {
+        final Properties baseline = new Properties();
+        try (Reader in = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+            baseline.load(in);
+        }
+        System.out.println("Compared with " + file + ":");
+        for (String name : List.of("requests", "mismatched", "refused", "throughput_per_s", "latency_p50_us",
+                "latency_p99_us", "latency_p999_us", "latency_max_us", "latency_mean_us")) {
+            final String before = baseline.getProperty(name);
+            if (before == null) {
+                continue;
+            }
+            final double was = Double.parseDouble(before);
+            final double now = Double.parseDouble(results.getProperty(name));
+            System.out.println("  " + name + ": " + before + " -> " + results.getProperty(name)
+                + (was != 0 ? String.format(Locale.ROOT, " (%+.1f%%)", 100 * (now - was) / was) : ""));
+        }
+    }
+
+    /**
+     * A request sent and not yet answered
+     */
+    private record InFlight(Message message, long sentAt) {
+    }
+
+    /**
+     * Replays one session on a connection of its own. The session's thread sends the requests, each tagged with its
+     * index in the session as its request ID, while a second virtual thread reads the answers.
+     */
+    private final class Replayer {
+        private final Session session;
+        private final Semaphore slots = new Semaphore(outstanding);     // One permit per request that may still be sent
+        private final Map<String, InFlight> inFlight = new ConcurrentHashMap<>();   // By request ID
+        private final Semaphore assigned = new Semaphore(0);    // Released when the assignment in flight is answered
+        private volatile String assigning;      // The variable of the assignment in flight, if any
+        private Socket socket;
+        private OutputStream out;
+
+        Replayer(final Session session) {
+            this.session = session;
+        }
+
+        void run() {
+            sleepUntil(due(session.start));
+            Thread reader = null;
+            try (Socket s = new Socket(host, port)) {
+                socket = s;
+                socket.setTcpNoDelay(true);
+                out = socket.getOutputStream();
+                final BufferedReader in = new BufferedReader(new InputStreamReader(socket.getInputStream(), StandardCharsets.UTF_8));
+                write("JOIN:" + session.client + ":ids\n");
+                final String ack = in.readLine();
+                if (ack == null || !ack.startsWith("ACK:" + session.client + ":")) {
+                    throw new IOException("No ACK received: " + ack);
+                }
+                reader = Thread.ofVirtual().name(session.client + "-reader").start(() -> readAnswers(in));
+
+                int id = 0;
+                for (Message message : session.messages) {
+                    final long due = due(message.time);
+                    sleepUntil(due);
+                    if (message.isAssignment()) {
+                        assign(message);
+                        continue;
+                    }
+                    slots.acquire();
+                    inFlight.put(Integer.toString(id), new InFlight(message, speed > 0 ? due : System.nanoTime()));
+                    write(message.command + ":" + session.client + ":" + id++ + ":" + message.body + "\n");
+                    sent.increment();
+                }
+                slots.tryAcquire(outstanding, DRAIN_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+                sleepUntil(due(session.end));
+                write("LEAVE:" + session.client + "\n");
+                reader.join(TimeUnit.NANOSECONDS.toMillis(DRAIN_TIMEOUT_NANOS));
+            } catch (IOException e) {
+                failedSessions.increment();
+                System.err.println(session.client + ": " + e.getMessage());
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            } finally {
+                if (reader != null) {
+                    reader.interrupt();
+                }
+            }
+        }
+
+        /**
+         * Sends a variable assignment once every earlier request is answered, and waits for its answer
+         */
+        private void assign(final Message message) throws IOException, InterruptedException {
+            final boolean drained = slots.tryAcquire(outstanding, DRAIN_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+            try {
+                assigning = message.body.substring(0, message.body.indexOf('='));
+                write(message.command + ":" + session.client + ":" + message.body + "\n");
+                assignments.increment();
+                assigned.tryAcquire(DRAIN_TIMEOUT_NANOS, TimeUnit.NANOSECONDS);
+            } finally {
+                assigning = null;
+                if (drained) {
+                    slots.release(outstanding);
+                }
+            }
+        }
+
+        /**
+         * Reads answers until the server acknowledges LEAVE or closes the connection. Answers to requests are
+         * {@code <Type>:<ClientName>:<RequestId>:<Text>}; those to assignments, and formula updates, are
+         * {@code RES:<ClientName>:<Variable>=<Value>} or {@code ERR:<ClientName>:<Variable>:<Error>}, and an assignment
+         * refused by the overload protection is answered with a plain {@code ERR:<Error>}.
+         */
+        private void readAnswers(final BufferedReader in) {
+            final String prefix = session.client + ":";
+            try {
+                String line;
+                while ((line = in.readLine()) != null && !line.startsWith("ACK:")) {
+                    final int type = line.indexOf(':');
+                    if (type < 0) {
+                        continue;
+                    }
+                    if (!line.startsWith(prefix, type + 1)) {
+                        if (line.startsWith("ERR:")) {
+                            answeredAssignment(assigning);
+                        }
+                        continue;
+                    }
+                    final String rest = line.substring(type + 1 + prefix.length());
+                    final int sep = rest.indexOf(':');
+                    final InFlight request = sep > 0 ? inFlight.remove(rest.substring(0, sep)) : null;
+                    if (request != null) {
+                        complete(request, line.substring(0, type + 1) + rest.substring(sep + 1));
+                    } else {
+                        final int end = rest.indexOf(line.startsWith("RES:") ? '=' : ':');
+                        answeredAssignment(end > 0 ? rest.substring(0, end) : null);
+                    }
+                }
+            } catch (IOException e) {
+                if (!socket.isClosed()) {
+                    System.err.println(session.client + ": " + e.getMessage());
+                }
+            }
+        }
+
+        private void answeredAssignment(final String variable) {
+            final String waiting = assigning;
+            if (waiting != null && waiting.equals(variable)) {
+                assigning = null;
+                assigned.release();
+            }
+        }
+
+        /**
+         * Checks an answer against the recorded one and records its latency
+         * @param request The request answered
+         * @param answer The answer as {@code <Type>:<Text>}
+         */
+        private void complete(final InFlight request, final String answer) {
+            final long now = System.nanoTime();
+            lastAnswer.accumulateAndGet(now, Math::max);
+            final String expected = request.message().expected;
+            if (REFUSALS.contains(answer)) {
+                refused.increment();
+            } else {
+                latencies.record(now - request.sentAt());
+                if (expected == null || REFUSALS.contains(expected)) {
+                    unchecked.increment();
+                } else if (answer.equals(expected)) {
+                    matched.increment();
+                } else {
+                    mismatched.increment();
+                    if (mismatches.size() < MAX_MISMATCHES_SHOWN) {
+                        mismatches.add(session.client + " " + shorten(request.message().command + ":" + request.message().body)
+                            + " expected " + shorten(expected) + " got " + shorten(answer));
+                    }
+                }
+            }
+            slots.release();
+        }
+
+        private void write(final String message) throws IOException {
+            out.write(message.getBytes(StandardCharsets.UTF_8));
+        }
+    }
+}
@@ -0,0 +1,84 @@
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Holds back the responses written by one request processor thread, so that the responses to a run of pipelined
+ * requests reach each connection in one write, rather than one write (and usually one TCP segment) per response.
+ * Held responses are written when the processor's queue runs empty, as soon as a connection has
+ * {@code maxBytes} waiting, or once the oldest of them has been held for {@code maxDelayNanos}, which the processor
+ * checks after every request.
+ *
+ * <p>Responses sent from any other thread, e.g. the {@code ACK} to a JOIN or the refusal of a request that did not
+ * fit in its queue, are written at once, together with whatever was being held for the same connection. Every response
+ * therefore still goes out in the order it was sent.
+ */
+final class WriteCoalescer {
+    private static final ThreadLocal<WriteCoalescer> CURRENT = new ThreadLocal<>();
+
+    private final int maxBytes;
+    private final long maxDelayNanos;
+    private final Set<ClientHandler> holding = new HashSet<>();    // Connections with output held back by this thread
+    private long heldSince;     // When the oldest held response was sent, from System#nanoTime
+
+    /**
+     * Creates a coalescer, which has to be {@link #install}ed by the thread that uses it
+     *
+     * @param maxBytes The number of bytes held for one connection at which they are written right away; 0 writes every
+     *                 response right away
+     * @param maxDelayNanos How long a response may be held back
+     */
+    WriteCoalescer(final int maxBytes, final long maxDelayNanos) {
+        this.maxBytes = maxBytes;
+        this.maxDelayNanos = maxDelayNanos;
+    }
+
+    /**
+     * Makes this the coalescer of responses sent by the calling thread
+     */
+    void install() {
+        CURRENT.set(this);
+    }
+
+    /**
+     * @return the coalescer of the calling thread, or {@code null} if its responses are written right away
+     */
+    static WriteCoalescer current() {
+        return CURRENT.get();
+    }
+
+    /**
+     * Decides whether a connection's output may be held back after a response was added to it
+     * @param handler The connection
+     * @param pending The number of bytes now waiting to be written to it
+     * @return whether to hold the output; if {@code false}, the caller writes it now
+     */
+    boolean hold(final ClientHandler handler, final int pending) {
+        if (pending >= maxBytes) {
+            return false;
+        }
+        if (holding.isEmpty()) {
+            heldSince = System.nanoTime();
+        }
+        holding.add(handler);
+        return true;
+    }
+
+    /**
+     * Writes all held output if the oldest of it has been held for long enough
+     */
+    void flushIfDue() {
+        if (!holding.isEmpty() && System.nanoTime() - heldSince >= maxDelayNanos) {
+            flush();
+        }
+    }
+
+    /**
+     * Writes all held output
+     */
+    void flush() {
+        for (final ClientHandler handler : holding) {
+            handler.flushOutput();
+        }
+        holding.clear();
+    }
+}
@@ -0,0 +1,275 @@
+import java.math.MathContext;
+import java.math.RoundingMode;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Checks {@link Evaluator}, and the {@link StreamingEvaluator} that evaluates long expressions as they arrive, against
+ * the original regex/token-list pipeline they replaced, which is kept below as the reference. Every input must give the
+ * same value, bit for bit, or fail with the same message. {@link ExactEvaluator}, which shares Evaluator's scan, must
+ * accept and reject the same inputs.
+ *
+ * <p>Run with {@code make test}; exits with status 1 if any check fails.
+ */
+public class EvaluatorTest {
+    private static final int RANDOM_INPUTS = 200_000;
+    private static final String ALPHABET = "0123456789+-*/%() .\t\r\n\u000Bax_,\u0001";
+
+    private static final Map<String, Integer> prec = Map.of(
+        "+", 1,
+        "-", 1,
+        "*", 2,
+        "/", 2,
+        "%", 2
+    );
+
+    private static int checks;
+    private static int failures;
+
+    public static void main(String[] args) {
+        final long seed = args.length > 0 ? Long.parseLong(args[0]) : System.nanoTime();
+        edgeCases();
+        limits();
+        exactContexts();
+        randomInputs(new Random(seed));
+        System.out.println(checks + " checks, " + failures + " failures (seed " + seed + ")");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    private static void edgeCases() {
+        final String[] inputs = {
+            "", " ", "\t\n", "1", "  42  ", "1+2", "1 + 2 * 3", "(1+2)*3", "((1))", "10/4", "10%4", "7 % 0", "1/0",
+            "0/0", "-1", "+1", "1-", "*", "()", "(1", "1)", ")(", "1 2", "1 2 +", "1 2 3 + *", "(1)(2)", "1(2)",
+            "1.5", "1.", ".5", "1..2", "1.2.3", "0.1+0.2", "3.14159*2", "007", "00.50",
+            "123456789012345678901234567890", "9007199254740993", "9007199254740993.5", "0.30000000000000004",
+            "1.00000000000000000000001", "1e5", "1,5", "abc", "x+1", "\u00011+2\u0001", "1\u0001+2", "1\u000B+\u000B2",
+            "1\f+2", "١+٢", "2*(3+4)-5/(1+1)%3", "((((((((((1+1))))))))))", "1+(2*(3-(4/(5%6))))"
+        };
+        for (final String input : inputs) {
+            check(input);
+        }
+    }
+
+    /**
+     * Only open parentheses count against the nesting limit, and only the length limit bounds the stacks
+     */
+    private static void limits() {
+        check("1 ".repeat(4000));
+        check("1+".repeat(4000) + "1");
+        check("1+2*".repeat(4000) + "1");
+        check("(".repeat(Evaluator.MAX_NESTING_DEPTH) + "1" + ")".repeat(Evaluator.MAX_NESTING_DEPTH));
+        checkError("(".repeat(Evaluator.MAX_NESTING_DEPTH + 1) + "1" + ")".repeat(Evaluator.MAX_NESTING_DEPTH + 1), Evaluator.NESTING_TOO_DEEP);
+        checkError("(1)".repeat(Evaluator.MAX_NESTING_DEPTH * 2), Evaluator.INVALID_FORMAT);
+    }
+
+    /**
+     * An XCALC result that the configured context forbids rounding is an error, not an ArithmeticException
+     */
+    private static void exactContexts() {
+        final MathContext unlimited = new MathContext(0);
+        final MathContext unnecessary = new MathContext(34, RoundingMode.UNNECESSARY);
+        compare("1/3", "ExactEvaluator (unlimited)", "error " + ExactEvaluator.INEXACT_RESULT, exact("1/3", unlimited));
+        compare("1/3", "ExactEvaluator (unnecessary)", "error " + ExactEvaluator.INEXACT_RESULT, exact("1/3", unnecessary));
+        compare("2/3*3", "ExactEvaluator (unnecessary)", "error " + ExactEvaluator.INEXACT_RESULT, exact("2/3*3", unnecessary));
+        compare("1/4", "ExactEvaluator (unlimited)", "value 0.25", exact("1/4", unlimited));
+        final String big = "99999999999999999999*99999999999999999999";
+        compare(big, "ExactEvaluator (unlimited)", "value 9999999999999999999800000000000000000001", exact(big, unlimited));
+        compare(big, "ExactEvaluator (unnecessary)", "error " + ExactEvaluator.INEXACT_RESULT, exact(big, unnecessary));
+    }
+
+    private static String exact(final String input, final MathContext context) {
+        try {
+            return "value " + ExactEvaluator.evaluate(input, context);
+        } catch (IllegalArgumentException e) {
+            return "error " + e.getMessage();
+        }
+    }
+
+    private static void randomInputs(final Random random) {
+        for (int i = 0; i < RANDOM_INPUTS; i++) {
+            check(random.nextInt(4) == 0 ? randomNoise(random) : randomExpression(random, 0));
+        }
+    }
+
+    /**
+     * @return a mostly well-formed expression, with the occasional stray token or missing operand
+     */
+    private static String randomExpression(final Random random, final int depth) {
+        final StringBuilder sb = new StringBuilder();
+        final int operands = 1 + random.nextInt(5);
+        for (int i = 0; i < operands; i++) {
+            if (i > 0) {
+                sb.append(random.nextInt(8) == 0 ? "" : "+-*/%".charAt(random.nextInt(5)));
+            }
+            sb.append(random.nextBoolean() ? " " : "");
+            if (depth < 4 && random.nextInt(4) == 0) {
+                sb.append('(').append(randomExpression(random, depth + 1)).append(random.nextInt(20) == 0 ? "" : ")");
+            } else {
+                sb.append(randomNumber(random));
+            }
+            sb.append(random.nextInt(3) == 0 ? "\t" : "");
+        }
+        return sb.toString();
+    }
+
+    private static String randomNumber(final Random random) {
+        return switch (random.nextInt(6)) {
+            case 0 -> Long.toString(random.nextLong() & Long.MAX_VALUE);
+            case 1 -> random.nextInt(1000) + "." + random.nextInt(1000);
+            case 2 -> Double.toString(random.nextDouble() * 1e6).replace("E", "");
+            case 3 -> "0." + "0".repeat(random.nextInt(20)) + random.nextInt(100);
+            case 4 -> random.nextInt(20) == 0 ? "." + random.nextInt(10) : Integer.toString(random.nextInt(10));
+            default -> Integer.toString(random.nextInt(100));
+        };
+    }
+
+    private static String randomNoise(final Random random) {
+        final char[] chars = new char[random.nextInt(12)];
+        for (int i = 0; i < chars.length; i++) {
+            chars[i] = ALPHABET.charAt(random.nextInt(ALPHABET.length()));
+        }
+        return new String(chars);
+    }
+
+    private static void check(final String input) {
+        final String expected = outcome(() -> calculate(input));
+        compare(input, "Evaluator", expected, outcome(() -> Evaluator.evaluate(input)));
+        compare(input, "StreamingEvaluator", expected, outcome(() -> stream(input)));
+        final String exact = exact(input);
+        if (exact != null) {
+            compare(input, "ExactEvaluator", expected.startsWith("error ") ? expected : "value", exact);
+        }
+    }
+
+    private static void checkError(final String input, final String error) {
+        compare(input, "Evaluator", "error " + error, outcome(() -> Evaluator.evaluate(input)));
+        compare(input, "StreamingEvaluator", "error " + error, outcome(() -> stream(input)));
+        compare(input, "ExactEvaluator", "error " + error, exact(input));
+    }
+
+    /**
+     * @return "value" if the exact evaluator accepts the input, or the error message, or {@code null} on a division by
+     *         zero, which only the exact evaluator refuses, and which may stop it before a later error in the input
+     */
+    private static String exact(final String input) {
+        try {
+            ExactEvaluator.evaluate(input, MathContext.DECIMAL128);
+            return "value";
+        } catch (IllegalArgumentException e) {
+            return ExactEvaluator.DIVISION_BY_ZERO.equals(e.getMessage()) ? null : "error " + e.getMessage();
+        }
+    }
+
+    private static void compare(final String input, final String engine, final String expected, final String actual) {
+        checks++;
+        if (!expected.equals(actual)) {
+            failures++;
+            if (failures <= 20) {
+                final String shown = input.length() > 80 ? input.substring(0, 80) + "..." : input;
+                System.out.println(engine + " MISMATCH for \"" + shown.replace("\n", "\\n") + "\": expected " + expected + " but got " + actual);
+            }
+        }
+    }
+
+    private static double stream(final String input) {
+        final StreamingEvaluator evaluator = new StreamingEvaluator(Evaluator.MAX_EXPRESSION_LENGTH);
+        evaluator.reset();
+        for (int i = 0; i < input.length(); i++) {
+            evaluator.accept((byte) input.charAt(i));
+        }
+        return evaluator.finish();
+    }
+
+    private interface Calculation {
+        double run();
+    }
+
+    /**
+     * @return the exact bits of the result, or the error message
+     */
+    private static String outcome(final Calculation calculation) {
+        try {
+            final double value = calculation.run();
+            return "value " + value + " (" + Long.toHexString(Double.doubleToRawLongBits(value)) + ")";
+        } catch (IllegalArgumentException e) {
+            return "error " + e.getMessage();
+        }
+    }
+
+    // The original implementation from MathServer, unchanged
+
+    private static double calculate(final String expression) {
+        List<String> tokens = tokenize(expression);
+        List<String> output = new ArrayList<>();
+        Deque<String> ops = new ArrayDeque<>();
+
+        for (String token : tokens) {
+            if (token.matches("\\d+(\\.\\d+)?")) {
+                output.add(token);
+            } else if (prec.containsKey(token)) {
+                while (!ops.isEmpty()
+                       && prec.containsKey(ops.peekFirst())
+                       && prec.get(ops.peekFirst()) >= prec.get(token)) {
+                    output.add(ops.removeFirst());
+                }
+                ops.addFirst(token);
+            } else if ("(".equals(token)) {
+                ops.addFirst(token);
+            } else if (")".equals(token)) {
+                while (!ops.isEmpty() && !"(".equals(ops.peekFirst())) {
+                    output.add(ops.removeFirst());
+                }
+                if (ops.isEmpty() || ! "(".equals(ops.removeFirst())) {
+                    throw new IllegalArgumentException("Invalid Expression Format");
+                }
+            } else {
+                throw new IllegalArgumentException("Invalid Expression Format");
+            }
+        }
+        while (!ops.isEmpty()) {
+            final String op = ops.removeFirst();
+            if ("(".equals(op) || ")".equals(op)) {
+                throw new IllegalArgumentException("Invalid Expression Format");
+            }
+            output.add(op);
+        }
+
+        Deque<Double> eval = new ArrayDeque<>();
+        for (final String token : output) {
+            if (prec.containsKey(token)) {
+                if (eval.size() < 2) {
+                    throw new IllegalArgumentException("Invalid Expression Format");
+                }
+
+                final double b = eval.removeFirst();
+                final double a = eval.removeFirst();
+                switch (token) {
+                    case "+" -> eval.addFirst(a + b);
+                    case "-" -> eval.addFirst(a - b);
+                    case "*" -> eval.addFirst(a * b);
+                    case "/" -> eval.addFirst(a / b);
+                    case "%" -> eval.addFirst(a % b);
+                }
+            } else {
+                eval.addFirst(Double.parseDouble(token));
+            }
+        }
+
+        if (eval.size() != 1) {
+            throw new IllegalArgumentException("Invalid Expression Format");
+        }
+        return eval.removeFirst();
+    }
+
+    private static List<String> tokenize(final String expr) {
+        final String spaced = expr.replaceAll("([()+\\-*/%])", " $1 ");
+        final String[] parts = spaced.trim().split("\\s+");
+        return List.of(parts);
+    }
+}
@@ -0,0 +1,69 @@
+/**
+ * Checks that {@link ExpressionCache} answers repeated expressions exactly like a fresh evaluation does.
+ *
+ * <p>Run with {@code make test}; exits with status 1 if any check fails.
+ */
+public class ExpressionCacheTest {
+    private static int checks;
+    private static int failures;
+
+    public static void main(String[] args) {
+        repeatedErrors();
+        boundedLength();
+        System.out.println(checks + " checks, " + failures + " failures");
+        if (failures > 0) {
+            System.exit(1);
+        }
+    }
+
+    /**
+     * A malformed expression fails with the same error every time, whether or not the negative cache answers it
+     */
+    private static void repeatedErrors() {
+        final ExpressionCache cache = new ExpressionCache(100, 100, 1 << 20, true);
+        final String deep = "(".repeat(Evaluator.MAX_NESTING_DEPTH + 1) + "1" + ")".repeat(Evaluator.MAX_NESTING_DEPTH + 1);
+        for (int i = 0; i < 3; i++) {
+            expect("nested too deeply, attempt " + (i + 1), Evaluator.NESTING_TOO_DEEP, error(cache, deep));
+            expect("malformed, attempt " + (i + 1), Evaluator.INVALID_FORMAT, error(cache, "1+"));
+        }
+        expect("negative hits", "4", Long.toString(cache.negativeHits.sum()));
+    }
+
+    /**
+     * The total length of the cached expressions stays within its bound, and each cache counts its own evictions
+     */
+    private static void boundedLength() {
+        final ExpressionCache cache = new ExpressionCache(10_000, 10_000, 16 * 1000, true);
+        for (int i = 0; i < 1000; i++) {
+            final String expression = i + "+1".repeat(100);     // 16 segments of 1000 characters hold fewer than 80 of these
+            expect("value " + i, "value " + (i + 100.0), error(cache, expression));
+            error(cache, expression + "+");
+        }
+        checks++;
+        if (cache.evictions.sum() < 900 || cache.negativeEvictions.sum() < 900) {
+            failures++;
+            System.out.println("FAILED evictions: " + cache.stats());
+        }
+        expect("hit after eviction", "value 1099.0", error(cache, "999" + "+1".repeat(100)));
+        final String longer = "1+".repeat(1000) + "1";  // Longer than a segment may hold
+        expect("expression longer than a segment", "value 1001.0", error(cache, longer));
+        expect("long expression not cached", "value 1001.0", error(cache, longer));
+        expect("misses", "2002", Long.toString(cache.misses.sum()));   // Every expression once, and the long one twice
+    }
+
+    private static String error(final ExpressionCache cache, final String expression) {
+        try {
+            return "value " + cache.evaluate(expression);
+        } catch (IllegalArgumentException e) {
+            return e.getMessage();
+        }
+    }
+
+    private static void expect(final String what, final String expected, final String actual) {
+        checks++;
+        if (!expected.equals(actual)) {
+            failures++;
+            System.out.println("FAILED " + what + ": expected " + expected + " but got " + actual);
+        }
+    }
+}